@@ -8,14 +8,14 @@ import (
 )
 
 type cookieConfigEntity struct {
-	XMLName xml.Name `xml:"cookie-config"`
-	Domain  string   `xml:"domain"`
-	Secure  bool     `xml:"secure"`
-	Name    string   `xml:"name"`
+	XMLName xml.Name `xml:"cookie-config" json:"-"`
+	Domain  string   `xml:"domain" json:"domain"`
+	Secure  bool     `xml:"secure" json:"secure"`
+	Name    string   `xml:"name" json:"name"`
 }
 
 func HandleGetCookieConfig(w http.ResponseWriter, r *http.Request) {
-	model.WriteXML(w, http.StatusOK, cookieConfigEntity{
+	model.WriteEntity(w, http.StatusOK, cookieConfigEntity{
 		Domain: ".localhost",
 		Secure: false,
 		Name:   "crowd.token_key",
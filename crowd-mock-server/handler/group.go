@@ -62,7 +62,7 @@ func (h *GroupHandler) HandleCreateGroup(w http.ResponseWriter, r *http.Request)
 	}
 
 	group.Attributes = nil
-	model.WriteXML(w, http.StatusCreated, group)
+	model.WriteEntity(w, http.StatusCreated, group)
 }
 
 func (h *GroupHandler) HandleGetGroup(w http.ResponseWriter, r *http.Request) {
@@ -99,7 +99,7 @@ func (h *GroupHandler) HandleGetGroup(w http.ResponseWriter, r *http.Request) {
 		group.Attributes = attrs
 	}
 
-	model.WriteXML(w, http.StatusOK, group)
+	model.WriteEntity(w, http.StatusOK, group)
 }
 
 func (h *GroupHandler) HandleUpdateGroup(w http.ResponseWriter, r *http.Request) {
@@ -297,7 +297,95 @@ func (h *GroupHandler) HandleGetParentGroups(w http.ResponseWriter, r *http.Requ
 		groups = append(groups, model.GroupEntity{Name: name, Type: "GROUP", Active: true})
 	}
 
-	model.WriteXML(w, http.StatusOK, model.GroupEntityList{Groups: groups})
+	model.WriteEntity(w, http.StatusOK, model.GroupEntityList{Groups: groups})
+}
+
+// HandleGetUsersOfGroup returns the direct user members of the group.
+func (h *GroupHandler) HandleGetUsersOfGroup(w http.ResponseWriter, r *http.Request) {
+	groupname := r.URL.Query().Get("groupname")
+	if groupname == "" {
+		model.WriteError(w, http.StatusBadRequest, "INVALID_GROUP", "groupname parameter required")
+		return
+	}
+
+	startIndex, _ := strconv.Atoi(r.URL.Query().Get("start-index"))
+	maxResults, _ := strconv.Atoi(r.URL.Query().Get("max-results"))
+	if maxResults <= 0 {
+		maxResults = 50
+	}
+
+	ctx := r.Context()
+	rows, err := h.Pool.Query(ctx,
+		`SELECT u.name FROM users u
+		 JOIN user_group_memberships ugm ON u.id = ugm.user_id
+		 JOIN groups g ON g.id = ugm.group_id
+		 WHERE LOWER(g.name) = LOWER($1)
+		 ORDER BY u.name
+		 OFFSET $2 LIMIT $3`,
+		groupname, startIndex, maxResults,
+	)
+	if err != nil {
+		model.WriteError(w, http.StatusInternalServerError, "INTERNAL_ERROR", err.Error())
+		return
+	}
+	defer rows.Close()
+
+	users := []model.UserEntity{}
+	for rows.Next() {
+		var name string
+		if err := rows.Scan(&name); err != nil {
+			model.WriteError(w, http.StatusInternalServerError, "INTERNAL_ERROR", err.Error())
+			return
+		}
+		users = append(users, model.UserEntity{Name: name, Active: true})
+	}
+
+	model.WriteEntity(w, http.StatusOK, model.UserEntityList{Users: users})
+}
+
+// HandleGetMemberships returns all direct memberships of all groups. Crowd serves it only in XML.
+func (h *GroupHandler) HandleGetMemberships(w http.ResponseWriter, r *http.Request) {
+	ctx := r.Context()
+	rows, err := h.Pool.Query(ctx,
+		`SELECT g.name, 'user', u.name FROM user_group_memberships ugm
+		   JOIN groups g ON g.id = ugm.group_id
+		   JOIN users u ON u.id = ugm.user_id
+		 UNION ALL
+		 SELECT pg.name, 'group', cg.name FROM group_group_memberships ggm
+		   JOIN groups pg ON pg.id = ggm.parent_group_id
+		   JOIN groups cg ON cg.id = ggm.child_group_id
+		 ORDER BY 1, 2, 3`,
+	)
+	if err != nil {
+		model.WriteError(w, http.StatusInternalServerError, "INTERNAL_ERROR", err.Error())
+		return
+	}
+	defer rows.Close()
+
+	list := model.MembershipList{Memberships: []model.Membership{}}
+	for rows.Next() {
+		var group, kind, member string
+		if err := rows.Scan(&group, &kind, &member); err != nil {
+			model.WriteError(w, http.StatusInternalServerError, "INTERNAL_ERROR", err.Error())
+			return
+		}
+		n := len(list.Memberships)
+		if n == 0 || list.Memberships[n-1].Group != group {
+			list.Memberships = append(list.Memberships, model.Membership{Group: group})
+			n++
+		}
+		m := &list.Memberships[n-1]
+		if kind == "user" {
+			m.Users.Users = append(m.Users.Users, model.MembershipUser{Name: member})
+		} else {
+			m.Groups.Groups = append(m.Groups.Groups, model.GroupRef{Name: member})
+		}
+	}
+
+	w.Header().Set("Content-Type", "application/xml")
+	w.Header().Set("X-Embedded-Crowd-Version", "Crowd/5.1.0")
+	w.WriteHeader(http.StatusOK)
+	xml.NewEncoder(w).Encode(list)
 }
 
 // Helper functions
@@ -38,3 +38,14 @@ func BasicAuth(expectedUser, expectedPass string) func(http.Handler) http.Handle
 		})
 	}
 }
+
+// NegotiateContentType selects JSON responses when the client accepts application/json,
+// like Crowd does for its REST API. Otherwise, XML is used.
+func NegotiateContentType(next http.Handler) http.Handler {
+	return http.HandlerFunc(func(w http.ResponseWriter, r *http.Request) {
+		if strings.Contains(r.Header.Get("Accept"), "application/json") {
+			w = model.NewJSONResponseWriter(w)
+		}
+		next.ServeHTTP(w, r)
+	})
+}
@@ -0,0 +1,202 @@
+package handler
+
+import (
+	"encoding/json"
+	"encoding/xml"
+	"fmt"
+	"io"
+	"net/http"
+	"strings"
+	"time"
+)
+
+// Restriction is the search restriction posted to /search, decoded from XML or JSON.
+type Restriction struct {
+	Type         string // "null", "property" or "boolean"
+	Property     string
+	PropertyType string
+	MatchMode    string
+	Value        string
+	BooleanLogic string
+	Restrictions []Restriction
+}
+
+type xmlRestriction struct {
+	XMLName  xml.Name
+	Property struct {
+		Name string `xml:"name"`
+		Type string `xml:"type"`
+	} `xml:"property"`
+	MatchMode    string `xml:"match-mode"`
+	Value        string `xml:"value"`
+	BooleanLogic string `xml:"boolean-logic"`
+	Restrictions struct {
+		Items []xmlRestriction `xml:",any"`
+	} `xml:"restrictions"`
+}
+
+type jsonRestriction struct {
+	RestrictionType string `json:"restriction-type"`
+	Property        struct {
+		Name string `json:"name"`
+		Type string `json:"type"`
+	} `json:"property"`
+	MatchMode    string            `json:"match-mode"`
+	Value        string            `json:"value"`
+	BooleanLogic string            `json:"boolean-logic"`
+	Restrictions []jsonRestriction `json:"restrictions"`
+}
+
+// Crowd formats the date values of the restriction like this
+const restrictionDateLayout = "2006-01-02T15:04:05.000-0700"
+
+var userColumns = map[string]string{
+	"name":        "name",
+	"email":       "email",
+	"firstName":   "first_name",
+	"lastName":    "last_name",
+	"displayName": "display_name",
+	"externalId":  "key",
+	"active":      "active",
+	"createdDate": "created_date",
+	"updatedDate": "updated_date",
+}
+
+var groupColumns = map[string]string{
+	"name":        "name",
+	"description": "description",
+	"active":      "active",
+	"createdDate": "created_date",
+	"updatedDate": "updated_date",
+}
+
+func ParseRestriction(r *http.Request) (Restriction, error) {
+	body, err := io.ReadAll(r.Body)
+	if err != nil {
+		return Restriction{}, err
+	}
+	trimmed := strings.TrimSpace(string(body))
+	if trimmed == "" {
+		return Restriction{Type: "null"}, nil
+	}
+
+	if strings.HasPrefix(trimmed, "{") {
+		var jr jsonRestriction
+		if err := json.Unmarshal(body, &jr); err != nil {
+			return Restriction{}, err
+		}
+		return fromJSON(jr), nil
+	}
+
+	var xr xmlRestriction
+	if err := xml.Unmarshal(body, &xr); err != nil {
+		return Restriction{}, err
+	}
+	return fromXML(xr), nil
+}
+
+func fromXML(xr xmlRestriction) Restriction {
+	res := Restriction{
+		Type:         strings.TrimSuffix(xr.XMLName.Local, "-search-restriction"),
+		Property:     xr.Property.Name,
+		PropertyType: xr.Property.Type,
+		MatchMode:    xr.MatchMode,
+		Value:        xr.Value,
+		BooleanLogic: xr.BooleanLogic,
+	}
+	for _, c := range xr.Restrictions.Items {
+		res.Restrictions = append(res.Restrictions, fromXML(c))
+	}
+	return res
+}
+
+func fromJSON(jr jsonRestriction) Restriction {
+	res := Restriction{
+		Type:         strings.TrimSuffix(jr.RestrictionType, "-search-restriction"),
+		Property:     jr.Property.Name,
+		PropertyType: jr.Property.Type,
+		MatchMode:    jr.MatchMode,
+		Value:        jr.Value,
+		BooleanLogic: jr.BooleanLogic,
+	}
+	for _, c := range jr.Restrictions {
+		res.Restrictions = append(res.Restrictions, fromJSON(c))
+	}
+	return res
+}
+
+// ToSQL builds the WHERE condition. The placeholders start from len(args)+1.
+func (res Restriction) ToSQL(columns map[string]string, args *[]any) (string, error) {
+	switch res.Type {
+	case "", "null":
+		return "TRUE", nil
+
+	case "boolean":
+		if len(res.Restrictions) == 0 {
+			return "TRUE", nil
+		}
+		op := " AND "
+		if strings.EqualFold(res.BooleanLogic, "or") {
+			op = " OR "
+		}
+		parts := make([]string, 0, len(res.Restrictions))
+		for _, c := range res.Restrictions {
+			s, err := c.ToSQL(columns, args)
+			if err != nil {
+				return "", err
+			}
+			parts = append(parts, "("+s+")")
+		}
+		return strings.Join(parts, op), nil
+
+	case "property":
+		column, ok := columns[res.Property]
+		if !ok {
+			return "", fmt.Errorf("unsupported property: %s", res.Property)
+		}
+		return res.propertySQL(column, args)
+	}
+	return "", fmt.Errorf("unsupported restriction type: %s", res.Type)
+}
+
+func (res Restriction) propertySQL(column string, args *[]any) (string, error) {
+	if strings.EqualFold(res.MatchMode, "NULL") {
+		return column + " IS NULL", nil
+	}
+
+	var value any
+	left := column
+	switch strings.ToUpper(res.PropertyType) {
+	case "DATE":
+		t, err := time.Parse(restrictionDateLayout, res.Value)
+		if err != nil {
+			return "", fmt.Errorf("invalid date value: %s", res.Value)
+		}
+		value = t.UnixMilli()
+	case "BOOLEAN":
+		value = strings.EqualFold(res.Value, "true")
+	default:
+		// Crowd compares the strings case-insensitively
+		left = "LOWER(" + column + ")"
+		value = strings.ToLower(res.Value)
+	}
+
+	placeholder := func(v any) string {
+		*args = append(*args, v)
+		return fmt.Sprintf("$%d", len(*args))
+	}
+
+	switch strings.ToUpper(res.MatchMode) {
+	case "EXACTLY_MATCHES":
+		return left + " = " + placeholder(value), nil
+	case "GREATER_THAN":
+		return left + " > " + placeholder(value), nil
+	case "LESS_THAN":
+		return left + " < " + placeholder(value), nil
+	case "STARTS_WITH":
+		return left + " LIKE " + placeholder(fmt.Sprint(value)+"%"), nil
+	case "CONTAINS":
+		return left + " LIKE " + placeholder("%"+fmt.Sprint(value)+"%"), nil
+	}
+	return "", fmt.Errorf("unsupported match mode: %s", res.MatchMode)
+}
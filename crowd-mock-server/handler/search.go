@@ -2,6 +2,7 @@ package handler
 
 import (
 	"context"
+	"fmt"
 	"net/http"
 	"strconv"
 
@@ -24,24 +25,38 @@ func (h *SearchHandler) HandleSearch(w http.ResponseWriter, r *http.Request) {
 
 	ctx := r.Context()
 
+	restriction, err := ParseRestriction(r)
+	if err != nil {
+		model.WriteError(w, http.StatusBadRequest, "INVALID_SEARCH", err.Error())
+		return
+	}
+
 	switch entityType {
 	case "user":
-		h.searchUsers(ctx, w, r, startIndex, maxResults)
+		h.searchUsers(ctx, w, r, restriction, startIndex, maxResults)
 	case "group":
-		h.searchGroups(ctx, w, r, startIndex, maxResults)
+		h.searchGroups(ctx, w, r, restriction, startIndex, maxResults)
 	default:
 		model.WriteError(w, http.StatusBadRequest, "INVALID_SEARCH", "entity-type must be 'user' or 'group'")
 	}
 }
 
-func (h *SearchHandler) searchUsers(ctx context.Context, w http.ResponseWriter, r *http.Request, startIndex, maxResults int) {
+func (h *SearchHandler) searchUsers(ctx context.Context, w http.ResponseWriter, r *http.Request, restriction Restriction, startIndex, maxResults int) {
 	expand := r.URL.Query().Get("expand")
 	includeAttrs := expand == "user,attributes"
 
+	args := []any{}
+	where, err := restriction.ToSQL(userColumns, &args)
+	if err != nil {
+		model.WriteError(w, http.StatusBadRequest, "INVALID_SEARCH", err.Error())
+		return
+	}
+	args = append(args, startIndex, maxResults)
+
 	rows, err := h.Pool.Query(ctx,
-		`SELECT id, name, key, first_name, last_name, display_name, email, active, created_date, updated_date
-		 FROM users ORDER BY name OFFSET $1 LIMIT $2`,
-		startIndex, maxResults,
+		fmt.Sprintf(`SELECT id, name, key, first_name, last_name, display_name, email, active, created_date, updated_date
+		 FROM users WHERE %s ORDER BY LOWER(name) OFFSET $%d LIMIT $%d`, where, len(args)-1, len(args)),
+		args...,
 	)
 	if err != nil {
 		model.WriteError(w, http.StatusInternalServerError, "INTERNAL_ERROR", err.Error())
@@ -71,16 +86,25 @@ func (h *SearchHandler) searchUsers(ctx context.Context, w http.ResponseWriter,
 		users = append(users, u)
 	}
 
-	model.WriteXML(w, http.StatusOK, model.UserEntityList{Users: users})
+	model.WriteEntity(w, http.StatusOK, model.UserEntityList{Users: users})
 }
 
-func (h *SearchHandler) searchGroups(ctx context.Context, w http.ResponseWriter, r *http.Request, startIndex, maxResults int) {
+func (h *SearchHandler) searchGroups(ctx context.Context, w http.ResponseWriter, r *http.Request, restriction Restriction, startIndex, maxResults int) {
 	expand := r.URL.Query().Get("expand")
 	includeAttrs := expand == "group,attributes"
 
+	args := []any{}
+	where, err := restriction.ToSQL(groupColumns, &args)
+	if err != nil {
+		model.WriteError(w, http.StatusBadRequest, "INVALID_SEARCH", err.Error())
+		return
+	}
+	args = append(args, startIndex, maxResults)
+
 	rows, err := h.Pool.Query(ctx,
-		`SELECT id, name, description, active, type FROM groups ORDER BY name OFFSET $1 LIMIT $2`,
-		startIndex, maxResults,
+		fmt.Sprintf(`SELECT id, name, description, active, type FROM groups WHERE %s ORDER BY LOWER(name) OFFSET $%d LIMIT $%d`,
+			where, len(args)-1, len(args)),
+		args...,
 	)
 	if err != nil {
 		model.WriteError(w, http.StatusInternalServerError, "INTERNAL_ERROR", err.Error())
@@ -109,5 +133,5 @@ func (h *SearchHandler) searchGroups(ctx context.Context, w http.ResponseWriter,
 		groups = append(groups, g)
 	}
 
-	model.WriteXML(w, http.StatusOK, model.GroupEntityList{Groups: groups})
+	model.WriteEntity(w, http.StatusOK, model.GroupEntityList{Groups: groups})
 }
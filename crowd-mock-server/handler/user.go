@@ -72,7 +72,7 @@ func (h *UserHandler) HandleCreateUser(w http.ResponseWriter, r *http.Request) {
 	user.Attributes = attrs
 
 	user.Password = nil
-	model.WriteXML(w, http.StatusCreated, user)
+	model.WriteEntity(w, http.StatusCreated, user)
 }
 
 func (h *UserHandler) HandleGetUser(w http.ResponseWriter, r *http.Request) {
@@ -120,7 +120,7 @@ func (h *UserHandler) HandleGetUser(w http.ResponseWriter, r *http.Request) {
 		user.Attributes = attrs
 	}
 
-	model.WriteXML(w, http.StatusOK, user)
+	model.WriteEntity(w, http.StatusOK, user)
 }
 
 func (h *UserHandler) HandleUpdateUser(w http.ResponseWriter, r *http.Request) {
@@ -249,7 +249,7 @@ func (h *UserHandler) HandleRenameUser(w http.ResponseWriter, r *http.Request) {
 		model.WriteError(w, http.StatusInternalServerError, "INTERNAL_ERROR", err.Error())
 		return
 	}
-	model.WriteXML(w, http.StatusOK, user)
+	model.WriteEntity(w, http.StatusOK, user)
 }
 
 func (h *UserHandler) HandleStoreUserAttributes(w http.ResponseWriter, r *http.Request) {
@@ -398,7 +398,7 @@ func (h *UserHandler) HandleGetGroupsForUser(w http.ResponseWriter, r *http.Requ
 		groups = append(groups, model.GroupEntity{Name: name, Type: "GROUP", Active: true})
 	}
 
-	model.WriteXML(w, http.StatusOK, model.GroupEntityList{Groups: groups})
+	model.WriteEntity(w, http.StatusOK, model.GroupEntityList{Groups: groups})
 }
 
 // Helper functions
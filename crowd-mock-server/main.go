@@ -47,6 +47,9 @@ func main() {
 	})
 
 	r.Route(cfg.ContextPath+"/rest/usermanagement/1", func(r chi.Router) {
+		// Serve gzip/deflate responses when the client sends Accept-Encoding
+		r.Use(middleware.Compress(5, "application/xml", "application/json"))
+		r.Use(handler.NegotiateContentType)
 		r.Use(handler.BasicAuth(cfg.AuthUser, cfg.AuthPassword))
 
 		// User endpoints
@@ -63,6 +66,7 @@ func main() {
 		r.Post("/group/user/direct", userHandler.HandleAddUserToGroup)
 		r.Delete("/group/user/direct", userHandler.HandleRemoveUserFromGroup)
 		r.Get("/user/group/direct", userHandler.HandleGetGroupsForUser)
+		r.Get("/group/user/direct", groupHandler.HandleGetUsersOfGroup)
 
 		// Group endpoints
 		r.Post("/group", groupHandler.HandleCreateGroup)
@@ -74,6 +78,7 @@ func main() {
 		r.Post("/group/child-group/direct", groupHandler.HandleAddChildGroup)
 		r.Delete("/group/child-group/direct", groupHandler.HandleRemoveChildGroup)
 		r.Get("/group/parent-group/direct", groupHandler.HandleGetParentGroups)
+		r.Get("/group/membership", groupHandler.HandleGetMemberships)
 
 		// Search endpoint (Crowd client uses POST for search)
 		r.Post("/search", searchHandler.HandleSearch)
@@ -1,27 +1,45 @@
 package model
 
-import "encoding/xml"
+import (
+	"encoding/json"
+	"encoding/xml"
+)
 
 // <attributes>
 //   <attribute name="x">
 //     <values><value>v1</value><value>v2</value></values>
 //   </attribute>
 // </attributes>
+//
+// In JSON: {"attributes": [{"name": "x", "values": ["v1", "v2"]}]}
 type AttributeList struct {
-	XMLName    xml.Name          `xml:"attributes"`
-	Attributes []AttributeEntity `xml:"attribute"`
+	XMLName    xml.Name          `xml:"attributes" json:"-"`
+	Attributes []AttributeEntity `xml:"attribute" json:"attributes"`
 }
 
 type AttributeEntity struct {
-	XMLName xml.Name        `xml:"attribute"`
-	Name    string          `xml:"name,attr"`
-	Values  AttributeValues `xml:"values"`
+	XMLName xml.Name        `xml:"attribute" json:"-"`
+	Name    string          `xml:"name,attr" json:"name"`
+	Values  AttributeValues `xml:"values" json:"values"`
 }
 
 type AttributeValues struct {
 	Value []string `xml:"value"`
 }
 
+// MarshalJSON writes the values as a plain array like Crowd does.
+func (v AttributeValues) MarshalJSON() ([]byte, error) {
+	if v.Value == nil {
+		return []byte("[]"), nil
+	}
+	return json.Marshal(v.Value)
+}
+
+// UnmarshalJSON reads the values from a plain array.
+func (v *AttributeValues) UnmarshalJSON(data []byte) error {
+	return json.Unmarshal(data, &v.Value)
+}
+
 func NewEmptyAttributeList() *AttributeList {
 	return &AttributeList{
 		Attributes: []AttributeEntity{},
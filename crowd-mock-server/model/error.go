@@ -1,24 +1,41 @@
 package model
 
 import (
+	"encoding/json"
 	"encoding/xml"
 	"net/http"
 )
 
 type ErrorResponse struct {
-	XMLName xml.Name `xml:"error"`
-	Reason  string   `xml:"reason"`
-	Message string   `xml:"message"`
+	XMLName xml.Name `xml:"error" json:"-"`
+	Reason  string   `xml:"reason" json:"reason"`
+	Message string   `xml:"message" json:"message"`
+}
+
+// jsonResponseWriter marks the response to be encoded as JSON instead of XML.
+type jsonResponseWriter struct {
+	http.ResponseWriter
+}
+
+func NewJSONResponseWriter(w http.ResponseWriter) http.ResponseWriter {
+	return jsonResponseWriter{w}
 }
 
 func WriteError(w http.ResponseWriter, statusCode int, reason, message string) {
-	WriteXML(w, statusCode, ErrorResponse{
+	WriteEntity(w, statusCode, ErrorResponse{
 		Reason:  reason,
 		Message: message,
 	})
 }
 
-func WriteXML(w http.ResponseWriter, statusCode int, v any) {
+func WriteEntity(w http.ResponseWriter, statusCode int, v any) {
+	if _, ok := w.(jsonResponseWriter); ok {
+		w.Header().Set("Content-Type", "application/json")
+		w.Header().Set("X-Embedded-Crowd-Version", "Crowd/5.1.0")
+		w.WriteHeader(statusCode)
+		json.NewEncoder(w).Encode(v)
+		return
+	}
 	w.Header().Set("Content-Type", "application/xml")
 	w.Header().Set("X-Embedded-Crowd-Version", "Crowd/5.1.0")
 	w.WriteHeader(statusCode)
@@ -9,27 +9,27 @@ import "encoding/xml"
 //   <attributes>...</attributes>
 // </group>
 type GroupEntity struct {
-	XMLName     xml.Name       `xml:"group"`
-	Name        string         `xml:"name,attr"`
-	Description string         `xml:"description,omitempty"`
-	Type        string         `xml:"type"`
-	Active      bool           `xml:"active"`
-	Attributes  *AttributeList `xml:"attributes,omitempty"`
+	XMLName     xml.Name       `xml:"group" json:"-"`
+	Name        string         `xml:"name,attr" json:"name"`
+	Description string         `xml:"description,omitempty" json:"description,omitempty"`
+	Type        string         `xml:"type" json:"type"`
+	Active      bool           `xml:"active" json:"active"`
+	Attributes  *AttributeList `xml:"attributes,omitempty" json:"attributes,omitempty"`
 }
 
 type GroupRef struct {
-	XMLName xml.Name `xml:"group"`
-	Name    string   `xml:"name,attr"`
+	XMLName xml.Name `xml:"group" json:"-"`
+	Name    string   `xml:"name,attr" json:"name"`
 }
 
 // <groups><group name="foo"/></groups>
 type GroupsResponse struct {
-	XMLName xml.Name   `xml:"groups"`
-	Groups  []GroupRef `xml:"group"`
+	XMLName xml.Name   `xml:"groups" json:"-"`
+	Groups  []GroupRef `xml:"group" json:"groups"`
 }
 
 // <groups><group name="foo">...</group></groups>
 type GroupEntityList struct {
-	XMLName xml.Name      `xml:"groups"`
-	Groups  []GroupEntity `xml:"group"`
+	XMLName xml.Name      `xml:"groups" json:"-"`
+	Groups  []GroupEntity `xml:"group" json:"groups"`
 }
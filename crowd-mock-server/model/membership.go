@@ -0,0 +1,28 @@
+package model
+
+import "encoding/xml"
+
+// <memberships>
+//   <membership group="foo">
+//     <users><user name="bar"/></users>
+//     <groups><group name="child"/></groups>
+//   </membership>
+// </memberships>
+type MembershipList struct {
+	XMLName     xml.Name     `xml:"memberships" json:"-"`
+	Memberships []Membership `xml:"membership" json:"memberships"`
+}
+
+type Membership struct {
+	Group  string          `xml:"group,attr" json:"group"`
+	Users  MembershipUsers `xml:"users" json:"users"`
+	Groups GroupsResponse  `xml:"groups" json:"groups"`
+}
+
+type MembershipUser struct {
+	Name string `xml:"name,attr" json:"name"`
+}
+
+type MembershipUsers struct {
+	Users []MembershipUser `xml:"user" json:"users"`
+}
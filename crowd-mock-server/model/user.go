@@ -8,32 +8,32 @@ import "encoding/xml"
 //   <attributes>...</attributes>
 // </user>
 type UserEntity struct {
-	XMLName     xml.Name       `xml:"user"`
-	Name        string         `xml:"name,attr"`
-	FirstName   string         `xml:"first-name,omitempty"`
-	LastName    string         `xml:"last-name,omitempty"`
-	DisplayName string         `xml:"display-name,omitempty"`
-	Email       string         `xml:"email,omitempty"`
-	Password    *PasswordCred  `xml:"password,omitempty"`
-	Active      bool           `xml:"active"`
-	CreatedDate int64          `xml:"created-date"`
-	UpdatedDate int64          `xml:"updated-date"`
-	Key         string         `xml:"key,omitempty"`
-	Attributes  *AttributeList `xml:"attributes,omitempty"`
+	XMLName     xml.Name       `xml:"user" json:"-"`
+	Name        string         `xml:"name,attr" json:"name"`
+	FirstName   string         `xml:"first-name,omitempty" json:"first-name,omitempty"`
+	LastName    string         `xml:"last-name,omitempty" json:"last-name,omitempty"`
+	DisplayName string         `xml:"display-name,omitempty" json:"display-name,omitempty"`
+	Email       string         `xml:"email,omitempty" json:"email,omitempty"`
+	Password    *PasswordCred  `xml:"password,omitempty" json:"password,omitempty"`
+	Active      bool           `xml:"active" json:"active"`
+	CreatedDate int64          `xml:"created-date" json:"created-date"`
+	UpdatedDate int64          `xml:"updated-date" json:"updated-date"`
+	Key         string         `xml:"key,omitempty" json:"key,omitempty"`
+	Attributes  *AttributeList `xml:"attributes,omitempty" json:"attributes,omitempty"`
 }
 
 type PasswordCred struct {
-	XMLName xml.Name `xml:"password"`
-	Value   string   `xml:"value"`
+	XMLName xml.Name `xml:"password" json:"-"`
+	Value   string   `xml:"value" json:"value"`
 }
 
 type RenameRequest struct {
-	XMLName xml.Name `xml:"rename"`
-	NewName string   `xml:"new-name"`
+	XMLName xml.Name `xml:"rename" json:"-"`
+	NewName string   `xml:"new-name" json:"new-name"`
 }
 
 // <users><user name="foo">...</user></users>
 type UserEntityList struct {
-	XMLName xml.Name     `xml:"users"`
-	Users   []UserEntity `xml:"user"`
+	XMLName xml.Name     `xml:"users" json:"-"`
+	Users   []UserEntity `xml:"user" json:"users"`
 }
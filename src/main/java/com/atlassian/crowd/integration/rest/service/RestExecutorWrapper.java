@@ -23,34 +23,72 @@ import com.atlassian.crowd.integration.rest.entity.ErrorEntity;
 import com.atlassian.crowd.integration.rest.entity.UserEntity;
 import com.atlassian.crowd.model.user.User;
 import com.atlassian.crowd.service.client.CrowdClient;
+import jp.openstandia.connector.crowd.CrowdNodeRouter;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
 
 public class RestExecutorWrapper {
-    private final RestExecutor executor;
+    // Index: node of Crowd Data Center
+    private final List<RestExecutor> executors = new ArrayList<>();
+    // Null if there is only one node
+    private final CrowdNodeRouter router;
+    private final CrowdNodeRouter.Session session;
 
     public RestExecutorWrapper(CrowdClient crowdClient) {
         if (crowdClient == null) {
-            this.executor = null;
+            this.router = null;
+            this.session = null;
             return;
         }
 
+        CrowdNodeRouter.RoutingHandler routing = CrowdNodeRouter.getRoutingHandler(crowdClient);
+        if (routing != null) {
+            this.router = routing.getRouter();
+            this.session = routing.getSession();
+            for (Object client : routing.getClients()) {
+                executors.add(getExecutor(client));
+            }
+        } else {
+            this.router = null;
+            this.session = null;
+            executors.add(getExecutor(crowdClient));
+        }
+    }
+
+    private static RestExecutor getExecutor(Object crowdClient) {
         // Workaround for using search by key with attributes
         try {
             Field f = crowdClient.getClass().getDeclaredField("executor");
             f.setAccessible(true);
-            this.executor = (RestExecutor) f.get(crowdClient);
+            return (RestExecutor) f.get(crowdClient);
         } catch (NoSuchFieldException | IllegalAccessException e) {
             throw new ConnectorException(e);
         }
     }
 
     public User getUserByKeyWithAttributes(String key) throws UserNotFoundException, OperationFailedException, ApplicationPermissionException, InvalidAuthenticationException {
+        if (router == null) {
+            return getUserByKeyWithAttributes(executors.get(0), key);
+        }
+        try {
+            return router.call(session, false, node -> getUserByKeyWithAttributes(executors.get(node.getIndex()), key));
+
+        } catch (UserNotFoundException | OperationFailedException | ApplicationPermissionException |
+                 InvalidAuthenticationException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new OperationFailedException(e.getMessage(), e);
+        }
+    }
+
+    private static User getUserByKeyWithAttributes(RestExecutor executor, String key) throws UserNotFoundException, OperationFailedException, ApplicationPermissionException, InvalidAuthenticationException {
         try {
             // CAUTION: Need to check this API is supported
             // Crowd 5.1.1: OK
-            return (User) this.executor.get("/user?key=%s&expand=attributes", new Object[]{key}).andReceive(UserEntity.class);
+            return (User) executor.get("/user?key=%s&expand=attributes", new Object[]{key}).andReceive(UserEntity.class);
         } catch (CrowdRestException e) {
             if (e.getErrorEntity().getReason() == ErrorEntity.ErrorReason.USER_NOT_FOUND) {
                 UserNotFoundException.throwNotFoundByExternalId(key);
@@ -0,0 +1,161 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import jp.openstandia.connector.util.Utils;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker for the connection to Crowd.
+ * It opens after the consecutive connection failures or timeouts, then the calls fail fast with
+ * ConnectionFailedException instead of waiting for the connection timeout each. After the open time,
+ * one caller probes Crowd with the cheap request (half-open) and closes it if succeeded, otherwise it opens again.
+ * The breaker is shared by all connector instances which connect to the same Crowd application.
+ */
+public class CrowdCircuitBreaker {
+
+    private static final Log LOG = Log.getLog(CrowdCircuitBreaker.class);
+
+    private static final CrowdRegistry<CrowdCircuitBreaker> REGISTRY = new CrowdRegistry<>();
+
+    static final CrowdCircuitBreaker DISABLED = new CrowdCircuitBreaker(0, 0, null);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final CrowdMetrics metrics;
+
+    // Guarded by this
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    CrowdCircuitBreaker(int failureThreshold, long openNanos, CrowdMetrics metrics) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openNanos;
+        this.metrics = metrics;
+
+        if (metrics != null) {
+            // 0: closed, 1: open, 2: half-open
+            metrics.gauge("breaker.state", () -> getState().ordinal());
+        }
+    }
+
+    public static CrowdCircuitBreaker of(CrowdConfiguration configuration) {
+        if (configuration == null || configuration.getCircuitBreakerFailures() <= 0) {
+            return DISABLED;
+        }
+        return REGISTRY.get(configuration.getConnectionKey(),
+                Arrays.asList(configuration.getCircuitBreakerFailures(), configuration.getCircuitBreakerOpenTimeInSeconds()),
+                () -> new CrowdCircuitBreaker(configuration.getCircuitBreakerFailures(),
+                        TimeUnit.SECONDS.toNanos(configuration.getCircuitBreakerOpenTimeInSeconds()),
+                        CrowdMetrics.of(configuration)));
+    }
+
+    public boolean isEnabled() {
+        return failureThreshold > 0;
+    }
+
+    /**
+     * Check the call can be sent. If the open time has passed, the caller runs the probe to close the breaker.
+     *
+     * @param probe the cheap request to Crowd
+     * @throws ConnectionFailedException if the breaker is open
+     */
+    public void check(Callable<?> probe) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            if (state == State.HALF_OPEN || System.nanoTime() - openedAt < openNanos) {
+                metrics.increment("breaker.rejected");
+                throw new ConnectionFailedException("Crowd is unavailable, the circuit breaker is open");
+            }
+            // This caller probes, the others fail fast meanwhile
+            state = State.HALF_OPEN;
+        }
+
+        try {
+            probe.call();
+        } catch (Exception e) {
+            synchronized (this) {
+                open();
+            }
+            throw new ConnectionFailedException("Crowd is still unavailable: " + e.getMessage(), e);
+        }
+
+        synchronized (this) {
+            state = State.CLOSED;
+            failures = 0;
+        }
+        LOG.info("Closed the circuit breaker, Crowd is available again");
+    }
+
+    /**
+     * Record the succeeded call.
+     */
+    public void onSuccess() {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (this) {
+            failures = 0;
+        }
+    }
+
+    /**
+     * Record the failed call. It counts the connection failures and timeouts only
+     * because the other errors, including the malformed response, mean Crowd is responding.
+     *
+     * @param e
+     */
+    public void onFailure(Exception e) {
+        if (!isEnabled() || !Utils.isTransportFailure(e)) {
+            return;
+        }
+        synchronized (this) {
+            failures++;
+            if (state == State.CLOSED && failures >= failureThreshold) {
+                open();
+                LOG.warn("Opened the circuit breaker after {0} consecutive connection failures: {1}",
+                        failures, e.getMessage());
+            }
+        }
+    }
+
+    // Guarded by this
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        metrics.increment("breaker.open");
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive concurrency limiter (AIMD) for the requests to Crowd.
+ * The limit grows additively while the responses are fast, and shrinks multiplicatively
+ * when the latency exceeds the threshold or Crowd reports overload (429/5xx).
+ * The limiter is shared by all connector instances which connect to the same Crowd application,
+ * so it caps the total in-flight requests of the pooled instances in the JVM.
+ * <p>
+ * The requests are scheduled by the priority classes, so the provisioning doesn't wait behind the reconciliation.
+ * Each class has the reserved permits which the other class can't take (the bulk reserve is kept only while
+ * the bulk requests are waiting), and the rest is shared by the weights when both classes are waiting.
+ * The reserve is up to the half of the current limit.
+ */
+public class CrowdConcurrencyLimiter {
+
+    private static final Log LOG = Log.getLog(CrowdConcurrencyLimiter.class);
+
+    private static final CrowdRegistry<CrowdConcurrencyLimiter> REGISTRY = new CrowdRegistry<>();
+
+    static final CrowdConcurrencyLimiter UNLIMITED = new CrowdConcurrencyLimiter(0, 0, null);
+
+    private static final int DEFAULT_RESERVED = 1;
+    private static final int DEFAULT_INTERACTIVE_WEIGHT = 3;
+
+    private static final double MIN_LIMIT = 1.0;
+    private static final double BACKOFF_RATIO = 0.7;
+
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+    private final CrowdMetrics metrics;
+    private final int reserved;
+    // Index: priority ordinal
+    private final int[] weights;
+
+    // Guarded by this
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    private long lastDecrease;
+    // Index: priority ordinal
+    private final int[] classInFlight = new int[CrowdPriority.values().length];
+    private final int[] classWaiting = new int[CrowdPriority.values().length];
+
+    CrowdConcurrencyLimiter(int maxLimit, long latencyThresholdInMilliseconds, CrowdMetrics metrics) {
+        this(maxLimit, latencyThresholdInMilliseconds, DEFAULT_RESERVED, DEFAULT_INTERACTIVE_WEIGHT, metrics);
+    }
+
+    CrowdConcurrencyLimiter(int maxLimit, long latencyThresholdInMilliseconds, int reserved, int interactiveWeight,
+                            CrowdMetrics metrics) {
+        this.maxLimit = maxLimit;
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdInMilliseconds);
+        this.metrics = metrics;
+        this.reserved = Math.max(0, reserved);
+        this.weights = new int[CrowdPriority.values().length];
+        this.weights[CrowdPriority.INTERACTIVE.ordinal()] = Math.max(1, interactiveWeight);
+        this.weights[CrowdPriority.BULK.ordinal()] = 1;
+        // Start from the half and find the limit from there
+        this.limit = Math.max(MIN_LIMIT, maxLimit / 2);
+        this.lastDecrease = System.nanoTime() - latencyThresholdNanos - 1;
+
+        if (metrics != null) {
+            metrics.gauge("limiter.limit", () -> (long) getLimit());
+            metrics.gauge("limiter.inflight", this::getInFlight);
+            metrics.gauge("limiter.waiting", this::getWaiting);
+            for (CrowdPriority priority : CrowdPriority.values()) {
+                String prefix = "limiter." + priority.getMetricName();
+                metrics.gauge(prefix + ".inflight", () -> getInFlight(priority));
+                metrics.gauge(prefix + ".waiting", () -> getWaiting(priority));
+            }
+        }
+    }
+
+    public static CrowdConcurrencyLimiter of(CrowdConfiguration configuration) {
+        if (configuration == null || configuration.getMaxConcurrentRequests() <= 0) {
+            return UNLIMITED;
+        }
+        return REGISTRY.get(configuration.getConnectionKey(),
+                Arrays.asList(configuration.getMaxConcurrentRequests(), configuration.getLatencyThresholdInMilliseconds(),
+                        configuration.getReservedRequestsPerPriority(), configuration.getInteractivePriorityWeight()),
+                () -> new CrowdConcurrencyLimiter(configuration.getMaxConcurrentRequests(),
+                        configuration.getLatencyThresholdInMilliseconds(),
+                        configuration.getReservedRequestsPerPriority(),
+                        configuration.getInteractivePriorityWeight(),
+                        CrowdMetrics.of(configuration)));
+    }
+
+    public boolean isEnabled() {
+        return maxLimit > 0;
+    }
+
+    /**
+     * Wait until the interactive request can be sent under the current limit.
+     *
+     * @throws InterruptedException
+     */
+    public void acquire() throws InterruptedException {
+        acquire(CrowdPriority.INTERACTIVE);
+    }
+
+    /**
+     * Wait until the request of the priority class can be sent under the current limit.
+     *
+     * @param priority
+     * @throws InterruptedException
+     */
+    public void acquire(CrowdPriority priority) throws InterruptedException {
+        if (!isEnabled()) {
+            return;
+        }
+
+        synchronized (this) {
+            if (canSend(priority)) {
+                grant(priority);
+                return;
+            }
+
+            String prefix = "limiter." + priority.getMetricName();
+            long start = System.nanoTime();
+            waiting++;
+            classWaiting[priority.ordinal()]++;
+            metrics.increment("limiter.queued");
+            metrics.increment(prefix + ".queued");
+            try {
+                while (!canSend(priority)) {
+                    wait();
+                }
+                grant(priority);
+            } finally {
+                waiting--;
+                classWaiting[priority.ordinal()]--;
+                long queued = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                metrics.add("limiter.queued.time.ms", queued);
+                metrics.add(prefix + ".queued.time.ms", queued);
+                // The other class may be able to send now
+                notifyAll();
+            }
+        }
+    }
+
+    // Guarded by this
+    private boolean canSend(CrowdPriority priority) {
+        int current = (int) limit;
+        if (inFlight >= current) {
+            return false;
+        }
+
+        int mine = classInFlight[priority.ordinal()];
+        CrowdPriority other = priority.other();
+        int others = classInFlight[other.ordinal()];
+        int reserve = Math.min(reserved, current / 2);
+
+        // Keep the unused reserve of the other class
+        boolean otherHoldsReserve = other == CrowdPriority.INTERACTIVE || classWaiting[other.ordinal()] > 0;
+        int otherUnused = otherHoldsReserve ? Math.max(0, reserve - others) : 0;
+        if (inFlight + otherUnused >= current) {
+            return false;
+        }
+
+        if (classWaiting[other.ordinal()] == 0 || mine < reserve) {
+            return true;
+        }
+        // Both are waiting, the class using less per weight goes first. The interactive one wins the tie.
+        long myShare = (long) mine * weights[other.ordinal()];
+        long otherShare = (long) others * weights[priority.ordinal()];
+        return priority == CrowdPriority.INTERACTIVE ? myShare <= otherShare : myShare < otherShare;
+    }
+
+    // Guarded by this
+    private void grant(CrowdPriority priority) {
+        inFlight++;
+        classInFlight[priority.ordinal()]++;
+    }
+
+    /**
+     * Release the permit of the interactive request and adjust the limit with the result of the request.
+     *
+     * @param latencyNanos
+     * @param overloaded   true if Crowd responded 429/5xx
+     */
+    public void release(long latencyNanos, boolean overloaded) {
+        release(CrowdPriority.INTERACTIVE, latencyNanos, overloaded);
+    }
+
+    /**
+     * Release the permit and adjust the limit with the result of the request.
+     *
+     * @param priority
+     * @param latencyNanos
+     * @param overloaded   true if Crowd responded 429/5xx
+     */
+    public void release(CrowdPriority priority, long latencyNanos, boolean overloaded) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        synchronized (this) {
+            inFlight--;
+            classInFlight[priority.ordinal()]--;
+
+            if (overloaded || latencyNanos > latencyThresholdNanos) {
+                long now = System.nanoTime();
+                // Back off only once per the threshold period, the in-flight requests were sent with the old limit
+                if (now - lastDecrease > latencyThresholdNanos) {
+                    double old = limit;
+                    limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+                    lastDecrease = now;
+                    metrics.increment("limiter.decrease");
+
+                    LOG.ok("Decreased Crowd concurrency limit {0} -> {1}. latency: {2}ms, overloaded: {3}",
+                            (int) old, (int) limit, TimeUnit.NANOSECONDS.toMillis(latencyNanos), overloaded);
+                }
+            } else if (inFlight + 1 >= (int) limit / 2) {
+                // Grow only when the limit is actually used, about +1 per limit's worth of requests
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+
+            notifyAll();
+        }
+    }
+
+    public synchronized double getLimit() {
+        return limit;
+    }
+
+    public synchronized long getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized long getWaiting() {
+        return waiting;
+    }
+
+    public synchronized long getInFlight(CrowdPriority priority) {
+        return classInFlight[priority.ordinal()];
+    }
+
+    public synchronized long getWaiting(CrowdPriority priority) {
+        return classWaiting[priority.ordinal()];
+    }
+}
@@ -15,13 +15,16 @@
  */
 package jp.openstandia.connector.crowd;
 
+import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.common.exceptions.ConfigurationException;
 import org.identityconnectors.framework.spi.AbstractConfiguration;
 import org.identityconnectors.framework.spi.ConfigurationProperty;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -41,11 +44,45 @@ public class CrowdConfiguration extends AbstractConfiguration {
     private String[] userAttributesSchema = new String[]{};
     private String[] groupAttributesSchema = new String[]{};
     private Set<String> ignoreGroup = new HashSet<>();
+    private String transportFormat = TRANSPORT_FORMAT_XML;
+    private boolean responseCompressionEnabled = true;
+    private int maxConcurrentRequests = 32;
+    private int latencyThresholdInMilliseconds = 3000;
+    private int maxRetries = 3;
+    private int retryBaseDelayInMilliseconds = 200;
+    private int syncOverlapInMilliseconds = 10000;
+    private String syncStrategy = SYNC_STRATEGY_UPDATED_DATE;
+    private String snapshotDirectory;
+    private boolean keysetPagingEnabled = false;
+    private int countCacheTtlInSeconds = 30;
+    private String userSearchStrategy = SEARCH_STRATEGY_BULK;
+    private String groupSearchStrategy = SEARCH_STRATEGY_BULK;
+    private int lookupBatchWindowInMilliseconds = 0;
+    private int negativeCacheTtlInSeconds = 0;
+    private int membershipBulkLoadThreshold = 1000;
+    private int nestedGroupsCacheTtlInSeconds = 300;
+    private int prefetchBufferSize = 1000;
+    private int nodeEjectionFailures = 3;
+    private int nodeEjectionTimeInSeconds = 30;
+    private boolean nodeWritePinning = false;
+    private int reservedRequestsPerPriority = 1;
+    private int interactivePriorityWeight = 3;
+    private int circuitBreakerFailures = 5;
+    private int circuitBreakerOpenTimeInSeconds = 30;
+
+    public static final String TRANSPORT_FORMAT_XML = "xml";
+    public static final String TRANSPORT_FORMAT_JSON = "json";
+    public static final String SYNC_STRATEGY_UPDATED_DATE = "updatedDate";
+    public static final String SYNC_STRATEGY_SNAPSHOT = "snapshot";
+    public static final String SEARCH_STRATEGY_BULK = "bulk";
+    public static final String SEARCH_STRATEGY_TWO_PHASE = "twoPhase";
 
     @ConfigurationProperty(
             order = 1,
             displayMessageKey = "Crowd Base URL",
-            helpMessageKey = "Crowd Base URL which is connected from this connector.",
+            helpMessageKey = "Crowd Base URL which is connected from this connector. " +
+                    "For Crowd Data Center, the URLs of the nodes can be listed separated by commas, " +
+                    "then each call is routed to the healthy node with the lowest expected latency.",
             required = true,
             confidential = false)
     public String getBaseURL() {
@@ -56,6 +93,21 @@ public class CrowdConfiguration extends AbstractConfiguration {
         this.baseURL = baseURL;
     }
 
+    /**
+     * Return the base URLs of the Crowd nodes.
+     *
+     * @return
+     */
+    public List<String> getBaseURLs() {
+        List<String> urls = new ArrayList<>();
+        for (String url : baseURL.split(",")) {
+            if (StringUtil.isNotBlank(url)) {
+                urls.add(url.trim());
+            }
+        }
+        return urls;
+    }
+
     @ConfigurationProperty(
             order = 2,
             displayMessageKey = "Crowd Application Name",
@@ -185,7 +237,8 @@ public class CrowdConfiguration extends AbstractConfiguration {
     @ConfigurationProperty(
             order = 11,
             displayMessageKey = "Http Max Connections per PoolableConnector",
-            helpMessageKey = "Http Max Connections for http client per PoolableConnector. (Default: 1)",
+            helpMessageKey = "Http Max Connections for http client per PoolableConnector. " +
+                    "It's also used as the max concurrent requests of the connector instance. (Default: 1)",
             required = false,
             confidential = false)
     public int getHttpMaxConnectionsPerPoolableConnector() {
@@ -244,9 +297,424 @@ public class CrowdConfiguration extends AbstractConfiguration {
         return ignoreGroup;
     }
 
+    @ConfigurationProperty(
+            order = 15,
+            displayMessageKey = "Transport Format",
+            helpMessageKey = "Wire format for reading users, groups and memberships from Crowd. " +
+                    "Select from \"xml\" or \"json\". (Default: xml)",
+            required = false,
+            confidential = false)
+    public String getTransportFormat() {
+        return transportFormat;
+    }
+
+    public void setTransportFormat(String transportFormat) {
+        this.transportFormat = transportFormat;
+    }
+
+    public boolean isJsonTransport() {
+        return TRANSPORT_FORMAT_JSON.equalsIgnoreCase(transportFormat);
+    }
+
+    @ConfigurationProperty(
+            order = 16,
+            displayMessageKey = "Response Compression Enabled",
+            helpMessageKey = "If true, request gzip/deflate compressed responses from Crowd and decompress them while reading. " +
+                    "It's applied to the JSON transport. (Default: true)",
+            required = false,
+            confidential = false)
+    public boolean isResponseCompressionEnabled() {
+        return responseCompressionEnabled;
+    }
+
+    public void setResponseCompressionEnabled(boolean responseCompressionEnabled) {
+        this.responseCompressionEnabled = responseCompressionEnabled;
+    }
+
+    @ConfigurationProperty(
+            order = 17,
+            displayMessageKey = "Max Concurrent Requests",
+            helpMessageKey = "Upper bound of the adaptive concurrency limit for the requests to Crowd. " +
+                    "The limit is shared by the connector instances which connect to the same Crowd application. " +
+                    "Set 0 to disable the limiter. (Default: 32)",
+            required = false,
+            confidential = false)
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    @ConfigurationProperty(
+            order = 18,
+            displayMessageKey = "Latency Threshold (in milliseconds)",
+            helpMessageKey = "If a request to Crowd takes longer than this threshold, the adaptive concurrency limit is decreased. " +
+                    "(Default: 3000)",
+            required = false,
+            confidential = false)
+    public int getLatencyThresholdInMilliseconds() {
+        return latencyThresholdInMilliseconds;
+    }
+
+    public void setLatencyThresholdInMilliseconds(int latencyThresholdInMilliseconds) {
+        this.latencyThresholdInMilliseconds = latencyThresholdInMilliseconds;
+    }
+
+    @ConfigurationProperty(
+            order = 19,
+            displayMessageKey = "Max Retries",
+            helpMessageKey = "Max number of retries for the idempotent requests (reads and attribute store) " +
+                    "when Crowd fails transiently (429, 502, 503, 504 or I/O error). Set 0 to disable retry. (Default: 3)",
+            required = false,
+            confidential = false)
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    @ConfigurationProperty(
+            order = 20,
+            displayMessageKey = "Retry Base Delay (in milliseconds)",
+            helpMessageKey = "Base delay of the exponential backoff between the retries. " +
+                    "The actual delay is randomized up to base * 2^retries. (Default: 200)",
+            required = false,
+            confidential = false)
+    public int getRetryBaseDelayInMilliseconds() {
+        return retryBaseDelayInMilliseconds;
+    }
+
+    public void setRetryBaseDelayInMilliseconds(int retryBaseDelayInMilliseconds) {
+        this.retryBaseDelayInMilliseconds = retryBaseDelayInMilliseconds;
+    }
+
+    @ConfigurationProperty(
+            order = 21,
+            displayMessageKey = "Sync Overlap (in milliseconds)",
+            helpMessageKey = "When syncing users by updated-date, the users updated within this period before the last sync token " +
+                    "are fetched again to tolerate the clock skew. (Default: 10000)",
+            required = false,
+            confidential = false)
+    public int getSyncOverlapInMilliseconds() {
+        return syncOverlapInMilliseconds;
+    }
+
+    public void setSyncOverlapInMilliseconds(int syncOverlapInMilliseconds) {
+        this.syncOverlapInMilliseconds = syncOverlapInMilliseconds;
+    }
+
+    @ConfigurationProperty(
+            order = 22,
+            displayMessageKey = "Sync Strategy",
+            helpMessageKey = "Strategy for the live sync. \"updatedDate\" fetches the users updated after the last sync token. " +
+                    "\"snapshot\" scans all users and groups, and emits only the changed and deleted objects " +
+                    "by comparing with the local snapshot. (Default: updatedDate)",
+            required = false,
+            confidential = false)
+    public String getSyncStrategy() {
+        return syncStrategy;
+    }
+
+    public void setSyncStrategy(String syncStrategy) {
+        this.syncStrategy = syncStrategy;
+    }
+
+    public boolean isSnapshotSync() {
+        return SYNC_STRATEGY_SNAPSHOT.equalsIgnoreCase(syncStrategy);
+    }
+
+    @ConfigurationProperty(
+            order = 23,
+            displayMessageKey = "Snapshot Directory",
+            helpMessageKey = "Directory for storing the local snapshot files. It's required when the sync strategy is \"snapshot\".",
+            required = false,
+            confidential = false)
+    public String getSnapshotDirectory() {
+        return snapshotDirectory;
+    }
+
+    public void setSnapshotDirectory(String snapshotDirectory) {
+        this.snapshotDirectory = snapshotDirectory;
+    }
+
+    @ConfigurationProperty(
+            order = 24,
+            displayMessageKey = "Keyset Paging Enabled",
+            helpMessageKey = "If true, full scans fetch the next page by \"name greater than the last name\" instead of the offset. " +
+                    "Each page costs the same regardless of the depth, and the concurrent changes don't skip or duplicate the objects. " +
+                    "(Default: false)",
+            required = false,
+            confidential = false)
+    public boolean isKeysetPagingEnabled() {
+        return keysetPagingEnabled;
+    }
+
+    public void setKeysetPagingEnabled(boolean keysetPagingEnabled) {
+        this.keysetPagingEnabled = keysetPagingEnabled;
+    }
+
+    @ConfigurationProperty(
+            order = 25,
+            displayMessageKey = "Count Cache TTL (in seconds)",
+            helpMessageKey = "How long the total count of the paged search is cached. The count is taken by the names-only search. " +
+                    "0 disables the cache. (Default: 30)",
+            required = false,
+            confidential = false)
+    public int getCountCacheTtlInSeconds() {
+        return countCacheTtlInSeconds;
+    }
+
+    public void setCountCacheTtlInSeconds(int countCacheTtlInSeconds) {
+        this.countCacheTtlInSeconds = countCacheTtlInSeconds;
+    }
+
+    @ConfigurationProperty(
+            order = 26,
+            displayMessageKey = "User Search Strategy",
+            helpMessageKey = "Strategy for the full scan of the users. \"bulk\" fetches the pages of the users with attributes. " +
+                    "\"twoPhase\" lists the user names first, then fetches each user in parallel with the HTTP connections " +
+                    "of this connector. (Default: bulk)",
+            required = false,
+            confidential = false)
+    public String getUserSearchStrategy() {
+        return userSearchStrategy;
+    }
+
+    public void setUserSearchStrategy(String userSearchStrategy) {
+        this.userSearchStrategy = userSearchStrategy;
+    }
+
+    public boolean isUserTwoPhaseSearch() {
+        return SEARCH_STRATEGY_TWO_PHASE.equalsIgnoreCase(userSearchStrategy);
+    }
+
+    @ConfigurationProperty(
+            order = 27,
+            displayMessageKey = "Group Search Strategy",
+            helpMessageKey = "Strategy for the full scan of the groups. \"bulk\" fetches the pages of the groups with attributes. " +
+                    "\"twoPhase\" lists the group names first, then fetches each group in parallel with the HTTP connections " +
+                    "of this connector. (Default: bulk)",
+            required = false,
+            confidential = false)
+    public String getGroupSearchStrategy() {
+        return groupSearchStrategy;
+    }
+
+    public void setGroupSearchStrategy(String groupSearchStrategy) {
+        this.groupSearchStrategy = groupSearchStrategy;
+    }
+
+    public boolean isGroupTwoPhaseSearch() {
+        return SEARCH_STRATEGY_TWO_PHASE.equalsIgnoreCase(groupSearchStrategy);
+    }
+
+    @ConfigurationProperty(
+            order = 28,
+            displayMessageKey = "Lookup Batch Window (in milliseconds)",
+            helpMessageKey = "The lookups of users or groups by name arriving within this window are sent to Crowd " +
+                    "as one search with the OR of the names. It reduces the requests of the concurrent lookups " +
+                    "such as the correlation, but delays each lookup by up to the window. 0 disables the batching. (Default: 0)",
+            required = false,
+            confidential = false)
+    public int getLookupBatchWindowInMilliseconds() {
+        return lookupBatchWindowInMilliseconds;
+    }
+
+    public void setLookupBatchWindowInMilliseconds(int lookupBatchWindowInMilliseconds) {
+        this.lookupBatchWindowInMilliseconds = lookupBatchWindowInMilliseconds;
+    }
+
+    @ConfigurationProperty(
+            order = 29,
+            displayMessageKey = "Negative Cache TTL (in seconds)",
+            helpMessageKey = "How long the lookups of the users and groups which were not found are answered as not found " +
+                    "without requesting Crowd. The objects created or deleted through this connector are reflected immediately, " +
+                    "but the objects created in Crowd directly may be reported as not found until the TTL expires. " +
+                    "0 disables the cache. (Default: 0)",
+            required = false,
+            confidential = false)
+    public int getNegativeCacheTtlInSeconds() {
+        return negativeCacheTtlInSeconds;
+    }
+
+    public void setNegativeCacheTtlInSeconds(int negativeCacheTtlInSeconds) {
+        this.negativeCacheTtlInSeconds = negativeCacheTtlInSeconds;
+    }
+
+    @ConfigurationProperty(
+            order = 30,
+            displayMessageKey = "Membership Bulk Load Threshold",
+            helpMessageKey = "When the search returns the groups attribute and the estimated number of the results is " +
+                    "this value or more, all memberships in Crowd are loaded by one request instead of the lookups per object. " +
+                    "0 disables the bulk load. (Default: 1000)",
+            required = false,
+            confidential = false)
+    public int getMembershipBulkLoadThreshold() {
+        return membershipBulkLoadThreshold;
+    }
+
+    public void setMembershipBulkLoadThreshold(int membershipBulkLoadThreshold) {
+        this.membershipBulkLoadThreshold = membershipBulkLoadThreshold;
+    }
+
+    @ConfigurationProperty(
+            order = 31,
+            displayMessageKey = "Nested Groups Cache TTL (in seconds)",
+            helpMessageKey = "How long the group hierarchy loaded for the nestedGroups attribute is reused. " +
+                    "The membership changes through this connector refresh it immediately, " +
+                    "but the changes in Crowd directly are reflected after the TTL expires. " +
+                    "0 loads the hierarchy for each read. (Default: 300)",
+            required = false,
+            confidential = false)
+    public int getNestedGroupsCacheTtlInSeconds() {
+        return nestedGroupsCacheTtlInSeconds;
+    }
+
+    public void setNestedGroupsCacheTtlInSeconds(int nestedGroupsCacheTtlInSeconds) {
+        this.nestedGroupsCacheTtlInSeconds = nestedGroupsCacheTtlInSeconds;
+    }
+
+    @ConfigurationProperty(
+            order = 32,
+            displayMessageKey = "Prefetch Buffer Size",
+            helpMessageKey = "Maximum number of the objects fetched ahead of the IDM during the search when " +
+                    "Http Max Connections per PoolableConnector is 2 or more. The fetching pauses while the buffer is full, " +
+                    "so the slow processing in the IDM doesn't pile the fetched objects up in the memory. " +
+                    "0 disables the prefetch. (Default: 1000)",
+            required = false,
+            confidential = false)
+    public int getPrefetchBufferSize() {
+        return prefetchBufferSize;
+    }
+
+    public void setPrefetchBufferSize(int prefetchBufferSize) {
+        this.prefetchBufferSize = prefetchBufferSize;
+    }
+
+    @ConfigurationProperty(
+            order = 33,
+            displayMessageKey = "Node Ejection Failures",
+            helpMessageKey = "When multiple Crowd Base URLs are configured, the node is ejected from the routing " +
+                    "after this number of the consecutive I/O errors or 5xx responses. (Default: 3)",
+            required = false,
+            confidential = false)
+    public int getNodeEjectionFailures() {
+        return nodeEjectionFailures;
+    }
+
+    public void setNodeEjectionFailures(int nodeEjectionFailures) {
+        this.nodeEjectionFailures = nodeEjectionFailures;
+    }
+
+    @ConfigurationProperty(
+            order = 34,
+            displayMessageKey = "Node Ejection Time (in seconds)",
+            helpMessageKey = "How long the ejected node is excluded from the routing. It's extended up to 8 times " +
+                    "while the node keeps failing after it's back. (Default: 30)",
+            required = false,
+            confidential = false)
+    public int getNodeEjectionTimeInSeconds() {
+        return nodeEjectionTimeInSeconds;
+    }
+
+    public void setNodeEjectionTimeInSeconds(int nodeEjectionTimeInSeconds) {
+        this.nodeEjectionTimeInSeconds = nodeEjectionTimeInSeconds;
+    }
+
+    @ConfigurationProperty(
+            order = 35,
+            displayMessageKey = "Node Write Pinning",
+            helpMessageKey = "If true, the writes and the reads shortly after them are sent to one node " +
+                    "to read the own writes consistently. The other reads are still balanced. (Default: false)",
+            required = false,
+            confidential = false)
+    public boolean isNodeWritePinning() {
+        return nodeWritePinning;
+    }
+
+    public void setNodeWritePinning(boolean nodeWritePinning) {
+        this.nodeWritePinning = nodeWritePinning;
+    }
+
+    @ConfigurationProperty(
+            order = 36,
+            displayMessageKey = "Reserved Requests per Priority",
+            helpMessageKey = "Number of the concurrent requests reserved for each priority class: the writes and " +
+                    "the point reads (interactive), and the searches for the reconciliation (bulk). " +
+                    "The other class can't use them, so the provisioning isn't blocked by the full scans. " +
+                    "It's applied within Max Concurrent Requests, up to the half of the current limit. (Default: 1)",
+            required = false,
+            confidential = false)
+    public int getReservedRequestsPerPriority() {
+        return reservedRequestsPerPriority;
+    }
+
+    public void setReservedRequestsPerPriority(int reservedRequestsPerPriority) {
+        this.reservedRequestsPerPriority = reservedRequestsPerPriority;
+    }
+
+    @ConfigurationProperty(
+            order = 37,
+            displayMessageKey = "Interactive Priority Weight",
+            helpMessageKey = "Share of the interactive requests against the bulk requests (weight 1) " +
+                    "when both are waiting for Max Concurrent Requests. (Default: 3)",
+            required = false,
+            confidential = false)
+    public int getInteractivePriorityWeight() {
+        return interactivePriorityWeight;
+    }
+
+    public void setInteractivePriorityWeight(int interactivePriorityWeight) {
+        this.interactivePriorityWeight = interactivePriorityWeight;
+    }
+
+    @ConfigurationProperty(
+            order = 38,
+            displayMessageKey = "Circuit Breaker Failures",
+            helpMessageKey = "Number of the consecutive connection failures or timeouts to open the circuit breaker. " +
+                    "While it's open, the requests to Crowd fail fast with ConnectionFailedException. " +
+                    "0 disables it. (Default: 5)",
+            required = false,
+            confidential = false)
+    public int getCircuitBreakerFailures() {
+        return circuitBreakerFailures;
+    }
+
+    public void setCircuitBreakerFailures(int circuitBreakerFailures) {
+        this.circuitBreakerFailures = circuitBreakerFailures;
+    }
+
+    @ConfigurationProperty(
+            order = 39,
+            displayMessageKey = "Circuit Breaker Open Time (in seconds)",
+            helpMessageKey = "Time to keep the circuit breaker open before probing Crowd again. (Default: 30)",
+            required = false,
+            confidential = false)
+    public int getCircuitBreakerOpenTimeInSeconds() {
+        return circuitBreakerOpenTimeInSeconds;
+    }
+
+    public void setCircuitBreakerOpenTimeInSeconds(int circuitBreakerOpenTimeInSeconds) {
+        this.circuitBreakerOpenTimeInSeconds = circuitBreakerOpenTimeInSeconds;
+    }
+
+    /**
+     * Return the key which identifies the Crowd application this configuration connects to.
+     * It's used for sharing the state between the pooled connector instances.
+     *
+     * @return
+     */
+    public String getConnectionKey() {
+        return baseURL + "|" + applicationName;
+    }
+
     @Override
     public void validate() {
-        if (baseURL == null) {
+        if (baseURL == null || getBaseURLs().isEmpty()) {
             throw new ConfigurationException("Crowd Base URL is required");
         }
         if (applicationName == null) {
@@ -255,5 +723,25 @@ public class CrowdConfiguration extends AbstractConfiguration {
         if (applicationPassword == null) {
             throw new ConfigurationException("Crowd Application Password is required");
         }
+        if (transportFormat != null && !TRANSPORT_FORMAT_XML.equalsIgnoreCase(transportFormat)
+                && !TRANSPORT_FORMAT_JSON.equalsIgnoreCase(transportFormat)) {
+            throw new ConfigurationException("Transport Format must be \"xml\" or \"json\": " + transportFormat);
+        }
+        if (syncStrategy != null && !SYNC_STRATEGY_UPDATED_DATE.equalsIgnoreCase(syncStrategy)
+                && !SYNC_STRATEGY_SNAPSHOT.equalsIgnoreCase(syncStrategy)) {
+            throw new ConfigurationException("Sync Strategy must be \"updatedDate\" or \"snapshot\": " + syncStrategy);
+        }
+        if (isSnapshotSync() && StringUtil.isBlank(snapshotDirectory)) {
+            throw new ConfigurationException("Snapshot Directory is required when the sync strategy is \"snapshot\"");
+        }
+        validateSearchStrategy("User Search Strategy", userSearchStrategy);
+        validateSearchStrategy("Group Search Strategy", groupSearchStrategy);
+    }
+
+    private void validateSearchStrategy(String label, String strategy) {
+        if (strategy != null && !SEARCH_STRATEGY_BULK.equalsIgnoreCase(strategy)
+                && !SEARCH_STRATEGY_TWO_PHASE.equalsIgnoreCase(strategy)) {
+            throw new ConfigurationException(label + " must be \"bulk\" or \"twoPhase\": " + strategy);
+        }
     }
 }
@@ -15,7 +15,12 @@
  */
 package jp.openstandia.connector.crowd;
 
+import com.atlassian.crowd.embedded.api.SearchRestriction;
 import com.atlassian.crowd.integration.rest.service.factory.RestCrowdClientFactory;
+import com.atlassian.crowd.search.query.entity.restriction.NullRestriction;
+import com.atlassian.crowd.search.query.entity.restriction.Property;
+import com.atlassian.crowd.search.query.entity.restriction.constants.GroupTermKeys;
+import com.atlassian.crowd.search.query.entity.restriction.constants.UserTermKeys;
 import com.atlassian.crowd.service.client.AuthenticationMethod;
 import com.atlassian.crowd.service.client.ClientProperties;
 import com.atlassian.crowd.service.client.CrowdClient;
@@ -31,12 +36,14 @@ import org.identityconnectors.framework.common.objects.filter.FilterTranslator;
 import org.identityconnectors.framework.spi.*;
 import org.identityconnectors.framework.spi.operations.*;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 @ConnectorClass(configurationClass = CrowdConfiguration.class, displayNameKey = "Crowd Connector")
-public class CrowdConnector implements PoolableConnector, CreateOp, UpdateDeltaOp, DeleteOp, SchemaOp, TestOp, SearchOp<CrowdFilter>, InstanceNameAware {
+public class CrowdConnector implements PoolableConnector, CreateOp, UpdateDeltaOp, DeleteOp, SchemaOp, TestOp, SearchOp<CrowdFilter>, SyncOp, InstanceNameAware {
 
     private static final Log LOG = Log.getLog(CrowdConnector.class);
 
@@ -66,8 +73,7 @@ public class CrowdConnector implements PoolableConnector, CreateOp, UpdateDeltaO
 
     protected void authenticateResource() {
         ImmutableClientProperties.Builder builder = ImmutableClientProperties.builder();
-        builder.setBaseURL(configuration.getBaseURL())
-                .setAuthenticationMethod(AuthenticationMethod.BASIC_AUTH)
+        builder.setAuthenticationMethod(AuthenticationMethod.BASIC_AUTH)
                 // This connector instance only uses 1 http connection
                 .setHttpMaxConnections("1")
                 .setHttpTimeout(Integer.toString(configuration.getConnectionTimeoutInMilliseconds()))
@@ -92,10 +98,23 @@ public class CrowdConnector implements PoolableConnector, CreateOp, UpdateDeltaO
             }
         }
 
-        ClientProperties policy = builder.build();
-        CrowdClient crowdClient = new RestCrowdClientFactory().newInstance(policy);
+        // One client per node of Crowd Data Center
+        List<String> baseURLs = configuration.getBaseURLs();
+        List<CrowdClient> crowdClients = new ArrayList<>(baseURLs.size());
+        for (String baseURL : baseURLs) {
+            ClientProperties policy = builder.setBaseURL(baseURL).build();
+            crowdClients.add(new RestCrowdClientFactory().newInstance(policy));
+        }
+        CrowdClient crowdClient = crowdClients.size() == 1 ? crowdClients.get(0) :
+                CrowdNodeRouter.of(configuration).proxy(CrowdClient.class, crowdClients);
+
+        CrowdJsonClient jsonClient = null;
+        if (configuration.isJsonTransport()) {
+            CrowdNodeRouter.RoutingHandler routing = CrowdNodeRouter.getRoutingHandler(crowdClient);
+            jsonClient = new CrowdJsonClient(configuration, routing != null ? routing.getSession() : null);
+        }
 
-        client = new CrowdRESTClient(instanceName, configuration, crowdClient);
+        client = new CrowdRESTClient(instanceName, configuration, crowdClient, jsonClient);
 
         // Verify we can access the Crowd API
         client.test();
@@ -202,36 +221,166 @@ public class CrowdConnector implements PoolableConnector, CreateOp, UpdateDeltaO
 
         boolean allowPartialAttributeValues = Utils.shouldAllowPartialAttributeValues(options);
 
-        int total = 0;
+        schemaHandler.beginQuery(returnAttributesSet,
+                () -> estimateSize(objectClass, schemaHandler, filter, options, pageSize, pageOffset));
+        try {
+            int total = 0;
+            String cookie = null;
+            // The restriction for counting, null means the search by uid or name
+            SearchRestriction restriction = null;
+
+            // Page size without the offset means the paging by the cookie
+            boolean cookiePaging = options.getPageSize() != null && pageOffset < 1;
+
+            if (filter != null) {
+                if (filter.isByUid()) {
+                    total = schemaHandler.getByUid((Uid) filter.attributeValue, resultsHandler, options,
+                            returnAttributesSet, fetchFieldSet,
+                            allowPartialAttributeValues, pageSize, pageOffset);
+                } else if (filter.isByName()) {
+                    total = schemaHandler.getByName((Name) filter.attributeValue, resultsHandler, options,
+                            returnAttributesSet, fetchFieldSet,
+                            allowPartialAttributeValues, pageSize, pageOffset);
+                } else if (filter.isRestrictable()) {
+                    restriction = filter.toSearchRestriction(getNameProperty(objectClass));
+                    if (cookiePaging) {
+                        cookie = schemaHandler.getPage(restriction, options.getPagedResultsCookie(),
+                                resultsHandler, options, returnAttributesSet, fetchFieldSet,
+                                allowPartialAttributeValues, pageSize);
+                    } else {
+                        total = schemaHandler.getByRestriction(restriction, resultsHandler, options,
+                                returnAttributesSet, fetchFieldSet,
+                                allowPartialAttributeValues, pageSize, pageOffset);
+                    }
+                } else if (filter.isByIdentifiers()) {
+                    total = schemaHandler.getByIdentifiers(filter.getIdentifiers(), resultsHandler, options,
+                            returnAttributesSet, fetchFieldSet,
+                            allowPartialAttributeValues);
+                }
+                // No result
+            } else {
+                restriction = NullRestriction.INSTANCE;
+                if (cookiePaging) {
+                    cookie = schemaHandler.getPage(restriction, options.getPagedResultsCookie(),
+                            resultsHandler, options, returnAttributesSet, fetchFieldSet,
+                            allowPartialAttributeValues, pageSize);
+                } else {
+                    total = schemaHandler.getAll(resultsHandler, options,
+                            returnAttributesSet, fetchFieldSet,
+                            allowPartialAttributeValues, pageSize, pageOffset);
+                }
+            }
 
+            if (resultsHandler instanceof SearchResultsHandler) {
+                SearchResultsHandler searchResultsHandler = (SearchResultsHandler) resultsHandler;
+
+                if (cookiePaging) {
+                    SearchResult.CountPolicy policy = options.getTotalPagedResultsPolicy();
+                    if (restriction != null && policy != null && policy != SearchResult.CountPolicy.NONE) {
+                        int count = schemaHandler.count(restriction);
+                        // The cookie has the number of the returned objects including this page
+                        int returned = cookie != null ? CrowdPagedResultsCookie.decode(cookie, restriction).position : count;
+                        searchResultsHandler.handleResult(new SearchResult(cookie, SearchResult.CountPolicy.EXACT,
+                                count, Math.max(0, count - returned)));
+                    } else {
+                        // The remaining count is unknown
+                        searchResultsHandler.handleResult(new SearchResult(cookie, -1));
+                    }
+
+                } else if (pageOffset > 0) {
+                    if (options.getTotalPagedResultsPolicy() == SearchResult.CountPolicy.NONE) {
+                        // Counting is another scan of all matched objects, skip it if not requested
+                        searchResultsHandler.handleResult(new SearchResult(null, -1));
+                    } else {
+                        int count = restriction != null ? schemaHandler.count(restriction) : total;
+                        // ConnId offset is the 1-based index of the first object in this page
+                        int remaining = Math.max(0, count - (pageOffset - 1) - total);
+
+                        SearchResult searchResult = new SearchResult(null, SearchResult.CountPolicy.EXACT, count, remaining);
+                        searchResultsHandler.handleResult(searchResult);
+                    }
+                }
+            }
+        } finally {
+            schemaHandler.endQuery();
+        }
+    }
+
+    /**
+     * Estimate the number of the objects returned by the query, enough to compare with the membership bulk load
+     * threshold. It doesn't count all objects because it would be another full scan before the query.
+     */
+    private int estimateSize(ObjectClass objectClass, ObjectHandler schemaHandler, CrowdFilter filter,
+                             OperationOptions options, int pageSize, int pageOffset) {
         if (filter != null) {
-            if (filter.isByUid()) {
-                total = schemaHandler.getByUid((Uid) filter.attributeValue, resultsHandler, options,
-                        returnAttributesSet, fetchFieldSet,
-                        allowPartialAttributeValues, pageSize, pageOffset);
-            } else if (filter.isByName()) {
-                total = schemaHandler.getByName((Name) filter.attributeValue, resultsHandler, options,
-                        returnAttributesSet, fetchFieldSet,
-                        allowPartialAttributeValues, pageSize, pageOffset);
+            if (filter.isByUid() || filter.isByName()) {
+                return 1;
+            }
+            if (!filter.isRestrictable()) {
+                return filter.isByIdentifiers() ? filter.getIdentifiers().size() : 0;
             }
-            // No result
-        } else {
-            total = schemaHandler.getAll(resultsHandler, options,
-                    returnAttributesSet, fetchFieldSet,
-                    allowPartialAttributeValues, pageSize, pageOffset);
         }
+        if (options.getPageSize() != null || pageOffset > 0) {
+            return pageSize;
+        }
+        if (filter == null) {
+            // The full scan returns all objects
+            return Integer.MAX_VALUE;
+        }
+        int threshold = configuration.getMembershipBulkLoadThreshold();
+        if (threshold <= 0) {
+            return 0;
+        }
+        // Probe whether the results reach the threshold by one names search
+        return schemaHandler.countUpTo(filter.toSearchRestriction(getNameProperty(objectClass)), threshold);
+    }
 
-        if (resultsHandler instanceof SearchResultsHandler &&
-                pageOffset > 0) {
+    private static Property<String> getNameProperty(ObjectClass objectClass) {
+        if (objectClass.equals(CrowdUserHandler.USER_OBJECT_CLASS)) {
+            return UserTermKeys.USERNAME;
+        }
+        return GroupTermKeys.NAME;
+    }
 
-            int remaining = total - (pageSize * pageOffset);
+    @Override
+    public void sync(ObjectClass objectClass, SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+        ObjectHandler schemaHandler = getSyncHandler(objectClass);
+        SchemaDefinition schema = schemaHandler.getSchema();
 
-            SearchResultsHandler searchResultsHandler = (SearchResultsHandler) resultsHandler;
-            SearchResult searchResult = new SearchResult(null, remaining);
-            searchResultsHandler.handleResult(searchResult);
+        Map<String, String> attributesToGet = Utils.createFullAttributesToGet(schema, options);
+        Set<String> returnAttributesSet = attributesToGet.keySet();
+        Set<String> fetchFieldSet = attributesToGet.values().stream().collect(Collectors.toSet());
+
+        boolean allowPartialAttributeValues = Utils.shouldAllowPartialAttributeValues(options);
+
+        try {
+            schemaHandler.sync(token, handler, options, returnAttributesSet, fetchFieldSet,
+                    allowPartialAttributeValues, configuration.getDefaultQueryPageSize());
+
+        } catch (RuntimeException e) {
+            throw processRuntimeException(e);
+        }
+    }
+
+    @Override
+    public SyncToken getLatestSyncToken(ObjectClass objectClass) {
+        try {
+            return getSyncHandler(objectClass).getLatestSyncToken();
+
+        } catch (RuntimeException e) {
+            throw processRuntimeException(e);
         }
     }
 
+    private ObjectHandler getSyncHandler(ObjectClass objectClass) {
+        ObjectHandler handler = getSchemaHandler(objectClass);
+        // Only user has updated-date in Crowd, the snapshot strategy supports all
+        if (!configuration.isSnapshotSync() && !(handler instanceof CrowdUserHandler)) {
+            throw new InvalidAttributeValueException("Unsupported object class for sync " + objectClass);
+        }
+        return handler;
+    }
+
     @Override
     public void test() {
         try {
@@ -244,6 +393,7 @@ public class CrowdConnector implements PoolableConnector, CreateOp, UpdateDeltaO
 
     @Override
     public void dispose() {
+        CrowdMetrics.of(configuration).log(instanceName);
         client.close();
         this.client = null;
         this.cachedSchema = null;
@@ -0,0 +1,94 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Short-lived cache of the object counts per search restriction.
+ * Counting requires the names-only search of all matched objects, so the result is reused for a while
+ * by the paged searches of the IDM GUI. It's shared by all connector instances which point to the same Crowd application.
+ */
+public class CrowdCountCache {
+
+    private static final CrowdRegistry<CrowdCountCache> REGISTRY = new CrowdRegistry<>();
+
+    // Avoid unbounded growth by the various restrictions
+    static final int MAX_ENTRIES = 1000;
+
+    private final long ttlNanos;
+    private final CrowdMetrics metrics;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+
+    CrowdCountCache(long ttlNanos, CrowdMetrics metrics) {
+        this.ttlNanos = ttlNanos;
+        this.metrics = metrics;
+    }
+
+    public static CrowdCountCache of(CrowdConfiguration configuration) {
+        if (configuration == null) {
+            return new CrowdCountCache(0, CrowdMetrics.of(null));
+        }
+        return REGISTRY.get(configuration.getConnectionKey(),
+                Arrays.asList(configuration.getCountCacheTtlInSeconds()),
+                () -> new CrowdCountCache(TimeUnit.SECONDS.toNanos(configuration.getCountCacheTtlInSeconds()),
+                        CrowdMetrics.of(configuration)));
+    }
+
+    public int get(String key, IntSupplier loader) {
+        if (ttlNanos <= 0) {
+            return loader.getAsInt();
+        }
+
+        long now = System.nanoTime();
+        Entry entry = cache.get(key);
+        if (entry != null && now - entry.loadedAt < ttlNanos) {
+            metrics.increment("count.cache.hit");
+            return entry.count;
+        }
+        metrics.increment("count.cache.miss");
+
+        int count = loader.getAsInt();
+
+        if (cache.size() >= MAX_ENTRIES) {
+            cache.clear();
+        }
+        cache.put(key, new Entry(count, now));
+
+        return count;
+    }
+
+    /**
+     * Discard all cached counts. It's called when this connector created or deleted the objects.
+     */
+    public void invalidate() {
+        cache.clear();
+    }
+
+    private static class Entry {
+        final int count;
+        final long loadedAt;
+
+        Entry(int count, long loadedAt) {
+            this.count = count;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor for the concurrent Crowd I/O.
+ * The tasks run on virtual threads when the JVM supports them (JDK 21+), otherwise on a bounded platform thread pool.
+ * The backend threads are shared in the JVM, and each connector instance limits its own in-flight tasks
+ * with the configured concurrency. When the concurrency is 1, the tasks run in the caller thread sequentially.
+ * The tasks submitted from a running task also run in its thread, because the nested task waiting for
+ * another permit while holding one can deadlock when all permits are held by the outer tasks.
+ */
+public class CrowdExecutor {
+
+    private static final Log LOG = Log.getLog(CrowdExecutor.class);
+
+    private static final int MAX_PLATFORM_THREADS = 64;
+
+    private static volatile ExecutorService backend;
+
+    // Set while the thread runs a task of the backend
+    private static final ThreadLocal<Boolean> IN_TASK = new ThreadLocal<>();
+
+    private final int concurrency;
+    private final Semaphore permits;
+
+    @FunctionalInterface
+    public interface Task<T, R> {
+        R run(T item) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface VoidTask<T> {
+        void run(T item) throws Exception;
+    }
+
+    public CrowdExecutor(int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+        this.permits = new Semaphore(this.concurrency);
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Return true if the tasks submitted from the current thread run in other threads.
+     * It's false when the concurrency is 1 or the current thread is already running a task.
+     *
+     * @return
+     */
+    public boolean isConcurrent() {
+        return concurrency > 1 && IN_TASK.get() == null;
+    }
+
+    /**
+     * Run the task for each item concurrently. It waits for all started tasks and throws the first failure.
+     * The remaining items are not started after a failure.
+     *
+     * @param items
+     * @param task
+     * @throws Exception
+     */
+    public <T> void forEach(List<T> items, VoidTask<T> task) throws Exception {
+        invokeAll(items, item -> {
+            task.run(item);
+            return null;
+        });
+    }
+
+    /**
+     * Run the task for each item concurrently and return the results in the same order as the items.
+     *
+     * @param items
+     * @param task
+     * @return
+     * @throws Exception
+     */
+    public <T, R> List<R> invokeAll(List<T> items, Task<T, R> task) throws Exception {
+        List<R> results = new ArrayList<>(items.size());
+
+        if (!isConcurrent() || items.size() <= 1) {
+            for (T item : items) {
+                results.add(task.run(item));
+            }
+            return results;
+        }
+
+        List<Future<R>> futures = new ArrayList<>(items.size());
+        AtomicBoolean failed = new AtomicBoolean();
+        Exception failure = null;
+        try {
+            for (T item : items) {
+                if (failed.get()) {
+                    break;
+                }
+                futures.add(submit(() -> {
+                    try {
+                        return task.run(item);
+                    } catch (Exception e) {
+                        failed.set(true);
+                        throw e;
+                    }
+                }));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        }
+
+        for (Future<R> future : futures) {
+            try {
+                R result = await(future);
+                if (failure == null) {
+                    results.add(result);
+                }
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    /**
+     * Submit the task. The caller blocks while this instance already has the maximum in-flight tasks.
+     * The task runs in the caller thread if {@link #isConcurrent()} is false.
+     *
+     * @param task
+     * @return
+     * @throws InterruptedException
+     */
+    public <R> Future<R> submit(Callable<R> task) throws InterruptedException {
+        if (!isConcurrent()) {
+            FutureTask<R> future = new FutureTask<>(task);
+            future.run();
+            return future;
+        }
+
+        permits.acquire();
+        try {
+            return getBackend().submit(() -> {
+                IN_TASK.set(Boolean.TRUE);
+                try {
+                    return task.call();
+                } finally {
+                    IN_TASK.remove();
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Run the task asynchronously and return the future of the result. Like submit, the caller blocks while this
+     * instance already has the maximum in-flight tasks, and the task runs in the caller thread when
+     * {@link #isConcurrent()} is false, so the returned future is already completed in that case.
+     * Cancelling the returned future interrupts the task.
+     *
+     * @param task
+     * @return
+     */
+    public <R> CompletableFuture<R> supplyAsync(Callable<R> task) {
+        CompletableFuture<R> result = new CompletableFuture<>();
+        try {
+            Future<R> future = submit(() -> {
+                try {
+                    R value = task.call();
+                    result.complete(value);
+                    return value;
+                } catch (Exception | Error e) {
+                    result.completeExceptionally(e);
+                    throw e;
+                }
+            });
+            result.whenComplete((value, e) -> {
+                if (result.isCancelled()) {
+                    future.cancel(true);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Wait for the result and unwrap the failure of the task.
+     *
+     * @param future
+     * @return
+     * @throws Exception
+     */
+    public static <R> R await(Future<R> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Return the failure of the task from the ExecutionException.
+     *
+     * @param e
+     * @return
+     */
+    static Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return e;
+    }
+
+    private static ExecutorService getBackend() {
+        ExecutorService es = backend;
+        if (es == null) {
+            synchronized (CrowdExecutor.class) {
+                es = backend;
+                if (es == null) {
+                    es = createBackend();
+                    backend = es;
+                }
+            }
+        }
+        return es;
+    }
+
+    private static ExecutorService createBackend() {
+        try {
+            // Use reflection because this connector is built for JDK 11
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService es = (ExecutorService) method.invoke(null);
+            LOG.info("Crowd connector uses virtual threads for concurrent requests");
+            return es;
+
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // JDK 20 or older
+        }
+
+        int size = Math.min(MAX_PLATFORM_THREADS, Math.max(8, Runtime.getRuntime().availableProcessors() * 4));
+        AtomicInteger seq = new AtomicInteger();
+
+        ThreadPoolExecutor es = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "crowd-connector-io-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        es.allowCoreThreadTimeOut(true);
+
+        LOG.info("Crowd connector uses the platform thread pool (size: {0}) for concurrent requests", size);
+        return es;
+    }
+}
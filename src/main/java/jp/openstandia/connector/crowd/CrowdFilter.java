@@ -15,35 +15,169 @@
  */
 package jp.openstandia.connector.crowd;
 
+import com.atlassian.crowd.embedded.api.SearchRestriction;
+import com.atlassian.crowd.search.query.entity.restriction.*;
+import com.atlassian.crowd.search.query.entity.restriction.constants.UserTermKeys;
 import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeUtil;
 import org.identityconnectors.framework.common.objects.Name;
 import org.identityconnectors.framework.common.objects.Uid;
 
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Filter for Crowd search. It's a single condition, or AND/OR of the filters.
+ */
 public class CrowdFilter {
+    static final String UPDATED_DATE = "updated-date";
+    static final String CREATED_DATE = "created-date";
+
     final String attributeName;
     final FilterType filterType;
     final Attribute attributeValue;
+    // Only for AND/OR
+    final List<CrowdFilter> children;
 
     public CrowdFilter(String attributeName, FilterType filterType, Attribute attributeValue) {
         this.attributeName = attributeName;
         this.filterType = filterType;
         this.attributeValue = attributeValue;
+        this.children = Collections.emptyList();
+    }
+
+    private CrowdFilter(FilterType filterType, List<CrowdFilter> children) {
+        this.attributeName = null;
+        this.filterType = filterType;
+        this.attributeValue = null;
+        this.children = Collections.unmodifiableList(children);
+    }
+
+    public static CrowdFilter and(CrowdFilter left, CrowdFilter right) {
+        return combine(FilterType.AND, left, right);
+    }
+
+    public static CrowdFilter or(CrowdFilter left, CrowdFilter right) {
+        return combine(FilterType.OR, left, right);
+    }
+
+    private static CrowdFilter combine(FilterType filterType, CrowdFilter left, CrowdFilter right) {
+        // Flatten the nested same logic, e.g. Or(Or(a, b), c) to Or(a, b, c)
+        List<CrowdFilter> children = new ArrayList<>();
+        for (CrowdFilter filter : new CrowdFilter[]{left, right}) {
+            if (filter.filterType == filterType) {
+                children.addAll(filter.children);
+            } else {
+                children.add(filter);
+            }
+        }
+        return new CrowdFilter(filterType, children);
     }
 
     public boolean isByName() {
-        return attributeName.equals(Name.NAME) && filterType == FilterType.EXACT_MATCH;
+        return Name.NAME.equals(attributeName) && filterType == FilterType.EXACT_MATCH;
     }
 
     public boolean isByUid() {
-        return attributeName.equals(Uid.NAME) && filterType == FilterType.EXACT_MATCH;
+        return Uid.NAME.equals(attributeName) && filterType == FilterType.EXACT_MATCH;
+    }
+
+    public boolean isByDate() {
+        return (UPDATED_DATE.equals(attributeName) || CREATED_DATE.equals(attributeName)) &&
+                (filterType == FilterType.GREATER_THAN || filterType == FilterType.GREATER_THAN_OR_EQUAL);
+    }
+
+    public boolean isComposite() {
+        return filterType == FilterType.AND || filterType == FilterType.OR;
+    }
+
+    /**
+     * Return true if the filter can be converted to Crowd's search restriction.
+     * The uid isn't searchable because the uid of the user is the key (external ID).
+     *
+     * @return
+     */
+    public boolean isRestrictable() {
+        if (isComposite()) {
+            return children.stream().allMatch(CrowdFilter::isRestrictable);
+        }
+        return isByName() || isByDate();
+    }
+
+    /**
+     * Return true if the filter is OR of the uids or names, which can be fetched by the point lookups.
+     *
+     * @return
+     */
+    public boolean isByIdentifiers() {
+        return filterType == FilterType.OR && children.stream().allMatch(c -> c.isByUid() || c.isByName());
+    }
+
+    /**
+     * Return the uids and names of the OR filter.
+     *
+     * @return
+     */
+    public List<Attribute> getIdentifiers() {
+        if (!isByIdentifiers()) {
+            throw new IllegalStateException("Not OR of the identifiers: " + this);
+        }
+        return children.stream().map(c -> c.attributeValue).collect(Collectors.toList());
+    }
+
+    /**
+     * Convert the filter to Crowd's search restriction.
+     * Crowd only supports "greater than" for the date, so "greater than or equal" is converted to
+     * "greater than (date - 1ms)".
+     *
+     * @param nameProperty the property of the name for the object class
+     * @return
+     */
+    public SearchRestriction toSearchRestriction(Property<String> nameProperty) {
+        if (!isRestrictable()) {
+            throw new IllegalStateException("Not supported filter for search restriction: " + this);
+        }
+        if (isComposite()) {
+            SearchRestriction[] restrictions = children.stream()
+                    .map(c -> c.toSearchRestriction(nameProperty))
+                    .toArray(SearchRestriction[]::new);
+            return new BooleanRestrictionImpl(filterType == FilterType.AND ?
+                    BooleanRestriction.BooleanLogic.AND : BooleanRestriction.BooleanLogic.OR, restrictions);
+        }
+        if (isByName()) {
+            return new TermRestriction<>(nameProperty, MatchMode.EXACTLY_MATCHES, AttributeUtil.getAsStringValue(attributeValue));
+        }
+
+        ZonedDateTime value = (ZonedDateTime) AttributeUtil.getSingleValue(attributeValue);
+        long time = value.toInstant().toEpochMilli();
+        if (filterType == FilterType.GREATER_THAN_OR_EQUAL) {
+            time--;
+        }
+
+        return new TermRestriction<>(attributeName.equals(UPDATED_DATE) ? UserTermKeys.UPDATED_DATE : UserTermKeys.CREATED_DATE,
+                MatchMode.GREATER_THAN, new Date(time));
     }
 
     public enum FilterType {
-        EXACT_MATCH;
+        EXACT_MATCH,
+        GREATER_THAN,
+        GREATER_THAN_OR_EQUAL,
+        AND,
+        OR;
     }
 
     @Override
     public String toString() {
+        if (isComposite()) {
+            return "CrowdFilter{" +
+                    "filterType=" + filterType +
+                    ", children=" + children +
+                    '}';
+        }
         return "CrowdFilter{" +
                 "attributeName='" + attributeName + '\'' +
                 ", filterType=" + filterType +
@@ -18,7 +18,12 @@ package jp.openstandia.connector.crowd;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.objects.*;
 import org.identityconnectors.framework.common.objects.filter.AbstractFilterTranslator;
+import org.identityconnectors.framework.common.objects.filter.ContainsAllValuesFilter;
 import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+import org.identityconnectors.framework.common.objects.filter.GreaterThanFilter;
+import org.identityconnectors.framework.common.objects.filter.GreaterThanOrEqualFilter;
+
+import java.time.ZonedDateTime;
 
 public class CrowdFilterTranslator extends AbstractFilterTranslator<CrowdFilter> {
 
@@ -57,4 +62,89 @@ public class CrowdFilterTranslator extends AbstractFilterTranslator<CrowdFilter>
         // Not supported searching by other attributes
         return null;
     }
+
+    @Override
+    protected CrowdFilter createContainsAllValuesExpression(ContainsAllValuesFilter filter, boolean not) {
+        Attribute attr = filter.getAttribute();
+        // __UID__ and __NAME__ are single-valued, so containing the single value is the same as the equality
+        if (attr.getValue() == null || attr.getValue().size() != 1) {
+            return null;
+        }
+        return createEqualsExpression(new EqualsFilter(attr), not);
+    }
+
+    @Override
+    protected CrowdFilter createOrExpression(CrowdFilter leftExpression, CrowdFilter rightExpression) {
+        CrowdFilter filter = CrowdFilter.or(toSearchable(leftExpression), toSearchable(rightExpression));
+
+        // The OR of the user's uids can't be searched, but can be fetched by the point lookups
+        if (filter.isRestrictable() || filter.isByIdentifiers()) {
+            return filter;
+        }
+        // Fall back to the full scan
+        return null;
+    }
+
+    @Override
+    protected CrowdFilter createAndExpression(CrowdFilter leftExpression, CrowdFilter rightExpression) {
+        CrowdFilter filter = CrowdFilter.and(toSearchable(leftExpression), toSearchable(rightExpression));
+        if (filter.isRestrictable()) {
+            return filter;
+        }
+
+        // Use the lookups by the identifiers, then the framework filters the results by the other condition
+        if (isLookup(leftExpression)) {
+            return leftExpression;
+        }
+        if (isLookup(rightExpression)) {
+            return rightExpression;
+        }
+        return null;
+    }
+
+    private boolean isLookup(CrowdFilter filter) {
+        return filter.isByUid() || filter.isByName() || filter.isByIdentifiers();
+    }
+
+    /**
+     * The uid of the group is the name, so it can be searched as the name in AND/OR.
+     *
+     * @param filter
+     * @return
+     */
+    private CrowdFilter toSearchable(CrowdFilter filter) {
+        if (objectClass.equals(CrowdGroupHandler.GROUP_OBJECT_CLASS) && filter.isByUid()) {
+            return new CrowdFilter(Name.NAME, CrowdFilter.FilterType.EXACT_MATCH,
+                    new Name(((Uid) filter.attributeValue).getUidValue()));
+        }
+        return filter;
+    }
+
+    @Override
+    protected CrowdFilter createGreaterThanExpression(GreaterThanFilter filter, boolean not) {
+        return createDateExpression(filter.getAttribute(), CrowdFilter.FilterType.GREATER_THAN, not);
+    }
+
+    @Override
+    protected CrowdFilter createGreaterThanOrEqualExpression(GreaterThanOrEqualFilter filter, boolean not) {
+        return createDateExpression(filter.getAttribute(), CrowdFilter.FilterType.GREATER_THAN_OR_EQUAL, not);
+    }
+
+    private CrowdFilter createDateExpression(Attribute attr, CrowdFilter.FilterType filterType, boolean not) {
+        if (not) {
+            return null;
+        }
+        // Only user has the searchable dates in Crowd
+        if (!objectClass.equals(CrowdUserHandler.USER_OBJECT_CLASS)) {
+            return null;
+        }
+        if (!attr.getName().equals(CrowdFilter.UPDATED_DATE) && !attr.getName().equals(CrowdFilter.CREATED_DATE)) {
+            return null;
+        }
+        if (!(AttributeUtil.getSingleValue(attr) instanceof ZonedDateTime)) {
+            return null;
+        }
+
+        return new CrowdFilter(attr.getName(), filterType, attr);
+    }
 }
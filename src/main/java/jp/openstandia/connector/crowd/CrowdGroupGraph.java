@@ -0,0 +1,212 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import com.atlassian.crowd.model.group.Membership;
+import org.identityconnectors.common.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Immutable snapshot of the group hierarchy in Crowd for resolving the nested (transitive) memberships.
+ * It's built on the membership store, which numbers the groups by int ids and keeps the direct parents
+ * as the adjacency arrays.
+ * The transitive closure is precomputed per strongly connected component when it's built,
+ * so the groups in a cycle share the same ancestors and the lookups don't walk the hierarchy.
+ */
+public class CrowdGroupGraph {
+
+    private static final Log LOG = Log.getLog(CrowdGroupGraph.class);
+
+    private final CrowdMembershipStore store;
+
+    // Index: group id, Value: the strongly connected component
+    private final int[] components;
+    // Index: component, Value: sorted ids of all ancestor groups of the component
+    private final int[][] closures;
+    // Ids of the groups in the cycles
+    private final BitSet cyclic;
+
+    CrowdGroupGraph(CrowdMembershipStore store) {
+        this.store = store;
+        this.components = new int[store.getGroupCount()];
+        this.cyclic = new BitSet(store.getGroupCount());
+        this.closures = computeClosures();
+
+        if (!cyclic.isEmpty()) {
+            LOG.warn("Detected the cycles in the group hierarchy: {0}", getCyclicGroups());
+        }
+    }
+
+    /**
+     * Build the graph from the direct memberships of all groups.
+     *
+     * @param memberships
+     * @return
+     */
+    public static CrowdGroupGraph build(Collection<Membership> memberships) {
+        return new CrowdGroupGraph(CrowdMembershipStore.build(memberships));
+    }
+
+    public CrowdMembershipStore getStore() {
+        return store;
+    }
+
+    /**
+     * Compute the transitive closure by Tarjan's algorithm (iterative to avoid the stack overflow by the deep hierarchy).
+     * The components are completed in the reverse topological order, so the closures of the ancestor components
+     * are always available when the component is completed.
+     */
+    private int[][] computeClosures() {
+        int n = store.getGroupCount();
+        int[] index = new int[n];
+        int[] low = new int[n];
+        int[] edge = new int[n];
+        boolean[] onStack = new boolean[n];
+        int[] stack = new int[n];
+        int[] path = new int[n];
+        int sp = 0;
+        int counter = 0;
+
+        Arrays.fill(index, -1);
+        Arrays.fill(components, -1);
+        List<int[]> closures = new ArrayList<>();
+
+        for (int root = 0; root < n; root++) {
+            if (index[root] >= 0) {
+                continue;
+            }
+            int depth = 0;
+            index[root] = low[root] = counter++;
+            stack[sp++] = root;
+            onStack[root] = true;
+            path[depth++] = root;
+
+            while (depth > 0) {
+                int v = path[depth - 1];
+                int[] parents = store.getParentGroupIds(v);
+                if (edge[v] < parents.length) {
+                    int w = parents[edge[v]++];
+                    if (index[w] < 0) {
+                        index[w] = low[w] = counter++;
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                        path[depth++] = w;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+
+                depth--;
+                if (depth > 0) {
+                    int u = path[depth - 1];
+                    low[u] = Math.min(low[u], low[v]);
+                }
+                if (low[v] != index[v]) {
+                    continue;
+                }
+
+                // v is the root of the component, pop the members
+                int component = closures.size();
+                int end = sp;
+                int w;
+                do {
+                    w = stack[--sp];
+                    onStack[w] = false;
+                    components[w] = component;
+                } while (w != v);
+
+                BitSet reach = new BitSet(n);
+                for (int i = sp; i < end; i++) {
+                    for (int p : store.getParentGroupIds(stack[i])) {
+                        reach.set(p);
+                        if (components[p] != component) {
+                            for (int a : closures.get(components[p])) {
+                                reach.set(a);
+                            }
+                        }
+                    }
+                }
+                // The members reach themselves only if they are in a cycle
+                if (reach.get(v)) {
+                    for (int i = sp; i < end; i++) {
+                        cyclic.set(stack[i]);
+                    }
+                }
+                closures.add(reach.isEmpty() ? CrowdMembershipStore.EMPTY : reach.stream().toArray());
+            }
+        }
+
+        return closures.toArray(new int[0][]);
+    }
+
+    public int size() {
+        return store.getGroupCount();
+    }
+
+    public boolean hasCycle() {
+        return !cyclic.isEmpty();
+    }
+
+    public List<String> getCyclicGroups() {
+        List<String> results = new ArrayList<>();
+        cyclic.stream().forEach(i -> results.add(store.getGroupName(i)));
+        return results;
+    }
+
+    /**
+     * Return all groups which the group belongs to directly or indirectly, excluding itself.
+     *
+     * @param groupName
+     * @return
+     */
+    public Stream<String> getNestedGroupsForGroup(String groupName) {
+        int id = store.getGroupId(groupName);
+        if (id < 0) {
+            return Stream.empty();
+        }
+        return Arrays.stream(closures[components[id]])
+                .filter(i -> i != id)
+                .mapToObj(store::getGroupName);
+    }
+
+    /**
+     * Return all groups which the user belongs to directly or indirectly.
+     *
+     * @param userName
+     * @return
+     */
+    public Stream<String> getNestedGroupsForUser(String userName) {
+        int[] direct = store.getGroupIdsForUser(userName);
+        if (direct.length == 0) {
+            return Stream.empty();
+        }
+        BitSet groups = new BitSet(store.getGroupCount());
+        for (int g : direct) {
+            groups.set(g);
+            for (int a : closures[components[g]]) {
+                groups.set(a);
+            }
+        }
+        return groups.stream().mapToObj(store::getGroupName);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import com.atlassian.crowd.model.group.Membership;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Cache of the group hierarchy for the nestedGroups attribute.
+ * The hierarchy is loaded by the bulk membership request and reused until the TTL expires or the memberships are
+ * changed through this connector. It's shared by all connector instances which point to the same Crowd application.
+ */
+public class CrowdGroupGraphCache {
+
+    private static final CrowdRegistry<CrowdGroupGraphCache> REGISTRY = new CrowdRegistry<>();
+
+    private final long ttlNanos;
+    private final CrowdMetrics metrics;
+
+    private volatile CrowdGroupGraph graph;
+    private volatile long loadedAt;
+    // Incremented by the invalidation, so the graph loaded before it isn't cached
+    private volatile long generation;
+
+    CrowdGroupGraphCache(long ttlNanos, CrowdMetrics metrics) {
+        this.ttlNanos = ttlNanos;
+        this.metrics = metrics;
+    }
+
+    public static CrowdGroupGraphCache of(CrowdConfiguration configuration) {
+        if (configuration == null) {
+            return new CrowdGroupGraphCache(0, CrowdMetrics.of(null));
+        }
+        return REGISTRY.get(configuration.getConnectionKey(),
+                Arrays.asList(configuration.getNestedGroupsCacheTtlInSeconds()),
+                () -> {
+                    CrowdGroupGraphCache cache = new CrowdGroupGraphCache(
+                            TimeUnit.SECONDS.toNanos(configuration.getNestedGroupsCacheTtlInSeconds()),
+                            CrowdMetrics.of(configuration));
+                    cache.metrics.gauge("group.graph.size", () -> {
+                        CrowdGroupGraph current = cache.graph;
+                        return current != null ? current.size() : 0;
+                    });
+                    return cache;
+                });
+    }
+
+    /**
+     * Return the cached graph, or load the memberships and build the graph if it's expired.
+     * The concurrent callers wait for the one loading.
+     *
+     * @param loader
+     * @return
+     */
+    public CrowdGroupGraph get(Supplier<List<Membership>> loader) {
+        CrowdGroupGraph current = graph;
+        if (current != null && System.nanoTime() - loadedAt < ttlNanos) {
+            return current;
+        }
+
+        synchronized (this) {
+            current = graph;
+            if (current != null && System.nanoTime() - loadedAt < ttlNanos) {
+                return current;
+            }
+
+            long startGeneration = generation;
+            metrics.increment("group.graph.load");
+            current = CrowdGroupGraph.build(loader.get());
+
+            if (ttlNanos > 0 && startGeneration == generation) {
+                loadedAt = System.nanoTime();
+                graph = current;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Discard the cached graph. It's called when the memberships were changed.
+     */
+    public void invalidate() {
+        generation++;
+        graph = null;
+    }
+}
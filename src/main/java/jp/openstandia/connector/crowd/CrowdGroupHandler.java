@@ -15,15 +15,21 @@
  */
 package jp.openstandia.connector.crowd;
 
+import com.atlassian.crowd.embedded.api.SearchRestriction;
 import com.atlassian.crowd.integration.rest.entity.GroupEntity;
 import jp.openstandia.connector.util.ObjectHandler;
 import jp.openstandia.connector.util.SchemaDefinition;
 import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
 import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.*;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.IntSupplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -40,15 +46,59 @@ public class CrowdGroupHandler implements ObjectHandler {
     private final CrowdConfiguration configuration;
     private final CrowdRESTClient client;
     private final SchemaDefinition schema;
+    // Resolves the groups attribute during the query
+    private CrowdMembershipResolver membershipResolver;
 
     public CrowdGroupHandler(CrowdConfiguration configuration, CrowdRESTClient client,
                              SchemaDefinition schema) {
         this.configuration = configuration;
         this.client = client;
-        this.schema = schema;
+        // The schema definition is shared by the instances, bind this instance's client for reading the association
+        this.schema = schema.bind("groups", (GroupEntity source) ->
+                filterGroups(configuration, getGroupsForGroup(source.getName())))
+                .bind("nestedGroups", (GroupEntity source) ->
+                        filterGroups(configuration, getGroupGraph().getNestedGroupsForGroup(source.getName())))
+                .bind("members", (GroupEntity source) -> getMembersOfGroup(source.getName()));
     }
 
-    public static SchemaDefinition.Builder createSchema(CrowdConfiguration configuration, CrowdRESTClient client) {
+    private Stream<String> getGroupsForGroup(String name) {
+        CrowdMembershipResolver resolver = membershipResolver;
+        if (resolver != null) {
+            return resolver.getGroupsForGroup(name);
+        }
+        return client.getGroupsForGroup(name, configuration.getDefaultQueryPageSize());
+    }
+
+    private Stream<String> getMembersOfGroup(String name) {
+        CrowdMembershipResolver resolver = membershipResolver;
+        if (resolver != null) {
+            return resolver.getMembersOfGroup(name);
+        }
+        return client.getUsersOfGroup(name, configuration.getDefaultQueryPageSize());
+    }
+
+    private CrowdGroupGraph getGroupGraph() {
+        CrowdMembershipResolver resolver = membershipResolver;
+        if (resolver != null) {
+            return resolver.getGroupGraph();
+        }
+        return client.getGroupGraph();
+    }
+
+    @Override
+    public void beginQuery(Set<String> returnAttributesSet, IntSupplier estimatedSize) {
+        if (returnAttributesSet.contains("groups") || returnAttributesSet.contains("nestedGroups")
+                || returnAttributesSet.contains("members")) {
+            membershipResolver = CrowdMembershipResolver.create(configuration, client, estimatedSize.getAsInt());
+        }
+    }
+
+    @Override
+    public void endQuery() {
+        membershipResolver = null;
+    }
+
+    public static SchemaDefinition.Builder createSchema(CrowdConfiguration configuration) {
         SchemaDefinition.Builder<CrowdGroupModel, CrowdGroupModel, GroupEntity> sb
                 = SchemaDefinition.newBuilder(GROUP_OBJECT_CLASS, CrowdGroupModel.class, GroupEntity.class);
 
@@ -131,10 +181,31 @@ public class CrowdGroupHandler implements ObjectHandler {
                 (source, dest) -> dest.setGroups(source),
                 (add, dest) -> dest.addGroups(add),
                 (remove, dest) -> dest.removeGroups(remove),
-                (source) -> filterGroups(configuration, client.getGroupsForGroup(source.getName(), configuration.getDefaultQueryPageSize())),
+                // Bound per instance in the constructor
+                null,
                 null,
                 NOT_RETURNED_BY_DEFAULT
         );
+        sb.addAsMultiple("members",
+                SchemaDefinition.Types.STRING,
+                (source, dest) -> dest.setMembers(source),
+                (add, dest) -> dest.addMembers(add),
+                (remove, dest) -> dest.removeMembers(remove),
+                // Bound per instance in the constructor
+                null,
+                null,
+                NOT_RETURNED_BY_DEFAULT
+        );
+        sb.addAsMultiple("nestedGroups",
+                SchemaDefinition.Types.STRING,
+                null,
+                null,
+                null,
+                // Bound per instance in the constructor
+                null,
+                null,
+                NOT_CREATABLE, NOT_UPDATEABLE, NOT_RETURNED_BY_DEFAULT
+        );
 
         LOGGER.ok("The constructed group schema");
 
@@ -156,6 +227,9 @@ public class CrowdGroupHandler implements ObjectHandler {
         if (mapped.addGroups != null) {
             client.addGroupToGroup(newUid.getNameHintValue(), mapped.addGroups);
         }
+        if (mapped.addMembers != null) {
+            client.addUsersToGroup(newUid.getNameHintValue(), mapped.addMembers);
+        }
         // We need to call another API to add group attributes
         if (mapped.hasAttributesChange) {
             client.updateGroupAttributes(newUid.getNameHintValue(), mapped.updateAttributes);
@@ -185,6 +259,12 @@ public class CrowdGroupHandler implements ObjectHandler {
         if (dest.removeGroups != null) {
             client.deleteGroupFromGroup(current.getName(), dest.removeGroups);
         }
+        if (dest.addMembers != null) {
+            client.addUsersToGroup(current.getName(), dest.addMembers);
+        }
+        if (dest.removeMembers != null) {
+            client.deleteUsersFromGroup(current.getName(), dest.removeMembers);
+        }
 
         return null;
     }
@@ -230,6 +310,22 @@ public class CrowdGroupHandler implements ObjectHandler {
         return 0;
     }
 
+    @Override
+    public int getByIdentifiers(List<Attribute> identifiers, ResultsHandler resultsHandler, OperationOptions options,
+                                Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
+                                boolean allowPartialAttributeValues) {
+        List<GroupEntity> groups = client.getGroupsByIdentifiers(identifiers, options, fetchFieldsSet);
+
+        int count = 0;
+        for (GroupEntity group : groups) {
+            count++;
+            if (!resultsHandler.handle(toConnectorObject(schema, group, returnAttributesSet, allowPartialAttributeValues))) {
+                break;
+            }
+        }
+        return count;
+    }
+
     @Override
     public int getAll(ResultsHandler resultsHandler, OperationOptions options,
                       Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
@@ -237,4 +333,128 @@ public class CrowdGroupHandler implements ObjectHandler {
         return client.getGroups((g) -> resultsHandler.handle(toConnectorObject(schema, g, returnAttributesSet, allowPartialAttributeValues)),
                 options, fetchFieldsSet, pageSize, pageOffset);
     }
+
+    @Override
+    public String getPage(SearchRestriction restriction, String pagedResultsCookie, ResultsHandler resultsHandler, OperationOptions options,
+                          Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
+                          boolean allowPartialAttributeValues, int pageSize) {
+        CrowdPagedResultsCookie current = CrowdPagedResultsCookie.decode(pagedResultsCookie, restriction);
+        int[] count = new int[]{current != null ? current.position : 0};
+
+        String nextName = client.getGroupsPage(restriction, current != null ? current.lastName : null, (g) -> {
+            count[0]++;
+            return resultsHandler.handle(toConnectorObject(schema, g, returnAttributesSet, allowPartialAttributeValues));
+        }, options, fetchFieldsSet, pageSize);
+
+        if (nextName == null) {
+            return null;
+        }
+        return new CrowdPagedResultsCookie(nextName, count[0]).encode(restriction);
+    }
+
+    @Override
+    public int count(SearchRestriction restriction) {
+        return client.countGroups(restriction);
+    }
+
+    @Override
+    public int countUpTo(SearchRestriction restriction, int limit) {
+        return client.countGroupsUpTo(restriction, limit);
+    }
+
+    @Override
+    public int getByRestriction(SearchRestriction restriction, ResultsHandler resultsHandler, OperationOptions options,
+                                Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
+                                boolean allowPartialAttributeValues, int pageSize, int pageOffset) {
+        return client.getGroups(restriction, (g) -> resultsHandler.handle(toConnectorObject(schema, g, returnAttributesSet, allowPartialAttributeValues)),
+                options, fetchFieldsSet, pageSize, pageOffset);
+    }
+
+    /**
+     * Scan all groups, and notify only the changed groups as CREATE_OR_UPDATE and the disappeared groups as DELETE
+     * by comparing the content hash with the local snapshot. Crowd doesn't have the updated-date for the group,
+     * so only the snapshot strategy is supported.
+     *
+     * @param token
+     * @param resultsHandler
+     * @param options
+     * @param returnAttributesSet
+     * @param fetchFieldsSet
+     * @param allowPartialAttributeValues
+     * @param pageSize
+     */
+    @Override
+    public void sync(SyncToken token, SyncResultsHandler resultsHandler, OperationOptions options,
+                     Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
+                     boolean allowPartialAttributeValues, int pageSize) {
+        if (!configuration.isSnapshotSync()) {
+            throw new InvalidAttributeValueException("Unsupported object class for sync by updated-date " + GROUP_OBJECT_CLASS);
+        }
+
+        CrowdSnapshotStore.Session session = CrowdSnapshotStore.of(configuration, GROUP_OBJECT_CLASS).begin(token);
+        boolean[] completed = new boolean[]{true};
+
+        client.getGroups((g) -> {
+            // The search results are GroupEntity
+            if (!session.changed(g.getName(), g.getName(), CrowdSnapshotStore.hash((GroupEntity) g))) {
+                return true;
+            }
+
+            ConnectorObject object = toConnectorObject(schema, g, returnAttributesSet, allowPartialAttributeValues);
+            SyncDelta delta = new SyncDeltaBuilder()
+                    .setDeltaType(SyncDeltaType.CREATE_OR_UPDATE)
+                    .setToken(session.getToken())
+                    .setUid(object.getUid())
+                    .setObject(object)
+                    .build();
+
+            completed[0] = resultsHandler.handle(delta);
+            return completed[0];
+        }, options, fetchFieldsSet, pageSize, 0);
+
+        if (!completed[0]) {
+            return;
+        }
+
+        Map<String, String> deletedGroups = session.deleted();
+        if (!deletedGroups.isEmpty()) {
+            // The deleted groups in Crowd change the group hierarchy
+            client.invalidateGroupGraph();
+        }
+        for (Map.Entry<String, String> deleted : deletedGroups.entrySet()) {
+            SyncDelta delta = new SyncDeltaBuilder()
+                    .setDeltaType(SyncDeltaType.DELETE)
+                    .setToken(session.getToken())
+                    .setObjectClass(GROUP_OBJECT_CLASS)
+                    .setUid(new Uid(deleted.getKey(), new Name(deleted.getValue())))
+                    .build();
+
+            if (!resultsHandler.handle(delta)) {
+                return;
+            }
+        }
+
+        session.commit();
+
+        if (resultsHandler instanceof SyncTokenResultsHandler) {
+            ((SyncTokenResultsHandler) resultsHandler).handleResult(session.getToken());
+        }
+    }
+
+    @Override
+    public SyncToken getLatestSyncToken() {
+        if (!configuration.isSnapshotSync()) {
+            throw new InvalidAttributeValueException("Unsupported object class for sync by updated-date " + GROUP_OBJECT_CLASS);
+        }
+
+        // Take the baseline snapshot without notifying
+        CrowdSnapshotStore.Session session = CrowdSnapshotStore.of(configuration, GROUP_OBJECT_CLASS).begin(null);
+        client.getGroups((g) -> {
+            session.changed(g.getName(), g.getName(), CrowdSnapshotStore.hash((GroupEntity) g));
+            return true;
+        }, null, Collections.emptySet(), configuration.getDefaultQueryPageSize(), 0);
+        session.commit();
+
+        return session.getToken();
+    }
 }
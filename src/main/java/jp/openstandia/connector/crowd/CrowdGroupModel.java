@@ -32,6 +32,8 @@ public class CrowdGroupModel {
     public boolean hasAttributesChange;
     public List<String> addGroups;
     public List<String> removeGroups;
+    public List<String> addMembers;
+    public List<String> removeMembers;
 
     public CrowdGroupModel(ImmutableGroupWithAttributes.Builder builder) {
         this.group = builder;
@@ -93,6 +95,24 @@ public class CrowdGroupModel {
         this.removeGroups.addAll(groups);
     }
 
+    public void setMembers(List<String> members) {
+        this.addMembers = members;
+    }
+
+    public void addMembers(List<String> members) {
+        if (this.addMembers == null) {
+            this.addMembers = new ArrayList<>();
+        }
+        this.addMembers.addAll(members);
+    }
+
+    public void removeMembers(List<String> members) {
+        if (this.removeMembers == null) {
+            this.removeMembers = new ArrayList<>();
+        }
+        this.removeMembers.addAll(members);
+    }
+
     // For create/update single attribute
     public void replaceAttribute(String attrName, String value) {
         this.hasAttributesChange = true;
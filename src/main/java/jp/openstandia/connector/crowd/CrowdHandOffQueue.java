@@ -0,0 +1,168 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded hand-off queue between the producer which fetches the pages from Crowd and the handler thread.
+ * The producer runs ahead of the handler up to the budget of the objects, then it blocks until the handler
+ * takes them. So the slow handler doesn't pile the fetched pages on the heap.
+ * The metrics show which side is the bottleneck:
+ * <ul>
+ *     <li>handoff.depth: the objects waiting for the handler now</li>
+ *     <li>handoff.stall, handoff.stall.millis: the producer blocked by the full queue (the handler is slow)</li>
+ *     <li>handoff.wait.millis: the handler waited for the producer (Crowd is slow)</li>
+ * </ul>
+ * It's used by one handler thread only.
+ */
+public class CrowdHandOffQueue<T> implements AutoCloseable {
+
+    // Marks the end of the objects. It doesn't consume the budget, so it never blocks the producer.
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final Semaphore budget;
+    private final CrowdMetrics metrics;
+
+    private volatile Exception failure;
+    private volatile boolean closed;
+    private Future<?> producer;
+
+    @FunctionalInterface
+    public interface Producer<T> {
+        /**
+         * Fetch the objects and pass them to the sink until the sink returns false.
+         *
+         * @param sink
+         * @throws Exception
+         */
+        void produce(CrowdQueryHandler<T> sink) throws Exception;
+    }
+
+    public CrowdHandOffQueue(int capacity, CrowdMetrics metrics) {
+        this.budget = new Semaphore(Math.max(1, capacity));
+        this.metrics = metrics;
+    }
+
+    /**
+     * Start the producer in the executor. The executor must run it in another thread
+     * ({@link CrowdExecutor#isConcurrent()}), otherwise the producer blocks forever on the full queue.
+     *
+     * @param executor
+     * @param producer
+     * @throws InterruptedException
+     */
+    public void start(CrowdExecutor executor, Producer<T> producer) throws InterruptedException {
+        this.producer = executor.submit(() -> {
+            try {
+                producer.produce(this::put);
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                queue.add(END);
+            }
+            return null;
+        });
+    }
+
+    private boolean put(T item) {
+        if (closed) {
+            return false;
+        }
+        if (!budget.tryAcquire()) {
+            metrics.increment("handoff.stall");
+            long start = System.nanoTime();
+            try {
+                budget.acquire();
+            } catch (InterruptedException e) {
+                // Closed by the handler
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                metrics.add("handoff.stall.millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        }
+        queue.add(item);
+        metrics.increment("handoff.depth");
+
+        // Discard it if the handler closed the queue meanwhile, unless it's already drained
+        if (closed && queue.remove(item)) {
+            metrics.add("handoff.depth", -1);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return the next object, or null if the producer reached the end.
+     *
+     * @return
+     * @throws Exception the failure of the producer
+     */
+    @SuppressWarnings("unchecked")
+    public T take() throws Exception {
+        Object item = queue.poll();
+        if (item == null) {
+            long start = System.nanoTime();
+            try {
+                item = queue.take();
+            } finally {
+                metrics.add("handoff.wait.millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        }
+
+        if (item == END) {
+            // Keep the end for the subsequent calls
+            queue.add(END);
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+
+        metrics.add("handoff.depth", -1);
+        budget.release();
+        return (T) item;
+    }
+
+    /**
+     * Stop the producer and discard the remaining objects.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (producer != null) {
+            producer.cancel(true);
+        }
+        int discarded = 0;
+        Object item;
+        while ((item = queue.poll()) != null) {
+            if (item != END) {
+                discarded++;
+            }
+        }
+        if (discarded > 0) {
+            metrics.add("handoff.depth", -discarded);
+        }
+        // Unblock the producer if it's still waiting for the budget
+        budget.release(discarded + 1);
+    }
+}
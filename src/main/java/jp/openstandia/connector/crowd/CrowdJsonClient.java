@@ -0,0 +1,885 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import com.atlassian.crowd.embedded.api.SearchRestriction;
+import com.atlassian.crowd.exception.*;
+import com.atlassian.crowd.integration.rest.entity.GroupEntity;
+import com.atlassian.crowd.integration.rest.entity.MultiValuedAttributeEntity;
+import com.atlassian.crowd.integration.rest.entity.MultiValuedAttributeEntityList;
+import com.atlassian.crowd.integration.rest.entity.UserEntity;
+import com.atlassian.crowd.model.group.GroupType;
+import com.atlassian.crowd.model.group.GroupWithAttributes;
+import com.atlassian.crowd.model.user.UserWithAttributes;
+import com.atlassian.crowd.search.query.entity.restriction.BooleanRestriction;
+import com.atlassian.crowd.search.query.entity.restriction.NullRestriction;
+import com.atlassian.crowd.search.query.entity.restriction.PropertyRestriction;
+import jp.openstandia.connector.util.JsonReader;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * HTTP transport which talks JSON to the same Crowd REST endpoints as the bundled XML client.
+ * Responses are decoded with the streaming {@link JsonReader} directly into the Crowd entities,
+ * so the read path (get/search/membership) avoids JAXB unmarshalling entirely.
+ * Write operations still go through the bundled client.
+ * <p>
+ * When response compression is enabled, it negotiates gzip/deflate with Accept-Encoding and
+ * decompresses the body while streaming. The wire and decoded bytes are counted per call in {@link CrowdMetrics}.
+ */
+public class CrowdJsonClient {
+
+    private static final Log LOG = Log.getLog(CrowdJsonClient.class);
+
+    private static final String REST_PATH = "/rest/usermanagement/1";
+    private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+
+    // Index: node of Crowd Data Center
+    private final List<String> endpoints = new ArrayList<>();
+    // Null if there is only one node
+    private final CrowdNodeRouter router;
+    private final CrowdNodeRouter.Session session;
+    private final String authorization;
+    private final Duration socketTimeout;
+    private final HttpClient httpClient;
+    private final boolean compression;
+    private final CrowdMetrics metrics;
+
+    public CrowdJsonClient(CrowdConfiguration configuration) {
+        this(configuration, null);
+    }
+
+    /**
+     * @param configuration
+     * @param session the read-your-writes window of the connector instance, see {@link CrowdNodeRouter.Session}
+     */
+    public CrowdJsonClient(CrowdConfiguration configuration, CrowdNodeRouter.Session session) {
+        this.session = session;
+        this.compression = configuration.isResponseCompressionEnabled();
+        this.metrics = CrowdMetrics.of(configuration);
+
+        for (String baseURL : configuration.getBaseURLs()) {
+            while (baseURL.endsWith("/")) {
+                baseURL = baseURL.substring(0, baseURL.length() - 1);
+            }
+            endpoints.add(baseURL + REST_PATH);
+        }
+        this.router = endpoints.size() > 1 ? CrowdNodeRouter.of(configuration) : null;
+
+        StringBuilder credential = new StringBuilder(configuration.getApplicationName()).append(':');
+        configuration.getApplicationPassword().access(c -> credential.append(c));
+        this.authorization = "Basic " + Base64.getEncoder().encodeToString(credential.toString().getBytes(StandardCharsets.UTF_8));
+
+        this.socketTimeout = Duration.ofMillis(configuration.getSocketTimeoutInMilliseconds());
+
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(configuration.getConnectionTimeoutInMilliseconds()))
+                .followRedirects(HttpClient.Redirect.NEVER);
+
+        if (StringUtil.isNotBlank(configuration.getHttpProxyHost())) {
+            builder.proxy(ProxySelector.of(new InetSocketAddress(configuration.getHttpProxyHost(), configuration.getHttpProxyPort())));
+
+            if (StringUtil.isNotBlank(configuration.getHttpProxyUser())) {
+                String proxyUser = configuration.getHttpProxyUser();
+                char[][] proxyPassword = new char[1][];
+                configuration.getHttpProxyPassword().access(c -> proxyPassword[0] = c.clone());
+
+                builder.authenticator(new Authenticator() {
+                    @Override
+                    protected PasswordAuthentication getPasswordAuthentication() {
+                        if (getRequestorType() == RequestorType.PROXY) {
+                            return new PasswordAuthentication(proxyUser, proxyPassword[0]);
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+
+        this.httpClient = builder.build();
+    }
+
+    // User
+
+    public UserEntity getUserWithAttributes(String name) throws UserNotFoundException, OperationFailedException,
+            ApplicationPermissionException, InvalidAuthenticationException {
+        try (JsonReader reader = get("getUser", "/user?username=%s&expand=attributes", name)) {
+            if (reader == null) {
+                throw new UserNotFoundException(name);
+            }
+            return readUser(reader);
+
+        } catch (IOException e) {
+            throw new OperationFailedException("Failed to read the user response from Crowd: " + e.getMessage(), e);
+        }
+    }
+
+    public UserEntity getUserByKeyWithAttributes(String key) throws UserNotFoundException, OperationFailedException,
+            ApplicationPermissionException, InvalidAuthenticationException {
+        try (JsonReader reader = get("getUserByKey", "/user?key=%s&expand=attributes", key)) {
+            if (reader == null) {
+                UserNotFoundException.throwNotFoundByExternalId(key);
+            }
+            return readUser(reader);
+
+        } catch (IOException e) {
+            throw new OperationFailedException("Failed to read the user response from Crowd: " + e.getMessage(), e);
+        }
+    }
+
+    public List<UserWithAttributes> searchUsersWithAttributes(SearchRestriction restriction, int start, int max)
+            throws OperationFailedException, ApplicationPermissionException, InvalidAuthenticationException {
+        String path = String.format("/search?entity-type=user&expand=user,attributes&start-index=%d&max-results=%d", start, max);
+
+        try (JsonReader reader = post("searchUsers", path, toJson(restriction))) {
+            List<UserWithAttributes> users = new ArrayList<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("users")) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        users.add(readUser(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return users;
+
+        } catch (IOException e) {
+            throw new OperationFailedException("Failed to read the search response from Crowd: " + e.getMessage(), e);
+        }
+    }
+
+    public List<String> searchUserNames(SearchRestriction restriction, int start, int max)
+            throws OperationFailedException, ApplicationPermissionException, InvalidAuthenticationException {
+        String path = String.format("/search?entity-type=user&start-index=%d&max-results=%d", start, max);
+
+        try (JsonReader reader = post("searchUserNames", path, toJson(restriction))) {
+            return readNames(reader, "users");
+
+        } catch (IOException e) {
+            throw new OperationFailedException("Failed to read the search response from Crowd: " + e.getMessage(), e);
+        }
+    }
+
+    public List<String> getNamesOfGroupsForUser(String userName, int start, int max)
+            throws UserNotFoundException, OperationFailedException, ApplicationPermissionException, InvalidAuthenticationException {
+        try (JsonReader reader = get("getGroupsForUser", "/user/group/direct?username=%s&start-index=%d&max-results=%d", userName, start, max)) {
+            if (reader == null) {
+                throw new UserNotFoundException(userName);
+            }
+            return readNames(reader, "groups");
+
+        } catch (IOException e) {
+            throw new OperationFailedException("Failed to read the membership response from Crowd: " + e.getMessage(), e);
+        }
+    }
+
+    // Group
+
+    public GroupEntity getGroupWithAttributes(String name) throws GroupNotFoundException, OperationFailedException,
+            ApplicationPermissionException, InvalidAuthenticationException {
+        try (JsonReader reader = get("getGroup", "/group?groupname=%s&expand=attributes", name)) {
+            if (reader == null) {
+                throw new GroupNotFoundException(name);
+            }
+            return readGroup(reader);
+
+        } catch (IOException e) {
+            throw new OperationFailedException("Failed to read the group response from Crowd: " + e.getMessage(), e);
+        }
+    }
+
+    public List<GroupWithAttributes> searchGroupsWithAttributes(SearchRestriction restriction, int start, int max)
+            throws OperationFailedException, ApplicationPermissionException, InvalidAuthenticationException {
+        String path = String.format("/search?entity-type=group&expand=group,attributes&start-index=%d&max-results=%d", start, max);
+
+        try (JsonReader reader = post("searchGroups", path, toJson(restriction))) {
+            List<GroupWithAttributes> groups = new ArrayList<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("groups")) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        groups.add(readGroup(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return groups;
+
+        } catch (IOException e) {
+            throw new OperationFailedException("Failed to read the search response from Crowd: " + e.getMessage(), e);
+        }
+    }
+
+    public List<String> searchGroupNames(SearchRestriction restriction, int start, int max)
+            throws OperationFailedException, ApplicationPermissionException, InvalidAuthenticationException {
+        String path = String.format("/search?entity-type=group&start-index=%d&max-results=%d", start, max);
+
+        try (JsonReader reader = post("searchGroupNames", path, toJson(restriction))) {
+            return readNames(reader, "groups");
+
+        } catch (IOException e) {
+            throw new OperationFailedException("Failed to read the search response from Crowd: " + e.getMessage(), e);
+        }
+    }
+
+    public List<String> getNamesOfParentGroupsForGroup(String groupName, int start, int max)
+            throws GroupNotFoundException, OperationFailedException, ApplicationPermissionException, InvalidAuthenticationException {
+        try (JsonReader reader = get("getGroupsForGroup", "/group/parent-group/direct?groupname=%s&start-index=%d&max-results=%d", groupName, start, max)) {
+            if (reader == null) {
+                throw new GroupNotFoundException(groupName);
+            }
+            return readNames(reader, "groups");
+
+        } catch (IOException e) {
+            throw new OperationFailedException("Failed to read the membership response from Crowd: " + e.getMessage(), e);
+        }
+    }
+
+    public List<String> getNamesOfUsersOfGroup(String groupName, int start, int max)
+            throws GroupNotFoundException, OperationFailedException, ApplicationPermissionException, InvalidAuthenticationException {
+        try (JsonReader reader = get("getUsersOfGroup", "/group/user/direct?groupname=%s&start-index=%d&max-results=%d", groupName, start, max)) {
+            if (reader == null) {
+                throw new GroupNotFoundException(groupName);
+            }
+            return readNames(reader, "users");
+
+        } catch (IOException e) {
+            throw new OperationFailedException("Failed to read the membership response from Crowd: " + e.getMessage(), e);
+        }
+    }
+
+    // Transport
+
+    /**
+     * Send GET request and return the reader for the response body.
+     * It returns null when the resource is not found.
+     */
+    private JsonReader get(String callName, String pathFormat, Object... args) throws OperationFailedException,
+            ApplicationPermissionException, InvalidAuthenticationException {
+        String path = format(pathFormat, args);
+        return send(callName, endpoint -> newRequest(endpoint + path)
+                .GET()
+                .build());
+    }
+
+    private JsonReader post(String callName, String path, String body) throws OperationFailedException,
+            ApplicationPermissionException, InvalidAuthenticationException {
+        return send(callName, endpoint -> newRequest(endpoint + path)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+                .build());
+    }
+
+    private HttpRequest.Builder newRequest(String url) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+                .timeout(socketTimeout)
+                .header("Accept", "application/json")
+                .header("Authorization", authorization);
+        if (compression) {
+            builder.header("Accept-Encoding", "gzip, deflate");
+        }
+        return builder;
+    }
+
+    /**
+     * Send the request to the endpoint of the node chosen by the router if there are multiple nodes.
+     * This client only reads, so it's pinned only within the read-your-writes window of the connector instance.
+     */
+    private JsonReader send(String callName, Function<String, HttpRequest> request) throws OperationFailedException,
+            ApplicationPermissionException, InvalidAuthenticationException {
+        if (router == null) {
+            return send(callName, request.apply(endpoints.get(0)));
+        }
+        try {
+            return router.call(session, false, node -> send(callName, request.apply(endpoints.get(node.getIndex()))));
+
+        } catch (OperationFailedException | ApplicationPermissionException | InvalidAuthenticationException |
+                 RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new OperationFailedException(e.getMessage(), e);
+        }
+    }
+
+    private JsonReader send(String callName, HttpRequest request) throws OperationFailedException,
+            ApplicationPermissionException, InvalidAuthenticationException {
+        HttpResponse<InputStream> response;
+        try {
+            response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+
+        } catch (IOException e) {
+            throw new OperationFailedException("Failed to connect to Crowd: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperationFailedException("Interrupted while calling Crowd", e);
+        }
+
+        metrics.increment("http." + callName + ".requests");
+
+        InputStream body;
+        try {
+            body = decode(callName, response);
+        } catch (IOException e) {
+            throw new OperationFailedException("Failed to decode the response from Crowd: " + e.getMessage(), e);
+        }
+
+        int status = response.statusCode();
+        if (status >= 200 && status < 300) {
+            return new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        }
+
+        String[] error = readError(body);
+        String message = error[1] != null ? error[1] : "HTTP " + status;
+
+        LOG.ok("Crowd returned error. status: {0}, reason: {1}, message: {2}", status, error[0], message);
+
+        if (status == 401) {
+            throw new InvalidAuthenticationException(message);
+        }
+        if (status == 403) {
+            throw new ApplicationPermissionException(message);
+        }
+        if (status == 404) {
+            return null;
+        }
+        throw new CrowdHttpException(message, status, parseRetryAfter(response));
+    }
+
+    /**
+     * Wrap the response body with the decompressor for the Content-Encoding.
+     * The body is decompressed while the caller reads it, and the byte counts are recorded when it's closed.
+     */
+    private InputStream decode(String callName, HttpResponse<InputStream> response) throws IOException {
+        String encoding = response.headers().firstValue("Content-Encoding").orElse("identity")
+                .trim().toLowerCase(Locale.ROOT);
+
+        CountingInputStream wire = new CountingInputStream(response.body());
+        InputStream decoded;
+        switch (encoding) {
+            case "gzip":
+            case "x-gzip":
+                decoded = new GZIPInputStream(wire, 8192);
+                break;
+            case "deflate":
+                decoded = inflate(wire);
+                break;
+            case "":
+            case "identity":
+                decoded = wire;
+                break;
+            default:
+                wire.close();
+                throw new IOException("Unsupported Content-Encoding: " + encoding);
+        }
+
+        return new CountingInputStream(decoded) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    record(callName, encoding, wire.count, count);
+                }
+                super.close();
+            }
+        };
+    }
+
+    /**
+     * "deflate" is defined as zlib format, but some servers send raw deflate data.
+     * Detect the zlib header and accept both.
+     */
+    private static InputStream inflate(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        byte[] header = new byte[2];
+        int n = pushback.readNBytes(header, 0, 2);
+        pushback.unread(header, 0, n);
+
+        boolean zlib = n == 2 && (header[0] & 0x0F) == 8 && (((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0;
+        return new InflaterInputStream(pushback, new Inflater(!zlib), 8192);
+    }
+
+    private void record(String callName, String encoding, long wireBytes, long decodedBytes) {
+        String prefix = "http." + callName;
+        metrics.add(prefix + ".bytes.wire", wireBytes);
+        metrics.add(prefix + ".bytes.decoded", decodedBytes);
+        if (!encoding.isEmpty() && !encoding.equals("identity")) {
+            metrics.increment(prefix + ".compressed");
+        }
+
+        LOG.ok("Crowd response {0}: {1} bytes on the wire, {2} bytes decoded (encoding: {3})",
+                callName, wireBytes, decodedBytes, encoding);
+    }
+
+    /**
+     * Parse Retry-After header (delay-seconds or HTTP-date) in milliseconds. It returns -1 if not present.
+     */
+    static long parseRetryAfter(HttpResponse<?> response) {
+        String value = response.headers().firstValue("Retry-After").orElse(null);
+        if (value == null || value.isBlank()) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                long at = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return Math.max(0, at - System.currentTimeMillis());
+            } catch (DateTimeParseException ignore) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Read the error entity. It returns [reason, message].
+     */
+    private String[] readError(InputStream body) {
+        String[] error = new String[2];
+        try (JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("reason")) {
+                    error[0] = reader.nextString();
+                } else if (name.equals("message")) {
+                    error[1] = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+        } catch (IOException e) {
+            // The error body might not be JSON (e.g. proxy error page)
+        }
+        return error;
+    }
+
+    private static String format(String pathFormat, Object... args) {
+        Object[] encoded = new Object[args.length];
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof String) {
+                encoded[i] = URLEncoder.encode((String) args[i], StandardCharsets.UTF_8);
+            } else {
+                encoded[i] = args[i];
+            }
+        }
+        return String.format(pathFormat, encoded);
+    }
+
+    // Decoder
+
+    private static UserEntity readUser(JsonReader reader) throws IOException {
+        String name = null;
+        String key = null;
+        String firstName = null;
+        String lastName = null;
+        String displayName = null;
+        String email = null;
+        boolean active = false;
+        Date createdDate = null;
+        Date updatedDate = null;
+        MultiValuedAttributeEntityList attributes = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "name":
+                    name = reader.nextString();
+                    break;
+                case "key":
+                    key = reader.nextString();
+                    break;
+                case "first-name":
+                    firstName = reader.nextString();
+                    break;
+                case "last-name":
+                    lastName = reader.nextString();
+                    break;
+                case "display-name":
+                    displayName = reader.nextString();
+                    break;
+                case "email":
+                    email = reader.nextString();
+                    break;
+                case "active":
+                    active = reader.nextBoolean();
+                    break;
+                case "created-date":
+                    createdDate = readDate(reader);
+                    break;
+                case "updated-date":
+                    updatedDate = readDate(reader);
+                    break;
+                case "attributes":
+                    attributes = readAttributes(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        UserEntity user = new UserEntity(name, firstName, lastName, displayName, email, null, active, key, createdDate, updatedDate, false);
+        user.setAttributes(attributes != null ? attributes : new MultiValuedAttributeEntityList(new ArrayList<>()));
+        return user;
+    }
+
+    private static GroupEntity readGroup(JsonReader reader) throws IOException {
+        String name = null;
+        String description = null;
+        GroupType type = GroupType.GROUP;
+        boolean active = false;
+        MultiValuedAttributeEntityList attributes = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "name":
+                    name = reader.nextString();
+                    break;
+                case "description":
+                    description = reader.nextString();
+                    break;
+                case "type":
+                    String t = reader.nextString();
+                    if (t != null) {
+                        type = GroupType.valueOf(t);
+                    }
+                    break;
+                case "active":
+                    active = reader.nextBoolean();
+                    break;
+                case "attributes":
+                    attributes = readAttributes(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        GroupEntity group = new GroupEntity(name, description, type, active);
+        group.setAttributes(attributes != null ? attributes : new MultiValuedAttributeEntityList(new ArrayList<>()));
+        return group;
+    }
+
+    /**
+     * Read the attributes. Crowd wraps the list as {"attributes": [...], "link": {...}},
+     * but the bare array form is also accepted.
+     */
+    private static MultiValuedAttributeEntityList readAttributes(JsonReader reader) throws IOException {
+        List<MultiValuedAttributeEntity> attributes = new ArrayList<>();
+
+        if (reader.peek() == JsonReader.Token.NULL) {
+            reader.nextNull();
+            return null;
+        }
+
+        if (reader.peek() == JsonReader.Token.BEGIN_ARRAY) {
+            readAttributeArray(reader, attributes);
+
+        } else {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("attributes")) {
+                    readAttributeArray(reader, attributes);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+
+        return new MultiValuedAttributeEntityList(attributes);
+    }
+
+    private static void readAttributeArray(JsonReader reader, List<MultiValuedAttributeEntity> attributes) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String name = null;
+            List<String> values = new ArrayList<>();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "name":
+                        name = reader.nextString();
+                        break;
+                    case "values":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            values.add(reader.nextString());
+                        }
+                        reader.endArray();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            attributes.add(new MultiValuedAttributeEntity(name, values));
+        }
+        reader.endArray();
+    }
+
+    private static List<String> readNames(JsonReader reader, String listName) throws IOException {
+        List<String> names = new ArrayList<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals(listName)) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("name")) {
+                        names.add(reader.nextString());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+
+        return names;
+    }
+
+    private static Date readDate(JsonReader reader) throws IOException {
+        JsonReader.Token token = reader.peek();
+        if (token == JsonReader.Token.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        if (token == JsonReader.Token.NUMBER) {
+            return new Date(reader.nextLong());
+        }
+
+        String value = reader.nextString();
+        try {
+            return Date.from(OffsetDateTime.parse(value).toInstant());
+        } catch (DateTimeParseException e) {
+            return Date.from(OffsetDateTime.parse(value, DateTimeFormatter.ofPattern(DATE_FORMAT)).toInstant());
+        }
+    }
+
+    // Encoder
+
+    static String toJson(SearchRestriction restriction) {
+        StringBuilder sb = new StringBuilder();
+        writeRestriction(sb, restriction);
+        return sb.toString();
+    }
+
+    private static void writeRestriction(StringBuilder sb, SearchRestriction restriction) {
+        if (restriction == null || restriction instanceof NullRestriction) {
+            sb.append("{\"restriction-type\":\"null-search-restriction\"}");
+
+        } else if (restriction instanceof PropertyRestriction) {
+            PropertyRestriction<?> property = (PropertyRestriction<?>) restriction;
+            Object value = property.getValue();
+
+            sb.append("{\"restriction-type\":\"property-search-restriction\",\"property\":{\"name\":");
+            writeString(sb, property.getProperty().getPropertyName());
+            sb.append(",\"type\":");
+            writeString(sb, toPropertyType(property.getProperty().getPropertyType()));
+            sb.append("},\"match-mode\":");
+            writeString(sb, property.getMatchMode().name());
+            sb.append(",\"value\":");
+            if (value instanceof Date) {
+                writeString(sb, new SimpleDateFormat(DATE_FORMAT).format((Date) value));
+            } else {
+                writeString(sb, value != null ? value.toString() : null);
+            }
+            sb.append('}');
+
+        } else if (restriction instanceof BooleanRestriction) {
+            BooleanRestriction bool = (BooleanRestriction) restriction;
+
+            sb.append("{\"restriction-type\":\"boolean-search-restriction\",\"boolean-logic\":");
+            writeString(sb, bool.getBooleanLogic().name());
+            sb.append(",\"restrictions\":[");
+            boolean first = true;
+            for (SearchRestriction r : bool.getRestrictions()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                writeRestriction(sb, r);
+                first = false;
+            }
+            sb.append("]}");
+
+        } else {
+            throw new IllegalArgumentException("Unsupported search restriction: " + restriction);
+        }
+    }
+
+    private static String toPropertyType(Class<?> type) {
+        if (Date.class.equals(type)) {
+            return "DATE";
+        }
+        if (Boolean.class.equals(type)) {
+            return "BOOLEAN";
+        }
+        if (Enum.class.isAssignableFrom(type)) {
+            return "ENUM";
+        }
+        return "STRING";
+    }
+
+    private static void writeString(StringBuilder sb, String s) {
+        if (s == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Crowd returned unexpected HTTP status. It keeps the status code for the error mapping.
+     */
+    public static class CrowdHttpException extends OperationFailedException {
+        private final int statusCode;
+        private final long retryAfterMillis;
+
+        public CrowdHttpException(String message, int statusCode) {
+            this(message, statusCode, -1);
+        }
+
+        public CrowdHttpException(String message, int statusCode, long retryAfterMillis) {
+            super(message);
+            this.statusCode = statusCode;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * Return the delay requested by Retry-After header in milliseconds, or -1 if not present.
+         *
+         * @return
+         */
+        public long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Micro-batching of the lookups by name.
+ * The lookup without the other lookups in flight is sent immediately, so the uncontended lookup doesn't wait.
+ * While the lookups are in flight, the next caller becomes the leader of a new batch and waits for the batch window,
+ * the other callers arriving in the window join the batch. Then the leader loads all names of the batch at once
+ * (e.g. one search with the OR of the names) and completes the futures of the callers.
+ * It's shared by all connector instances which point to the same Crowd application.
+ *
+ * @param <T>
+ */
+public class CrowdLookupBatcher<T> {
+
+    private static final CrowdRegistry<CrowdLookupBatcher<?>> REGISTRY = new CrowdRegistry<>();
+
+    static final int MAX_BATCH_SIZE = 100;
+
+    @FunctionalInterface
+    public interface BatchLoader<T> {
+        /**
+         * Load the objects by the names.
+         *
+         * @param names
+         * @return the found objects keyed by {@link #key(String)} of the name
+         * @throws Exception
+         */
+        Map<String, T> load(List<String> names) throws Exception;
+    }
+
+    private final long windowMillis;
+    private final CrowdMetrics metrics;
+
+    // Guarded by this
+    private Batch<T> open;
+    // The batches waiting for the window or loading, guarded by this
+    private int active;
+
+    CrowdLookupBatcher(long windowMillis, CrowdMetrics metrics) {
+        this.windowMillis = windowMillis;
+        this.metrics = metrics;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> CrowdLookupBatcher<T> of(CrowdConfiguration configuration, String objectType) {
+        if (configuration == null || configuration.getLookupBatchWindowInMilliseconds() <= 0) {
+            return new CrowdLookupBatcher<>(0, null);
+        }
+        return (CrowdLookupBatcher<T>) REGISTRY.get(configuration.getConnectionKey() + "|" + objectType,
+                Arrays.asList(configuration.getLookupBatchWindowInMilliseconds()),
+                () -> new CrowdLookupBatcher<>(configuration.getLookupBatchWindowInMilliseconds(), CrowdMetrics.of(configuration)));
+    }
+
+    /**
+     * Crowd compares the names case-insensitively.
+     *
+     * @param name
+     * @return
+     */
+    public static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Look up the object by the name.
+     *
+     * @param name
+     * @param loader
+     * @return the found object, or null if not found
+     * @throws Exception
+     */
+    public T get(String name, BatchLoader<T> loader) throws Exception {
+        if (windowMillis <= 0) {
+            return loader.load(Collections.singletonList(name)).get(key(name));
+        }
+
+        Batch<T> batch;
+        CompletableFuture<T> future;
+        boolean leader = false;
+        boolean wait = false;
+        synchronized (this) {
+            if (open != null && !open.isFull()) {
+                batch = open;
+            } else {
+                batch = new Batch<>();
+                leader = true;
+                // Open the window only when there are the other lookups to batch with
+                wait = active > 0;
+                if (wait) {
+                    open = batch;
+                }
+                active++;
+            }
+            future = batch.add(name);
+        }
+
+        if (leader) {
+            if (wait) {
+                try {
+                    Thread.sleep(windowMillis);
+                } catch (InterruptedException e) {
+                    // The joined callers are waiting, so load the batch anyway
+                    Thread.currentThread().interrupt();
+                }
+            }
+            run(batch, loader);
+        }
+
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw CrowdExecutor.unwrap(e);
+        }
+    }
+
+    private void run(Batch<T> batch, BatchLoader<T> loader) {
+        synchronized (this) {
+            if (open == batch) {
+                open = null;
+            }
+        }
+
+        Map<String, CompletableFuture<T>> futures = batch.futures;
+        try {
+            if (futures.size() > 1) {
+                metrics.increment("lookup.batch");
+                metrics.add("lookup.batch.names", futures.size());
+            }
+
+            Map<String, T> found = loader.load(new ArrayList<>(batch.names));
+            futures.forEach((k, f) -> f.complete(found.get(k)));
+
+        } catch (Exception e) {
+            futures.values().forEach(f -> f.completeExceptionally(e));
+        } finally {
+            // Don't leave the callers waiting forever
+            futures.values().forEach(f -> f.cancel(false));
+
+            synchronized (this) {
+                active--;
+            }
+        }
+    }
+
+    private static class Batch<T> {
+        // Guarded by the batcher while the batch is open, and read-only after closed
+        final List<String> names = new ArrayList<>();
+        final Map<String, CompletableFuture<T>> futures = new HashMap<>();
+
+        CompletableFuture<T> add(String name) {
+            return futures.computeIfAbsent(key(name), k -> {
+                names.add(name);
+                return new CompletableFuture<>();
+            });
+        }
+
+        boolean isFull() {
+            return names.size() >= MAX_BATCH_SIZE;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Resolver of the direct groups of the users and groups, used during one query.
+ * For the small results, it looks up the groups per object. For the large results, it loads all memberships
+ * in Crowd by one request into the compact membership store instead of the requests per object.
+ * The store is taken from the group hierarchy, so the query doesn't load all memberships twice for the nested groups.
+ * Either way, the resolved groups are shared by the query. It also keeps the group hierarchy for the nested groups during the query.
+ */
+public class CrowdMembershipResolver {
+
+    private final CrowdRESTClient client;
+    private final int pageSize;
+    private final boolean bulk;
+
+    // Used by the lookups per object. Key: "user|" or "group|" + lower-case name, Value: the names of the direct groups
+    private final Map<String, List<String>> index = new ConcurrentHashMap<>();
+    // Guarded by this
+    private CrowdGroupGraph groupGraph;
+
+    CrowdMembershipResolver(CrowdRESTClient client, int pageSize, boolean bulk) {
+        this.client = client;
+        this.pageSize = pageSize;
+        this.bulk = bulk;
+    }
+
+    /**
+     * Create the resolver for the query.
+     *
+     * @param configuration
+     * @param client
+     * @param estimatedSize the estimated number of the objects returned by the query
+     * @return
+     */
+    public static CrowdMembershipResolver create(CrowdConfiguration configuration, CrowdRESTClient client, int estimatedSize) {
+        int threshold = configuration.getMembershipBulkLoadThreshold();
+        return new CrowdMembershipResolver(client, configuration.getDefaultQueryPageSize(),
+                threshold > 0 && estimatedSize >= threshold);
+    }
+
+    public boolean isBulk() {
+        return bulk;
+    }
+
+    public Stream<String> getGroupsForUser(String userName) {
+        if (bulk) {
+            return load().getGroupsForUser(userName);
+        }
+        return index.computeIfAbsent("user|" + CrowdLookupBatcher.key(userName),
+                k -> client.getGroupsForUser(userName, pageSize).collect(Collectors.toList())).stream();
+    }
+
+    public Stream<String> getGroupsForGroup(String groupName) {
+        if (bulk) {
+            return load().getGroupsForGroup(groupName);
+        }
+        return index.computeIfAbsent("group|" + CrowdLookupBatcher.key(groupName),
+                k -> client.getGroupsForGroup(groupName, pageSize).collect(Collectors.toList())).stream();
+    }
+
+    /**
+     * Return the direct user members of the group. They are streamed from Crowd per group unless bulk loaded.
+     *
+     * @param groupName
+     * @return
+     */
+    public Stream<String> getMembersOfGroup(String groupName) {
+        if (bulk) {
+            return load().getMembersOfGroup(groupName);
+        }
+        return client.getUsersOfGroup(groupName, pageSize);
+    }
+
+    /**
+     * Return the group hierarchy. It's fixed during the query even if the cache is refreshed.
+     *
+     * @return
+     */
+    public synchronized CrowdGroupGraph getGroupGraph() {
+        if (groupGraph == null) {
+            groupGraph = client.getGroupGraph();
+        }
+        return groupGraph;
+    }
+
+    private CrowdMembershipStore load() {
+        return getGroupGraph().getStore();
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import com.atlassian.crowd.model.group.Membership;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Immutable in-memory store of the direct memberships loaded by the bulk membership request.
+ * The user and group names are interned into the dictionaries and the memberships are kept by their int ids:
+ * the sorted group ids per user and per child group, and the user ids per group. The members of a group are kept
+ * as a bitmap if it's dense enough, otherwise as a sorted array, since the bitmap costs a bit per user in Crowd.
+ * It avoids the repeated name strings and the boxed collections for the large directories.
+ * The names are case-insensitive like Crowd.
+ */
+public class CrowdMembershipStore {
+
+    static final int[] EMPTY = new int[0];
+
+    private final Dictionary groups;
+    private final Dictionary users;
+    // Index: user id, Value: sorted ids of the direct groups
+    private final int[][] userGroups;
+    // Index: group id, Value: sorted ids of the direct parent groups
+    private final int[][] groupParents;
+    // The bitmap costs less than the array if 1/32 or more of the users are the members
+    static final int BITMAP_DENSITY = 32;
+
+    // Index: group id, Value: ids of the direct user members, either as a bitmap or a sorted array (the other is null)
+    private final BitSet[] groupMemberBitmaps;
+    private final int[][] groupMemberArrays;
+
+    private CrowdMembershipStore(Dictionary groups, Dictionary users, int[][] userGroups, int[][] groupParents) {
+        this.groups = groups;
+        this.users = users;
+        this.userGroups = userGroups;
+        this.groupParents = groupParents;
+        this.groupMemberBitmaps = new BitSet[groups.size()];
+        this.groupMemberArrays = new int[groups.size()][];
+
+        int[] counts = new int[groups.size()];
+        for (int[] ids : userGroups) {
+            for (int g : ids) {
+                counts[g]++;
+            }
+        }
+        for (int g = 0; g < counts.length; g++) {
+            if (counts[g] * BITMAP_DENSITY >= userGroups.length) {
+                groupMemberBitmaps[g] = new BitSet(userGroups.length);
+            } else {
+                groupMemberArrays[g] = counts[g] == 0 ? EMPTY : new int[counts[g]];
+            }
+        }
+        // The user ids are added in the ascending order, so the arrays are sorted
+        int[] sizes = new int[groups.size()];
+        for (int u = 0; u < userGroups.length; u++) {
+            for (int g : userGroups[u]) {
+                if (groupMemberBitmaps[g] != null) {
+                    groupMemberBitmaps[g].set(u);
+                } else {
+                    groupMemberArrays[g][sizes[g]++] = u;
+                }
+            }
+        }
+    }
+
+    public static CrowdMembershipStore build(Collection<Membership> memberships) {
+        Builder builder = new Builder();
+        for (Membership membership : memberships) {
+            builder.add(membership.getGroupName(), membership.getUserNames(), membership.getChildGroupNames());
+        }
+        return builder.build();
+    }
+
+    public int getGroupCount() {
+        return groups.size();
+    }
+
+    public int getUserCount() {
+        return users.size();
+    }
+
+    /**
+     * Return the group id, or -1 if the group has no memberships.
+     *
+     * @param groupName
+     * @return
+     */
+    public int getGroupId(String groupName) {
+        return groups.get(groupName);
+    }
+
+    public String getGroupName(int groupId) {
+        return groups.name(groupId);
+    }
+
+    /**
+     * Return the sorted ids of the direct groups of the user. Don't modify it.
+     *
+     * @param userName
+     * @return
+     */
+    int[] getGroupIdsForUser(String userName) {
+        int id = users.get(userName);
+        return id < 0 ? EMPTY : userGroups[id];
+    }
+
+    /**
+     * Return the sorted ids of the direct parent groups. Don't modify it.
+     *
+     * @param groupId
+     * @return
+     */
+    int[] getParentGroupIds(int groupId) {
+        return groupParents[groupId];
+    }
+
+    public Stream<String> getGroupsForUser(String userName) {
+        return toGroupNames(getGroupIdsForUser(userName));
+    }
+
+    public Stream<String> getGroupsForGroup(String groupName) {
+        int id = groups.get(groupName);
+        return id < 0 ? Stream.empty() : toGroupNames(groupParents[id]);
+    }
+
+    public Stream<String> getMembersOfGroup(String groupName) {
+        int id = groups.get(groupName);
+        return id < 0 ? Stream.empty() : toUserNames(memberIds(id));
+    }
+
+    /**
+     * Return the users who are the direct members of all the groups.
+     *
+     * @param groupNames
+     * @return
+     */
+    public Stream<String> getMembersOfAllGroups(Collection<String> groupNames) {
+        if (groupNames.isEmpty()) {
+            return Stream.empty();
+        }
+        int[] ids = new int[groupNames.size()];
+        int n = 0;
+        for (String groupName : groupNames) {
+            int id = groups.get(groupName);
+            if (id < 0) {
+                return Stream.empty();
+            }
+            ids[n++] = id;
+        }
+
+        // Walk the smallest group and probe the others
+        int smallest = ids[0];
+        for (int id : ids) {
+            if (memberCount(id) < memberCount(smallest)) {
+                smallest = id;
+            }
+        }
+        IntStream result = memberIds(smallest);
+        for (int id : ids) {
+            if (id != smallest) {
+                result = result.filter(u -> isMember(u, id));
+            }
+        }
+        return toUserNames(result);
+    }
+
+    /**
+     * Return the direct groups which both users belong to.
+     *
+     * @param userName1
+     * @param userName2
+     * @return
+     */
+    public Stream<String> getCommonGroups(String userName1, String userName2) {
+        int[] a = getGroupIdsForUser(userName1);
+        int[] b = getGroupIdsForUser(userName2);
+
+        // Merge the sorted arrays
+        int[] common = new int[Math.min(a.length, b.length)];
+        int size = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                common[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return toGroupNames(Arrays.copyOf(common, size));
+    }
+
+    private IntStream memberIds(int groupId) {
+        BitSet bitmap = groupMemberBitmaps[groupId];
+        return bitmap != null ? bitmap.stream() : Arrays.stream(groupMemberArrays[groupId]);
+    }
+
+    private int memberCount(int groupId) {
+        BitSet bitmap = groupMemberBitmaps[groupId];
+        return bitmap != null ? bitmap.cardinality() : groupMemberArrays[groupId].length;
+    }
+
+    private boolean isMember(int userId, int groupId) {
+        BitSet bitmap = groupMemberBitmaps[groupId];
+        return bitmap != null ? bitmap.get(userId) : Arrays.binarySearch(groupMemberArrays[groupId], userId) >= 0;
+    }
+
+    private Stream<String> toGroupNames(int[] ids) {
+        return Arrays.stream(ids).mapToObj(groups::name);
+    }
+
+    private Stream<String> toUserNames(IntStream ids) {
+        return ids.mapToObj(users::name);
+    }
+
+    /**
+     * Builder of the store. It's not thread-safe.
+     */
+    public static class Builder {
+        private final Dictionary groups = new Dictionary();
+        private final Dictionary users = new Dictionary();
+        // Index: user id
+        private IntArrayBuilder[] userGroups = new IntArrayBuilder[16];
+        // Index: group id
+        private IntArrayBuilder[] groupParents = new IntArrayBuilder[16];
+
+        public Builder add(String groupName, Collection<String> userNames, Collection<String> childGroupNames) {
+            int group = groupId(groupName);
+            for (String user : userNames) {
+                int id = users.add(user);
+                if (id == userGroups.length) {
+                    userGroups = Arrays.copyOf(userGroups, id * 2);
+                }
+                if (userGroups[id] == null) {
+                    userGroups[id] = new IntArrayBuilder();
+                }
+                userGroups[id].add(group);
+            }
+            for (String child : childGroupNames) {
+                // Resolve the id first since it may grow the array
+                int id = groupId(child);
+                groupParents[id].add(group);
+            }
+            return this;
+        }
+
+        private int groupId(String groupName) {
+            int id = groups.add(groupName);
+            if (id == groupParents.length) {
+                groupParents = Arrays.copyOf(groupParents, id * 2);
+            }
+            if (groupParents[id] == null) {
+                groupParents[id] = new IntArrayBuilder();
+            }
+            return id;
+        }
+
+        public CrowdMembershipStore build() {
+            int[][] userGroupsArray = new int[users.size()][];
+            for (int i = 0; i < userGroupsArray.length; i++) {
+                userGroupsArray[i] = userGroups[i].toSortedArray();
+            }
+            int[][] groupParentsArray = new int[groups.size()][];
+            for (int i = 0; i < groupParentsArray.length; i++) {
+                groupParentsArray[i] = groupParents[i].toSortedArray();
+            }
+            groups.trim();
+            users.trim();
+            return new CrowdMembershipStore(groups, users, userGroupsArray, groupParentsArray);
+        }
+    }
+
+    /**
+     * Case-insensitive dictionary of the names to the sequential ids by open addressing.
+     */
+    static class Dictionary {
+        // Index: id, Value: the name as returned by Crowd
+        private String[] names = new String[16];
+        // Index: id, Value: the lower-case name, the same instance as the name if already lower-case
+        private String[] keys = new String[16];
+        // Value: id + 1, 0 means empty
+        private int[] table = new int[32];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        String name(int id) {
+            return names[id];
+        }
+
+        int get(String name) {
+            String key = CrowdLookupBatcher.key(name);
+            int mask = table.length - 1;
+            for (int i = hash(key) & mask; table[i] != 0; i = (i + 1) & mask) {
+                if (keys[table[i] - 1].equals(key)) {
+                    return table[i] - 1;
+                }
+            }
+            return -1;
+        }
+
+        int add(String name) {
+            String key = CrowdLookupBatcher.key(name);
+            int mask = table.length - 1;
+            int i = hash(key) & mask;
+            for (; table[i] != 0; i = (i + 1) & mask) {
+                if (keys[table[i] - 1].equals(key)) {
+                    return table[i] - 1;
+                }
+            }
+
+            int id = size++;
+            if (id == names.length) {
+                names = Arrays.copyOf(names, id * 2);
+                keys = Arrays.copyOf(keys, id * 2);
+            }
+            names[id] = name;
+            keys[id] = key.equals(name) ? name : key;
+            table[i] = id + 1;
+
+            // Keep the load factor under 0.5
+            if (size * 2 > table.length) {
+                rehash(table.length * 2);
+            }
+            return id;
+        }
+
+        private void rehash(int capacity) {
+            int[] newTable = new int[capacity];
+            int mask = capacity - 1;
+            for (int id = 0; id < size; id++) {
+                int i = hash(keys[id]) & mask;
+                while (newTable[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                newTable[i] = id + 1;
+            }
+            table = newTable;
+        }
+
+        private static int hash(String key) {
+            // Spread the higher bits since the table index uses the lower bits only
+            int h = key.hashCode();
+            return h ^ (h >>> 16);
+        }
+
+        void trim() {
+            names = Arrays.copyOf(names, size);
+            keys = Arrays.copyOf(keys, size);
+        }
+    }
+
+    static class IntArrayBuilder {
+        private int[] values = EMPTY;
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.max(4, size * 2));
+            }
+            values[size++] = value;
+        }
+
+        int[] toSortedArray() {
+            if (size == 0) {
+                return EMPTY;
+            }
+            int[] result = Arrays.copyOf(values, size);
+            Arrays.sort(result);
+
+            // Remove the duplicates
+            int n = 1;
+            for (int i = 1; i < result.length; i++) {
+                if (result[i] != result[n - 1]) {
+                    result[n++] = result[i];
+                }
+            }
+            return n == result.length ? result : Arrays.copyOf(result, n);
+        }
+    }
+}
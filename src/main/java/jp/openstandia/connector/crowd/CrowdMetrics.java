@@ -0,0 +1,92 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Simple counters and gauges for the connector's traffic to Crowd.
+ * The metrics are shared by all connector instances which point to the same Crowd application
+ * because the pooled instances share the same Crowd server.
+ */
+public class CrowdMetrics {
+
+    private static final Log LOG = Log.getLog(CrowdMetrics.class);
+
+    private static final Map<String, CrowdMetrics> REGISTRY = new ConcurrentHashMap<>();
+
+    private final String key;
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    CrowdMetrics(String key) {
+        this.key = key;
+    }
+
+    public static CrowdMetrics of(CrowdConfiguration configuration) {
+        String key = configuration != null ? configuration.getConnectionKey() : "";
+        return REGISTRY.computeIfAbsent(key, CrowdMetrics::new);
+    }
+
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    public void add(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    public long get(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter != null) {
+            return counter.sum();
+        }
+        LongSupplier gauge = gauges.get(name);
+        if (gauge != null) {
+            return gauge.getAsLong();
+        }
+        return 0;
+    }
+
+    /**
+     * Register the gauge. The latest registered supplier wins when the same name is used.
+     *
+     * @param name
+     * @param gauge
+     */
+    public void gauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((k, v) -> snapshot.put(k, v.sum()));
+        gauges.forEach((k, v) -> snapshot.put(k, v.getAsLong()));
+        return snapshot;
+    }
+
+    public void log(String instanceName) {
+        if (LOG.isOk()) {
+            LOG.ok("[{0}] Crowd metrics for {1}: {2}", instanceName, key, snapshot());
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived cache of the lookups which resulted in not found.
+ * The IDM repeats the lookups of the same non-existent accounts (e.g. the correlation during the import),
+ * so the repeated misses are answered locally for a while. The objects created, renamed or deleted by this connector
+ * update the cache immediately. It's shared by all connector instances which point to the same Crowd application.
+ */
+public class CrowdNegativeCache {
+
+    private static final CrowdRegistry<CrowdNegativeCache> REGISTRY = new CrowdRegistry<>();
+
+    // Avoid unbounded growth by the various names
+    static final int MAX_ENTRIES = 10000;
+
+    private final long ttlNanos;
+    private final CrowdMetrics metrics;
+    // Value: the time when the miss was recorded
+    private final Map<String, Long> cache = new ConcurrentHashMap<>();
+    // Incremented by the creation, so the miss of the lookup started before it isn't cached
+    private volatile long generation;
+
+    CrowdNegativeCache(long ttlNanos, CrowdMetrics metrics) {
+        this.ttlNanos = ttlNanos;
+        this.metrics = metrics;
+    }
+
+    public static CrowdNegativeCache of(CrowdConfiguration configuration) {
+        if (configuration == null) {
+            return new CrowdNegativeCache(0, CrowdMetrics.of(null));
+        }
+        return REGISTRY.get(configuration.getConnectionKey(),
+                Arrays.asList(configuration.getNegativeCacheTtlInSeconds()),
+                () -> new CrowdNegativeCache(TimeUnit.SECONDS.toNanos(configuration.getNegativeCacheTtlInSeconds()),
+                        CrowdMetrics.of(configuration)));
+    }
+
+    /**
+     * Return true if the object was not found recently.
+     *
+     * @param key
+     * @return
+     */
+    public boolean isNotFound(String key) {
+        if (ttlNanos <= 0) {
+            return false;
+        }
+
+        Long recordedAt = cache.get(key);
+        if (recordedAt != null) {
+            if (System.nanoTime() - recordedAt < ttlNanos) {
+                metrics.increment("negative.cache.hit");
+                return true;
+            }
+            cache.remove(key, recordedAt);
+        }
+        metrics.increment("negative.cache.miss");
+        return false;
+    }
+
+    /**
+     * Return the current generation. The lookup takes it before sending the request,
+     * then passes it to {@link #put(String, long)} when the object was not found.
+     *
+     * @return
+     */
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Record that the object doesn't exist. It's called when this connector deleted the object.
+     *
+     * @param key
+     */
+    public void put(String key) {
+        if (ttlNanos <= 0) {
+            return;
+        }
+        if (cache.size() >= MAX_ENTRIES) {
+            cache.clear();
+        }
+        cache.put(key, System.nanoTime());
+    }
+
+    /**
+     * Record that the lookup didn't find the object, unless the object may have been created since the lookup started.
+     *
+     * @param key
+     * @param startGeneration the generation taken before the lookup
+     */
+    public void put(String key, long startGeneration) {
+        if (ttlNanos <= 0 || generation != startGeneration) {
+            return;
+        }
+        if (cache.size() >= MAX_ENTRIES) {
+            cache.clear();
+        }
+        long recordedAt = System.nanoTime();
+        cache.put(key, recordedAt);
+
+        // The creation raced with the put
+        if (generation != startGeneration) {
+            cache.remove(key, recordedAt);
+        }
+    }
+
+    /**
+     * Forget the miss. It's called when this connector created the object.
+     *
+     * @param key
+     */
+    public void remove(String key) {
+        generation++;
+        cache.remove(key);
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import com.atlassian.crowd.exception.CrowdException;
+import com.atlassian.crowd.integration.rest.service.ExceptionUtil;
+import jp.openstandia.connector.util.Utils;
+import org.identityconnectors.common.logging.Log;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client-side router for Crowd Data Center with multiple nodes.
+ * Each call is sent to the healthy node with the lower expected latency (the moving average of the latency times
+ * the in-flight calls) out of two random nodes, so the concurrent calls of the scans are spread over the nodes.
+ * The node which fails consecutively by the connection errors, timeouts or 5xx is ejected for a while, and the ejection gets longer
+ * while it keeps failing after it's back. If all nodes are ejected, the one back the earliest is used.
+ * When the write pinning is enabled, the writes and the reads right after them are sent to one node
+ * to read the own writes before they are replicated to the cache of the other nodes. The window of the reads is
+ * per connector instance, so the writes of one instance don't pin the reads of the others.
+ * The state of the nodes is shared by all connector instances which point to the same Crowd application.
+ */
+public class CrowdNodeRouter {
+
+    private static final Log LOG = Log.getLog(CrowdNodeRouter.class);
+
+    private static final CrowdRegistry<CrowdNodeRouter> REGISTRY = new CrowdRegistry<>();
+
+    // The reads within this period after a write are sent to the pinned node
+    static final long READ_YOUR_WRITES_NANOS = TimeUnit.SECONDS.toNanos(10);
+    // Weight of the latest latency in the moving average
+    private static final double LATENCY_WEIGHT = 0.2;
+    // Cap of the ejection time multiplier for the node failing repeatedly
+    private static final int MAX_EJECTION_MULTIPLIER = 8;
+
+    private final List<Node> nodes;
+    private final int ejectionFailures;
+    private final long ejectionNanos;
+    private final boolean pinWrites;
+    private final CrowdMetrics metrics;
+
+    private volatile Node pinned;
+
+    @FunctionalInterface
+    public interface NodeCall<T> {
+        T call(Node node) throws Exception;
+    }
+
+    /**
+     * Read-your-writes window of one connector instance.
+     */
+    public static class Session {
+        private volatile boolean written;
+        private volatile long lastWriteAt;
+
+        boolean isReadingOwnWrites(long now) {
+            return written && now - lastWriteAt < READ_YOUR_WRITES_NANOS;
+        }
+    }
+
+    public static class Node {
+        private final int index;
+        private final String url;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        // The moving average, 0 until the first call completes
+        private volatile double latencyMillis;
+        // Kept until the first success after the ejection, so one failure ejects it again
+        private volatile boolean ejected;
+        private volatile long ejectedUntil;
+        // Guarded by this
+        private int ejections;
+
+        Node(int index, String url) {
+            this.index = index;
+            this.url = url;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getURL() {
+            return url;
+        }
+
+        boolean isAvailable(long now) {
+            return !ejected || now - ejectedUntil >= 0;
+        }
+
+        double score() {
+            // The unknown latency scores the best to probe the node
+            return (latencyMillis + 1) * (inFlight.get() + 1);
+        }
+    }
+
+    CrowdNodeRouter(List<String> urls, int ejectionFailures, long ejectionNanos, boolean pinWrites, CrowdMetrics metrics) {
+        List<Node> nodes = new ArrayList<>(urls.size());
+        for (int i = 0; i < urls.size(); i++) {
+            nodes.add(new Node(i, urls.get(i)));
+        }
+        this.nodes = Collections.unmodifiableList(nodes);
+        this.ejectionFailures = Math.max(1, ejectionFailures);
+        this.ejectionNanos = ejectionNanos;
+        this.pinWrites = pinWrites;
+        this.metrics = metrics;
+    }
+
+    public static CrowdNodeRouter of(CrowdConfiguration configuration) {
+        return REGISTRY.get(configuration.getConnectionKey(),
+                Arrays.asList(configuration.getNodeEjectionFailures(), configuration.getNodeEjectionTimeInSeconds(),
+                        configuration.isNodeWritePinning()),
+                () -> {
+                    CrowdNodeRouter router = new CrowdNodeRouter(configuration.getBaseURLs(),
+                            configuration.getNodeEjectionFailures(),
+                            TimeUnit.SECONDS.toNanos(configuration.getNodeEjectionTimeInSeconds()),
+                            configuration.isNodeWritePinning(),
+                            CrowdMetrics.of(configuration));
+                    for (Node node : router.nodes) {
+                        String prefix = "node." + node.index;
+                        router.metrics.gauge(prefix + ".inflight", node.inFlight::get);
+                        router.metrics.gauge(prefix + ".latency.ms", () -> Math.round(node.latencyMillis));
+                        router.metrics.gauge(prefix + ".ejected", () -> node.isAvailable(System.nanoTime()) ? 0 : 1);
+                    }
+                    return router;
+                });
+    }
+
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    public Node select(boolean write) {
+        return select(null, write);
+    }
+
+    /**
+     * Choose the node for the call.
+     *
+     * @param session the window of the connector instance, or null if the reads don't follow its writes
+     * @param write
+     * @return
+     */
+    public Node select(Session session, boolean write) {
+        long now = System.nanoTime();
+        if (pinWrites && (write || (session != null && session.isReadingOwnWrites(now)))) {
+            if (write && session != null) {
+                session.lastWriteAt = now;
+                session.written = true;
+            }
+            return pinned(now);
+        }
+
+        List<Node> available = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            if (node.isAvailable(now)) {
+                available.add(node);
+            }
+        }
+        if (available.isEmpty()) {
+            return earliestBack();
+        }
+        if (available.size() == 1) {
+            return available.get(0);
+        }
+
+        // Power of two choices avoids sending all calls to the same best node
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(available.size());
+        int j = random.nextInt(available.size() - 1);
+        if (j >= i) {
+            j++;
+        }
+        Node a = available.get(i);
+        Node b = available.get(j);
+        return a.score() <= b.score() ? a : b;
+    }
+
+    private Node pinned(long now) {
+        Node node = pinned;
+        if (node != null && node.isAvailable(now)) {
+            return node;
+        }
+        synchronized (this) {
+            node = pinned;
+            if (node != null && node.isAvailable(now)) {
+                return node;
+            }
+            // The first available node in the configured order
+            Node next = nodes.stream().filter(n -> n.isAvailable(now)).findFirst().orElseGet(this::earliestBack);
+            if (next != node) {
+                LOG.info("Pinned the writes to Crowd node: {0}", next.url);
+            }
+            pinned = next;
+            return next;
+        }
+    }
+
+    private Node earliestBack() {
+        Node earliest = nodes.get(0);
+        for (Node node : nodes) {
+            if (node.ejectedUntil - earliest.ejectedUntil < 0) {
+                earliest = node;
+            }
+        }
+        return earliest;
+    }
+
+    public <T> T call(boolean write, NodeCall<T> call) throws Exception {
+        return call(null, write, call);
+    }
+
+    /**
+     * Send the call to the chosen node and record the result for the routing.
+     *
+     * @param session the window of the connector instance, or null if the reads don't follow its writes
+     * @param write
+     * @param call
+     * @return
+     * @throws Exception
+     */
+    public <T> T call(Session session, boolean write, NodeCall<T> call) throws Exception {
+        Node node = select(session, write);
+        node.inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            T result = call.call(node);
+            onSuccess(node, System.nanoTime() - start);
+            return result;
+
+        } catch (Exception e) {
+            if (isNodeFailure(e)) {
+                onFailure(node);
+            } else {
+                // The node responded properly, e.g. not found
+                onSuccess(node, System.nanoTime() - start);
+            }
+            throw e;
+
+        } finally {
+            node.inFlight.decrementAndGet();
+        }
+    }
+
+    void onSuccess(Node node, long latencyNanos) {
+        double latency = latencyNanos / 1_000_000.0;
+        double average = node.latencyMillis;
+        node.latencyMillis = average == 0 ? latency : average + LATENCY_WEIGHT * (latency - average);
+        node.failures.set(0);
+
+        if (node.ejected) {
+            synchronized (node) {
+                if (node.ejected) {
+                    node.ejected = false;
+                    node.ejections = 0;
+                    metrics.increment("node.recovered");
+                    LOG.info("Crowd node recovered: {0}", node.url);
+                }
+            }
+        }
+    }
+
+    void onFailure(Node node) {
+        metrics.increment("node.errors");
+        if (node.failures.incrementAndGet() < ejectionFailures && !node.ejected) {
+            return;
+        }
+        synchronized (node) {
+            long now = System.nanoTime();
+            if (!node.isAvailable(now)) {
+                // Already ejected by the concurrent failure
+                return;
+            }
+            node.ejections++;
+            long duration = ejectionNanos * Math.min(node.ejections, MAX_EJECTION_MULTIPLIER);
+            node.ejectedUntil = now + duration;
+            node.ejected = true;
+            node.failures.set(0);
+            metrics.increment("node.ejected");
+            LOG.warn("Ejected Crowd node for {0}ms due to the consecutive failures: {1}",
+                    TimeUnit.NANOSECONDS.toMillis(duration), node.url);
+        }
+    }
+
+    /**
+     * Return true if the failure means the node is unhealthy, not the request is wrong.
+     * The malformed response isn't counted because the other nodes return the same data.
+     *
+     * @param e
+     * @return
+     */
+    static boolean isNodeFailure(Throwable e) {
+        if (Utils.isTransportFailure(e)) {
+            return true;
+        }
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof CrowdJsonClient.CrowdHttpException) {
+                return ((CrowdJsonClient.CrowdHttpException) t).getStatusCode() >= 500;
+            }
+            if (t instanceof CrowdException && ExceptionUtil.getStatusCode((CrowdException) t) >= 500) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the client which routes each call to one of the clients for the nodes.
+     * The clients must be in the same order as the nodes.
+     *
+     * @param type
+     * @param clients
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <C> C proxy(Class<C> type, List<C> clients) {
+        return (C) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new RoutingHandler(this, clients));
+    }
+
+    /**
+     * Return the handler of the client created by {@link #proxy(Class, List)}, or null if it's not routed.
+     *
+     * @param client
+     * @return
+     */
+    public static RoutingHandler getRoutingHandler(Object client) {
+        if (client != null && Proxy.isProxyClass(client.getClass())
+                && Proxy.getInvocationHandler(client) instanceof RoutingHandler) {
+            return (RoutingHandler) Proxy.getInvocationHandler(client);
+        }
+        return null;
+    }
+
+    public static class RoutingHandler implements InvocationHandler {
+        private final CrowdNodeRouter router;
+        private final List<?> clients;
+        // The proxy is created per connector instance
+        private final Session session = new Session();
+
+        RoutingHandler(CrowdNodeRouter router, List<?> clients) {
+            this.router = router;
+            this.clients = clients;
+        }
+
+        public CrowdNodeRouter getRouter() {
+            return router;
+        }
+
+        public Session getSession() {
+            return session;
+        }
+
+        /**
+         * Return the clients for the nodes, in the same order as the nodes.
+         *
+         * @return
+         */
+        public List<?> getClients() {
+            return clients;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return CrowdNodeRouter.invoke(method, clients.get(0), args);
+            }
+            if (method.getName().equals("shutdown")) {
+                for (Object client : clients) {
+                    CrowdNodeRouter.invoke(method, client, args);
+                }
+                return null;
+            }
+            return router.call(session, !isRead(method), node -> CrowdNodeRouter.invoke(method, clients.get(node.index), args));
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object[] args) throws Exception {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    static boolean isRead(Method method) {
+        String name = method.getName();
+        return name.startsWith("get") || name.startsWith("search") || name.startsWith("is")
+                || name.startsWith("test") || name.startsWith("authenticate") || name.startsWith("validate");
+    }
+}
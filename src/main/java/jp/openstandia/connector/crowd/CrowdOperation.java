@@ -0,0 +1,84 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+/**
+ * Crowd REST API calls issued by the connector. It's used for the metrics and the call policies.
+ */
+public enum CrowdOperation {
+    TEST("test", true, CrowdPriority.INTERACTIVE),
+
+    CREATE_USER("createUser", false, CrowdPriority.INTERACTIVE),
+    GET_USER("getUser", true, CrowdPriority.INTERACTIVE),
+    SEARCH_USERS("searchUsers", true, CrowdPriority.BULK),
+    SEARCH_USER_NAMES("searchUserNames", true, CrowdPriority.BULK),
+    UPDATE_USER("updateUser", false, CrowdPriority.INTERACTIVE),
+    STORE_USER_ATTRIBUTES("storeUserAttributes", true, CrowdPriority.INTERACTIVE),
+    UPDATE_PASSWORD("updatePassword", false, CrowdPriority.INTERACTIVE),
+    RENAME_USER("renameUser", false, CrowdPriority.INTERACTIVE),
+    DELETE_USER("deleteUser", false, CrowdPriority.INTERACTIVE),
+
+    ADD_USER_TO_GROUP("addUserToGroup", false, CrowdPriority.INTERACTIVE),
+    REMOVE_USER_FROM_GROUP("removeUserFromGroup", false, CrowdPriority.INTERACTIVE),
+    GET_GROUPS_FOR_USER("getGroupsForUser", true, CrowdPriority.INTERACTIVE),
+    ADD_GROUP_TO_GROUP("addGroupToGroup", false, CrowdPriority.INTERACTIVE),
+    REMOVE_GROUP_FROM_GROUP("removeGroupFromGroup", false, CrowdPriority.INTERACTIVE),
+    GET_GROUPS_FOR_GROUP("getGroupsForGroup", true, CrowdPriority.INTERACTIVE),
+    GET_USERS_OF_GROUP("getUsersOfGroup", true, CrowdPriority.INTERACTIVE),
+    GET_MEMBERSHIPS("getMemberships", true, CrowdPriority.BULK),
+
+    CREATE_GROUP("createGroup", false, CrowdPriority.INTERACTIVE),
+    GET_GROUP("getGroup", true, CrowdPriority.INTERACTIVE),
+    SEARCH_GROUPS("searchGroups", true, CrowdPriority.BULK),
+    SEARCH_GROUP_NAMES("searchGroupNames", true, CrowdPriority.BULK),
+    UPDATE_GROUP("updateGroup", false, CrowdPriority.INTERACTIVE),
+    STORE_GROUP_ATTRIBUTES("storeGroupAttributes", true, CrowdPriority.INTERACTIVE),
+    DELETE_GROUP("deleteGroup", false, CrowdPriority.INTERACTIVE);
+
+    private final String metricName;
+    private final boolean idempotent;
+    private final CrowdPriority priority;
+
+    CrowdOperation(String metricName, boolean idempotent, CrowdPriority priority) {
+        this.metricName = metricName;
+        this.idempotent = idempotent;
+        this.priority = priority;
+    }
+
+    public String getMetricName() {
+        return metricName;
+    }
+
+    /**
+     * Return true if the call can be sent again safely when it failed transiently.
+     * The reads and the attribute store (it replaces the values) are idempotent.
+     *
+     * @return
+     */
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    /**
+     * Return the priority class of the call. The searches are the bulk reads, the others are the writes
+     * or the point reads.
+     *
+     * @return
+     */
+    public CrowdPriority getPriority() {
+        return priority;
+    }
+}
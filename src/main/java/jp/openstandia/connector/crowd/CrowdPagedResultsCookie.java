@@ -0,0 +1,85 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import com.atlassian.crowd.embedded.api.SearchRestriction;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * ConnId paged results cookie.
+ * The cookie holds the keyset position (the last returned name), the number of the returned objects and
+ * the hash of the search restriction, so the next page is fetched by "name greater than the last name"
+ * without the offset cost. The hash rejects the cookie which is used for the different search.
+ */
+public class CrowdPagedResultsCookie {
+
+    private static final String VERSION = "2";
+
+    public final String lastName;
+    public final int position;
+
+    public CrowdPagedResultsCookie(String lastName, int position) {
+        this.lastName = lastName;
+        this.position = position;
+    }
+
+    public String encode(SearchRestriction restriction) {
+        String raw = VERSION + "|" + restrictionHash(restriction) + "|" + position + "|" + lastName;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decode the cookie.
+     *
+     * @param cookie
+     * @param restriction
+     * @return the decoded cookie, or null if the cookie is null (the first page)
+     * @throws InvalidAttributeValueException if the cookie is broken or issued for the different search
+     */
+    public static CrowdPagedResultsCookie decode(String cookie, SearchRestriction restriction) {
+        if (cookie == null) {
+            return null;
+        }
+
+        String raw;
+        try {
+            raw = new String(Base64.getUrlDecoder().decode(cookie), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidAttributeValueException("Invalid paged results cookie: " + cookie);
+        }
+
+        String[] parts = raw.split("\\|", 4);
+        if (parts.length != 4 || !parts[0].equals(VERSION)) {
+            throw new InvalidAttributeValueException("Invalid paged results cookie: " + cookie);
+        }
+        if (!parts[1].equals(restrictionHash(restriction))) {
+            throw new InvalidAttributeValueException("The paged results cookie was issued for the different search: " + cookie);
+        }
+        try {
+            return new CrowdPagedResultsCookie(parts[3], Integer.parseInt(parts[2]));
+        } catch (NumberFormatException e) {
+            throw new InvalidAttributeValueException("Invalid paged results cookie: " + cookie);
+        }
+    }
+
+    static String restrictionHash(SearchRestriction restriction) {
+        // The JSON form is a canonical representation of the restriction
+        return Integer.toHexString(CrowdJsonClient.toJson(restriction).hashCode());
+    }
+}
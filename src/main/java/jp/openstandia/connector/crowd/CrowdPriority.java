@@ -0,0 +1,44 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+/**
+ * Priority classes of the requests to Crowd for the scheduling in {@link CrowdConcurrencyLimiter}.
+ */
+public enum CrowdPriority {
+    /**
+     * The writes and the point reads, e.g. the provisioning triggered by the HR events.
+     */
+    INTERACTIVE("interactive"),
+    /**
+     * The search pages and the lookups during the scans, e.g. the reconciliation.
+     */
+    BULK("bulk");
+
+    private final String metricName;
+
+    CrowdPriority(String metricName) {
+        this.metricName = metricName;
+    }
+
+    public String getMetricName() {
+        return metricName;
+    }
+
+    CrowdPriority other() {
+        return this == INTERACTIVE ? BULK : INTERACTIVE;
+    }
+}
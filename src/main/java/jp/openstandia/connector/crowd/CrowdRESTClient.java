@@ -16,6 +16,7 @@
 package jp.openstandia.connector.crowd;
 
 import com.atlassian.crowd.embedded.api.PasswordCredential;
+import com.atlassian.crowd.embedded.api.SearchRestriction;
 import com.atlassian.crowd.exception.*;
 import com.atlassian.crowd.integration.rest.entity.GroupEntity;
 import com.atlassian.crowd.integration.rest.entity.UserEntity;
@@ -23,23 +24,45 @@ import com.atlassian.crowd.integration.rest.service.ExceptionUtil;
 import com.atlassian.crowd.integration.rest.service.RestExecutorWrapper;
 import com.atlassian.crowd.model.group.Group;
 import com.atlassian.crowd.model.group.GroupWithAttributes;
+import com.atlassian.crowd.model.group.Membership;
 import com.atlassian.crowd.model.user.User;
 import com.atlassian.crowd.model.user.UserWithAttributes;
-import com.atlassian.crowd.search.query.entity.restriction.NullRestriction;
+import com.atlassian.crowd.search.query.entity.restriction.*;
+import com.atlassian.crowd.search.query.entity.restriction.constants.GroupTermKeys;
+import com.atlassian.crowd.search.query.entity.restriction.constants.UserTermKeys;
 import com.atlassian.crowd.service.client.CrowdClient;
+import jp.openstandia.connector.util.Utils;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.common.exceptions.*;
+import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.Name;
 import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.Uid;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class CrowdRESTClient {
     private static final Log LOG = Log.getLog(CrowdRESTClient.class);
@@ -48,17 +71,52 @@ public class CrowdRESTClient {
     private final CrowdConfiguration configuration;
     private final CrowdClient crowdClient;
     private final RestExecutorWrapper executor;
+    // Used for the read path when JSON transport is selected, otherwise null
+    private final CrowdJsonClient jsonClient;
+    private final CrowdExecutor taskExecutor;
+    private final CrowdConcurrencyLimiter limiter;
+    private final CrowdCircuitBreaker circuitBreaker;
+    private final CrowdRetryPolicy retryPolicy;
+    private final CrowdMetrics metrics;
+    private final CrowdCountCache countCache;
+    private final CrowdLookupBatcher<UserEntity> userLookupBatcher;
+    private final CrowdLookupBatcher<GroupEntity> groupLookupBatcher;
+    private final CrowdSingleFlight singleFlight;
+    private final CrowdNegativeCache negativeCache;
+    private final CrowdGroupGraphCache groupGraphCache;
+
+    // Names-only search is cheap, so list the names with the large pages
+    static final int NAMES_PAGE_SIZE = 1000;
+
+    // Set while the thread runs a full scan, so all calls for the scan are scheduled as the bulk reads
+    private static final ThreadLocal<Boolean> SCANNING = new ThreadLocal<>();
 
     public CrowdRESTClient(String instanceName, CrowdConfiguration configuration, CrowdClient httpClient) {
+        this(instanceName, configuration, httpClient, null);
+    }
+
+    public CrowdRESTClient(String instanceName, CrowdConfiguration configuration, CrowdClient httpClient, CrowdJsonClient jsonClient) {
         this.instanceName = instanceName;
         this.configuration = configuration;
         this.crowdClient = httpClient;
         this.executor = new RestExecutorWrapper(httpClient);
+        this.jsonClient = jsonClient;
+        this.taskExecutor = new CrowdExecutor(configuration != null ? configuration.getHttpMaxConnectionsPerPoolableConnector() : 1);
+        this.limiter = CrowdConcurrencyLimiter.of(configuration);
+        this.circuitBreaker = CrowdCircuitBreaker.of(configuration);
+        this.retryPolicy = CrowdRetryPolicy.of(configuration);
+        this.metrics = CrowdMetrics.of(configuration);
+        this.countCache = CrowdCountCache.of(configuration);
+        this.userLookupBatcher = CrowdLookupBatcher.of(configuration, "user");
+        this.groupLookupBatcher = CrowdLookupBatcher.of(configuration, "group");
+        this.singleFlight = CrowdSingleFlight.of(configuration);
+        this.negativeCache = CrowdNegativeCache.of(configuration);
+        this.groupGraphCache = CrowdGroupGraphCache.of(configuration);
     }
 
     public void test() {
         try {
-            this.crowdClient.getCookieConfiguration();
+            execute(CrowdOperation.TEST, () -> this.crowdClient.getCookieConfiguration());
 
             LOG.info("[{0}] Crowd connector's connection test is OK", instanceName);
 
@@ -72,6 +130,10 @@ public class CrowdRESTClient {
     }
 
     protected ConnectorException handleException(Exception e) {
+        if (e instanceof ConnectionFailedException) {
+            // Failed fast by the circuit breaker
+            return (ConnectionFailedException) e;
+        }
         if (e instanceof CrowdException) {
             return handleException((CrowdException) e);
         }
@@ -82,7 +144,7 @@ public class CrowdRESTClient {
     }
 
     protected ConnectorException handleException(CrowdException e) {
-        int statusCode = ExceptionUtil.getStatusCode(e);
+        int statusCode = getStatusCode(e);
 
         if (e instanceof InvalidAuthenticationException) {
             return new ConnectionFailedException(e);
@@ -106,11 +168,178 @@ public class CrowdRESTClient {
         return new PermissionDeniedException(e);
     }
 
+    protected int getStatusCode(CrowdException e) {
+        if (e instanceof CrowdJsonClient.CrowdHttpException) {
+            return ((CrowdJsonClient.CrowdHttpException) e).getStatusCode();
+        }
+        return ExceptionUtil.getStatusCode(e);
+    }
+
+    @FunctionalInterface
+    protected interface CrowdCall<T> {
+        T call() throws Exception;
+    }
+
+    @FunctionalInterface
+    protected interface CrowdVoidCall {
+        void call() throws Exception;
+    }
+
+    /**
+     * Call Crowd API under the concurrency limiter and record the metrics of the call.
+     * The idempotent calls are retried on the transient failures.
+     *
+     * @param operation
+     * @param call
+     * @return
+     * @throws Exception
+     */
+    protected <T> T execute(CrowdOperation operation, CrowdCall<T> call) throws Exception {
+        retryPolicy.onCall();
+
+        int retries = 0;
+        while (true) {
+            try {
+                return executeOnce(operation, call);
+
+            } catch (Exception e) {
+                if (!operation.isIdempotent() || !isTransient(e)) {
+                    throw e;
+                }
+
+                long delay = retryPolicy.nextDelay(retries, getRetryAfterMillis(e));
+                if (delay < 0) {
+                    throw e;
+                }
+
+                retries++;
+                metrics.increment("retry." + operation.getMetricName());
+
+                LOG.info("[{0}] Retrying {1} in {2}ms (retry: {3}) due to transient error: {4}",
+                        instanceName, operation.getMetricName(), delay, retries, e.getMessage());
+
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private <T> T executeOnce(CrowdOperation operation, CrowdCall<T> call) throws Exception {
+        String prefix = "call." + operation.getMetricName();
+        CrowdPriority priority = SCANNING.get() != null ? CrowdPriority.BULK : operation.getPriority();
+
+        // Fail fast without waiting for the limiter while Crowd is unreachable
+        circuitBreaker.check(() -> this.crowdClient.getCookieConfiguration());
+
+        limiter.acquire(priority);
+
+        long start = System.nanoTime();
+        boolean overloaded = false;
+        try {
+            metrics.increment(prefix + ".count");
+            T result = call.call();
+            circuitBreaker.onSuccess();
+            return result;
+
+        } catch (Exception e) {
+            circuitBreaker.onFailure(e);
+            overloaded = isOverloaded(e);
+            if (!(e instanceof ObjectNotFoundException)) {
+                metrics.increment(prefix + ".errors");
+            }
+            throw e;
+
+        } finally {
+            long latency = System.nanoTime() - start;
+            metrics.add(prefix + ".time.ms", TimeUnit.NANOSECONDS.toMillis(latency));
+            limiter.release(priority, latency, overloaded);
+        }
+    }
+
+    protected void execute(CrowdOperation operation, CrowdVoidCall call) throws Exception {
+        execute(operation, () -> {
+            call.call();
+            return null;
+        });
+    }
+
+    /**
+     * Run the part of a full scan. The calls in it, including the lookups for the scanned objects,
+     * are scheduled as the bulk reads.
+     *
+     * @param call
+     * @return
+     * @throws Exception
+     */
+    protected <T> T scan(CrowdCall<T> call) throws Exception {
+        if (SCANNING.get() != null) {
+            return call.call();
+        }
+        SCANNING.set(Boolean.TRUE);
+        try {
+            return call.call();
+        } finally {
+            SCANNING.remove();
+        }
+    }
+
+    /**
+     * Return true if the failure is transient and the call might succeed when it's sent again.
+     *
+     * @param e
+     * @return
+     */
+    protected boolean isTransient(Exception e) {
+        if (e instanceof ConnectionFailedException) {
+            // Rejected by the open circuit breaker
+            return false;
+        }
+        if (e instanceof CrowdException) {
+            int statusCode = getStatusCode((CrowdException) e);
+            if (statusCode == 429 || statusCode == 502 || statusCode == 503 || statusCode == 504) {
+                return true;
+            }
+        }
+        // Connection reset, read timeout etc. Not the errors of reading the body, e.g. malformed JSON,
+        // because the same response is returned again
+        return Utils.isTransportFailure(e);
+    }
+
+    protected long getRetryAfterMillis(Exception e) {
+        if (e instanceof CrowdJsonClient.CrowdHttpException) {
+            return ((CrowdJsonClient.CrowdHttpException) e).getRetryAfterMillis();
+        }
+        return -1;
+    }
+
+    /**
+     * Return true if Crowd responded it's overloaded (429 or 5xx).
+     *
+     * @param e
+     * @return
+     */
+    protected boolean isOverloaded(Exception e) {
+        if (e instanceof CrowdException) {
+            int statusCode = getStatusCode((CrowdException) e);
+            return statusCode == 429 || statusCode >= 500;
+        }
+        return false;
+    }
+
     // User
 
     public Uid createUser(UserWithAttributes user, GuardedString password) throws AlreadyExistsException {
         try {
-            UserWithAttributes result = this.crowdClient.addUser(user, toPasswordCredential(password));
+            UserWithAttributes result = execute(CrowdOperation.CREATE_USER,
+                    () -> this.crowdClient.addUser(user, toPasswordCredential(password)));
+            countCache.invalidate();
+            negativeCache.remove(userUidKey(result.getExternalId()));
+            negativeCache.remove(userNameKey(result.getName()));
+            detachUser(result.getName());
 
             // Use "key" as UID
             return new Uid(result.getExternalId(), new Name(result.getName()));
@@ -134,7 +363,15 @@ public class CrowdRESTClient {
 
     public UserEntity getUser(Uid uid, OperationOptions options, Set<String> fetchFieldsSet) throws UnknownUidException {
         try {
-            UserEntity user = (UserEntity) this.executor.getUserByKeyWithAttributes(uid.getUidValue());
+            UserEntity user = read(userUidKey(uid.getUidValue()), () -> execute(CrowdOperation.GET_USER, () -> {
+                if (jsonClient != null) {
+                    return jsonClient.getUserByKeyWithAttributes(uid.getUidValue());
+                }
+                return (UserEntity) this.executor.getUserByKeyWithAttributes(uid.getUidValue());
+            }));
+            if (user == null) {
+                throw new UserNotFoundException(uid.getUidValue());
+            }
             return user;
 
         } catch (Exception e) {
@@ -144,7 +381,11 @@ public class CrowdRESTClient {
 
     public UserEntity getUser(Name name, OperationOptions options, Set<String> fetchFieldsSet) throws UnknownUidException {
         try {
-            UserEntity user = (UserEntity) this.crowdClient.getUserWithAttributes(name.getNameValue());
+            UserEntity user = read(userNameKey(name.getNameValue()),
+                    () -> userLookupBatcher.get(name.getNameValue(), this::getUsersByNames));
+            if (user == null) {
+                throw new UserNotFoundException(name.getNameValue());
+            }
             return user;
 
         } catch (Exception e) {
@@ -152,9 +393,34 @@ public class CrowdRESTClient {
         }
     }
 
+    protected Map<String, UserEntity> getUsersByNames(List<String> names) throws Exception {
+        Map<String, UserEntity> found = new HashMap<>();
+
+        if (names.size() == 1) {
+            String name = names.get(0);
+            try {
+                UserEntity user = execute(CrowdOperation.GET_USER, () -> {
+                    if (jsonClient != null) {
+                        return jsonClient.getUserWithAttributes(name);
+                    }
+                    return (UserEntity) this.crowdClient.getUserWithAttributes(name);
+                });
+                found.put(CrowdLookupBatcher.key(name), user);
+            } catch (UserNotFoundException ignore) {
+            }
+            return found;
+        }
+
+        for (UserWithAttributes user : searchUsers(namesRestriction(UserTermKeys.USERNAME, names), 0, names.size())) {
+            found.put(CrowdLookupBatcher.key(user.getName()), (UserEntity) user);
+        }
+        return found;
+    }
+
     public void updateUser(User update) {
         try {
-            this.crowdClient.updateUser(update);
+            execute(CrowdOperation.UPDATE_USER, () -> this.crowdClient.updateUser(update));
+            detachUser(update.getName());
 
         } catch (Exception e) {
             throw handleException(e);
@@ -165,7 +431,8 @@ public class CrowdRESTClient {
         try {
             // We don't use removeUserAttributes to reduce API calling.
             // Instead of it, we pass empty list to remove the attribute.
-            this.crowdClient.storeUserAttributes(userName, attributes);
+            execute(CrowdOperation.STORE_USER_ATTRIBUTES, () -> this.crowdClient.storeUserAttributes(userName, attributes));
+            detachUser(userName);
 
         } catch (Exception e) {
             throw handleException(e);
@@ -175,7 +442,7 @@ public class CrowdRESTClient {
     public void updatePassword(String userName, GuardedString password) {
         password.access(c -> {
             try {
-                this.crowdClient.updateUserCredential(userName, String.valueOf(c));
+                execute(CrowdOperation.UPDATE_PASSWORD, () -> this.crowdClient.updateUserCredential(userName, String.valueOf(c)));
             } catch (Exception e) {
                 throw handleException(e);
             }
@@ -186,7 +453,8 @@ public class CrowdRESTClient {
         try {
             // We don't use removeGroupAttributes to reduce API calling.
             // Instead of it, we pass empty list to remove the attribute.
-            this.crowdClient.storeGroupAttributes(groupName, attributes);
+            execute(CrowdOperation.STORE_GROUP_ATTRIBUTES, () -> this.crowdClient.storeGroupAttributes(groupName, attributes));
+            detachGroup(groupName);
 
         } catch (Exception e) {
             throw handleException(e);
@@ -195,7 +463,12 @@ public class CrowdRESTClient {
 
     public void renameUser(String userName, String newUserName) {
         try {
-            this.crowdClient.renameUser(userName, newUserName);
+            execute(CrowdOperation.RENAME_USER, () -> this.crowdClient.renameUser(userName, newUserName));
+            negativeCache.remove(userNameKey(newUserName));
+            negativeCache.put(userNameKey(userName));
+            detachUser(userName);
+            detachUser(newUserName);
+            groupGraphCache.invalidate();
         } catch (Exception e) {
             throw handleException(e);
         }
@@ -205,7 +478,12 @@ public class CrowdRESTClient {
         try {
             String userName = resolveUserName(uid);
 
-            this.crowdClient.removeUser(userName);
+            execute(CrowdOperation.DELETE_USER, () -> this.crowdClient.removeUser(userName));
+            countCache.invalidate();
+            negativeCache.put(userUidKey(uid.getUidValue()));
+            negativeCache.put(userNameKey(userName));
+            detachUser(userName);
+            groupGraphCache.invalidate();
 
         } catch (Exception e) {
             throw handleException(e);
@@ -221,13 +499,114 @@ public class CrowdRESTClient {
         }
     }
 
+    /**
+     * Read the object through the negative cache and the single flight.
+     *
+     * @param key
+     * @param call
+     * @param <T>
+     * @return the object, or null if not found
+     * @throws Exception
+     */
+    protected <T> T read(String key, Callable<T> call) throws Exception {
+        if (negativeCache.isNotFound(key)) {
+            return null;
+        }
+        long generation = negativeCache.generation();
+        try {
+            T result = singleFlight.execute(key, call);
+            if (result == null) {
+                negativeCache.put(key, generation);
+            }
+            return result;
+
+        } catch (ObjectNotFoundException e) {
+            negativeCache.put(key, generation);
+            return null;
+        }
+    }
+
+    /**
+     * Detach the reads in flight for the written user, see {@link CrowdSingleFlight#detach(String...)}.
+     *
+     * @param userName
+     */
+    private void detachUser(String userName) {
+        singleFlight.detach(userNameKey(userName), userGroupsKey(userName));
+        // The uid isn't known by the name
+        singleFlight.detachAll(userUidKey(""));
+    }
+
+    private void detachGroup(String groupName) {
+        singleFlight.detach(groupNameKey(groupName), groupGroupsKey(groupName));
+    }
+
+    private static String userUidKey(String uid) {
+        return "user.uid|" + uid;
+    }
+
+    private static String userNameKey(String name) {
+        return "user.name|" + CrowdLookupBatcher.key(name);
+    }
+
+    private static String groupNameKey(String name) {
+        return "group.name|" + CrowdLookupBatcher.key(name);
+    }
+
+    private static String userGroupsKey(String name) {
+        return "user.groups|" + CrowdLookupBatcher.key(name);
+    }
+
+    private static String groupGroupsKey(String name) {
+        return "group.groups|" + CrowdLookupBatcher.key(name);
+    }
+
+    /**
+     * Fetch the users by the uids or names with the parallel point lookups.
+     * The not found users are skipped, and the duplicates are removed.
+     *
+     * @param identifiers
+     * @param options
+     * @param fetchFieldsSet
+     * @return
+     */
+    public List<UserEntity> getUsersByIdentifiers(List<Attribute> identifiers, OperationOptions options, Set<String> fetchFieldsSet) {
+        try {
+            List<UserEntity> found = taskExecutor.invokeAll(identifiers, id -> getOrNull(() -> id instanceof Uid ?
+                    getUser((Uid) id, options, fetchFieldsSet) :
+                    getUser((Name) id, options, fetchFieldsSet)));
+
+            Map<String, UserEntity> unique = new LinkedHashMap<>();
+            for (UserEntity u : found) {
+                if (u != null) {
+                    unique.putIfAbsent(u.getExternalId(), u);
+                }
+            }
+            return new ArrayList<>(unique.values());
+
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
     public int getUsers(CrowdQueryHandler<UserWithAttributes> handler, OperationOptions options, Set<String> fetchFieldsSet, int pageSize, int pageOffset) {
+        return getUsers(NullRestriction.INSTANCE, handler, options, fetchFieldsSet, pageSize, pageOffset);
+    }
+
+    public int getUsers(SearchRestriction restriction, CrowdQueryHandler<UserWithAttributes> handler, OperationOptions options, Set<String> fetchFieldsSet, int pageSize, int pageOffset) {
         // ConnId starts from 1, 0 means no offset (requested all data)
         if (pageOffset < 1) {
+            if (configuration != null && configuration.isUserTwoPhaseSearch()) {
+                return getAllByTwoPhase(handler, restriction, UserTermKeys.USERNAME, this::searchUserNames,
+                        name -> getOrNull(() -> getUser(new Name(name), options, fetchFieldsSet)));
+            }
+            if (isKeysetPagingEnabled()) {
+                return getAllByKeyset(handler, pageSize, restriction, UserTermKeys.USERNAME, UserWithAttributes::getName,
+                        this::searchUsers);
+            }
             return getAll(handler, pageSize, (start, size) -> {
                 try {
-                    List<UserWithAttributes> users = this.crowdClient.searchUsersWithAttributes(NullRestriction.INSTANCE, start, size);
-                    return users;
+                    return searchUsers(restriction, start, size);
                 } catch (Exception e) {
                     throw handleException(e);
                 }
@@ -240,7 +619,7 @@ public class CrowdRESTClient {
         int count = 0;
 
         try {
-            List<UserWithAttributes> users = this.crowdClient.searchUsersWithAttributes(NullRestriction.INSTANCE, start, pageSize);
+            List<UserWithAttributes> users = searchUsers(restriction, start, pageSize);
 
             for (UserWithAttributes user : users) {
                 count++;
@@ -255,73 +634,371 @@ public class CrowdRESTClient {
         return count;
     }
 
-    protected <T> int getAll(CrowdQueryHandler<T> handler, int pageSize, BiFunction<Integer, Integer, List<T>> apiCall) {
-        // Crowd starts from 0
-        int start = 0;
-        int count = 0;
+    /**
+     * Fetch one page of the users after the last name for the paged results cookie.
+     *
+     * @param restriction
+     * @param lastName    the last name of the previous page, or null for the first page
+     * @param handler
+     * @param options
+     * @param fetchFieldsSet
+     * @param pageSize
+     * @return the last name of this page, or null if there are no more pages
+     */
+    public String getUsersPage(SearchRestriction restriction, String lastName, CrowdQueryHandler<UserWithAttributes> handler,
+                               OperationOptions options, Set<String> fetchFieldsSet, int pageSize) {
+        return getPageByKeyset(handler, pageSize, restriction, UserTermKeys.USERNAME, lastName, UserWithAttributes::getName,
+                this::searchUsers);
+    }
+
+    protected List<UserWithAttributes> searchUsers(SearchRestriction restriction, int start, int size) throws Exception {
+        return execute(CrowdOperation.SEARCH_USERS, () -> {
+            if (jsonClient != null) {
+                return jsonClient.searchUsersWithAttributes(restriction, start, size);
+            }
+            return this.crowdClient.searchUsersWithAttributes(restriction, start, size);
+        });
+    }
+
+    /**
+     * Count the users matched with the restriction by the names-only search. The count is cached for a short time.
+     *
+     * @param restriction
+     * @return
+     */
+    public int countUsers(SearchRestriction restriction) {
+        return countCache.get("user|" + CrowdJsonClient.toJson(restriction),
+                () -> countNames(restriction, UserTermKeys.USERNAME, this::searchUserNames));
+    }
+
+    /**
+     * Count the users matched with the restriction up to the limit by one names search,
+     * instead of counting all of them page by page.
+     *
+     * @param restriction
+     * @param limit
+     * @return
+     */
+    public int countUsersUpTo(SearchRestriction restriction, int limit) {
         try {
+            return searchUserNames(restriction, 0, limit).size();
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    protected List<String> searchUserNames(SearchRestriction restriction, int start, int size) throws Exception {
+        return execute(CrowdOperation.SEARCH_USER_NAMES, () -> {
+            if (jsonClient != null) {
+                return jsonClient.searchUserNames(restriction, start, size);
+            }
+            return this.crowdClient.searchUserNames(restriction, start, size);
+        });
+    }
+
+    protected int countNames(SearchRestriction restriction, Property<String> nameProperty, SearchCall<String> apiCall) {
+        CrowdQueryHandler<String> counter = name -> true;
+
+        if (isKeysetPagingEnabled()) {
+            return getAllByKeyset(counter, NAMES_PAGE_SIZE, restriction, nameProperty, name -> name, apiCall);
+        }
+        return getAll(counter, NAMES_PAGE_SIZE, (start, size) -> {
+            try {
+                return apiCall.search(restriction, start, size);
+            } catch (Exception e) {
+                throw handleException(e);
+            }
+        });
+    }
+
+    protected <T> int getAll(CrowdQueryHandler<T> handler, int pageSize, BiFunction<Integer, Integer, List<T>> apiCall) {
+        return handOff(handler, sink -> {
+            // Crowd starts from 0
+            int start = 0;
             while (true) {
                 List<T> results = apiCall.apply(start, pageSize);
 
                 if (results.size() == 0) {
                     // End of the page
-                    return count;
+                    return;
                 }
 
                 for (T result : results) {
-                    count++;
-                    if (!handler.handle(result)) {
-                        return count;
+                    if (!sink.handle(result)) {
+                        return;
                     }
                 }
 
                 // search next page
                 start += pageSize;
             }
+        });
+    }
+
+    /**
+     * Pass the objects fetched by the producer to the handler. When the concurrency is 2 or more and the prefetch
+     * buffer is enabled, the producer fetches the following pages in another thread through the bounded
+     * hand-off queue while the handler processes the current objects. Otherwise, it runs in the caller thread.
+     *
+     * @param handler
+     * @param producer
+     * @param <T>
+     * @return the number of the objects passed to the handler
+     */
+    protected <T> int handOff(CrowdQueryHandler<T> handler, CrowdHandOffQueue.Producer<T> producer) {
+        int[] count = new int[1];
+        try {
+            int bufferSize = configuration != null ? configuration.getPrefetchBufferSize() : 0;
+            // The producer must run in another thread, otherwise it blocks on the full queue
+            if (!taskExecutor.isConcurrent() || bufferSize <= 0) {
+                return scan(() -> {
+                    producer.produce(result -> {
+                        count[0]++;
+                        return handler.handle(result);
+                    });
+                    return count[0];
+                });
+            }
+
+            try (CrowdHandOffQueue<T> queue = new CrowdHandOffQueue<>(bufferSize, metrics)) {
+                queue.start(taskExecutor, sink -> scan(() -> {
+                    producer.produce(sink);
+                    return null;
+                }));
+                return scan(() -> {
+                    T result;
+                    while ((result = queue.take()) != null) {
+                        count[0]++;
+                        if (!handler.handle(result)) {
+                            break;
+                        }
+                    }
+                    return count[0];
+                });
+            }
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    @FunctionalInterface
+    protected interface SearchCall<T> {
+        List<T> search(SearchRestriction restriction, int start, int size) throws Exception;
+    }
+
+    protected boolean isKeysetPagingEnabled() {
+        return configuration != null && configuration.isKeysetPagingEnabled();
+    }
+
+    /**
+     * Fetch all pages by the keyset ("name greater than the last name of the previous page") instead of the offset.
+     * The server doesn't need to skip the preceding rows for the deep pages, and the objects added or removed
+     * during the scan don't shift the following pages. Crowd returns the search results sorted by the name.
+     * The pages are fetched sequentially because the next page depends on the last name of the current page,
+     * but they can still be prefetched ahead of the handler.
+     *
+     * @param handler
+     * @param pageSize
+     * @param restriction
+     * @param nameProperty
+     * @param nameOf
+     * @param apiCall
+     * @param <T>
+     * @return
+     */
+    protected <T> int getAllByKeyset(CrowdQueryHandler<T> handler, int pageSize, SearchRestriction restriction,
+                                     Property<String> nameProperty, Function<T, String> nameOf, SearchCall<T> apiCall) {
+        return handOff(handler, sink -> {
+            String lastName = null;
+            while (true) {
+                List<T> results = apiCall.search(keysetRestriction(restriction, nameProperty, lastName), 0, pageSize);
+
+                if (results.size() == 0) {
+                    // End of the page
+                    return;
+                }
+
+                for (T result : results) {
+                    if (!sink.handle(result)) {
+                        return;
+                    }
+                }
+
+                lastName = nameOf.apply(results.get(results.size() - 1));
+            }
+        });
+    }
+
+    protected <T> String getPageByKeyset(CrowdQueryHandler<T> handler, int pageSize, SearchRestriction restriction,
+                                         Property<String> nameProperty, String lastName,
+                                         Function<T, String> nameOf, SearchCall<T> apiCall) {
+        try {
+            List<T> results = apiCall.search(keysetRestriction(restriction, nameProperty, lastName), 0, pageSize);
+
+            String last = null;
+            for (T result : results) {
+                last = nameOf.apply(result);
+                if (!handler.handle(result)) {
+                    // Resume from the next of the last handled one
+                    return last;
+                }
+            }
+
+            // The page which isn't full is the last page
+            return results.size() < pageSize ? null : last;
+
         } catch (Exception e) {
             throw handleException(e);
         }
     }
 
+    /**
+     * Fetch all objects in two phases. The names are listed by the cheap names-only search first,
+     * then each object is fetched by the name in parallel up to the concurrency of this connector.
+     * The fetches complete in any order, so they are kept in the reorder buffer and passed to the handler
+     * in the name order. The objects deleted between the phases are skipped.
+     *
+     * @param handler
+     * @param restriction
+     * @param nameProperty
+     * @param namesCall
+     * @param hydrate      fetch the object by the name, or return null if it's not found
+     * @param <T>
+     * @return
+     */
+    protected <T> int getAllByTwoPhase(CrowdQueryHandler<? super T> handler, SearchRestriction restriction,
+                                       Property<String> nameProperty, SearchCall<String> namesCall,
+                                       CrowdExecutor.Task<String, T> hydrate) {
+        // Small buffer bounds the memory, but it must be larger than the concurrency to keep all connections busy
+        int bufferSize = taskExecutor.getConcurrency() * 2;
+        Deque<Future<T>> buffer = new ArrayDeque<>(bufferSize);
+        Iterator<String> names = Collections.emptyIterator();
+        boolean hasMoreNames = true;
+        String lastName = null;
+        int start = 0;
+        int count = 0;
+        try {
+            while (true) {
+                // Fill the buffer
+                while (buffer.size() < bufferSize) {
+                    if (names.hasNext()) {
+                        String name = names.next();
+                        buffer.add(taskExecutor.submit(() -> scan(() -> hydrate.run(name))));
+                        continue;
+                    }
+                    if (!hasMoreNames) {
+                        break;
+                    }
+                    List<String> page = isKeysetPagingEnabled() ?
+                            namesCall.search(keysetRestriction(restriction, nameProperty, lastName), 0, NAMES_PAGE_SIZE) :
+                            namesCall.search(restriction, start, NAMES_PAGE_SIZE);
+                    hasMoreNames = page.size() == NAMES_PAGE_SIZE;
+                    if (!page.isEmpty()) {
+                        lastName = page.get(page.size() - 1);
+                    }
+                    start += NAMES_PAGE_SIZE;
+                    names = page.iterator();
+                }
+
+                if (buffer.isEmpty()) {
+                    // End of the names
+                    return count;
+                }
+
+                // Emit the head to keep the name order
+                T result = CrowdExecutor.await(buffer.poll());
+                if (result == null) {
+                    continue;
+                }
+                count++;
+                if (!scan(() -> handler.handle(result))) {
+                    return count;
+                }
+            }
+        } catch (Exception e) {
+            throw handleException(e);
+        } finally {
+            buffer.forEach(f -> f.cancel(true));
+        }
+    }
+
+    protected static <T> T getOrNull(Supplier<T> fetch) {
+        try {
+            return fetch.get();
+        } catch (UnknownUidException e) {
+            return null;
+        }
+    }
+
+    static SearchRestriction namesRestriction(Property<String> nameProperty, List<String> names) {
+        SearchRestriction[] restrictions = names.stream()
+                .map(name -> new TermRestriction<>(nameProperty, MatchMode.EXACTLY_MATCHES, name))
+                .toArray(SearchRestriction[]::new);
+        return new BooleanRestrictionImpl(BooleanRestriction.BooleanLogic.OR, restrictions);
+    }
+
+    static SearchRestriction keysetRestriction(SearchRestriction restriction, Property<String> nameProperty, String lastName) {
+        if (lastName == null) {
+            return restriction;
+        }
+        SearchRestriction after = new TermRestriction<>(nameProperty, MatchMode.GREATER_THAN, lastName);
+        if (restriction == null || restriction instanceof NullRestriction) {
+            return after;
+        }
+        return new BooleanRestrictionImpl(BooleanRestriction.BooleanLogic.AND, restriction, after);
+    }
+
     // User-Group
     public void addUserToGroup(String userName, List<String> groups) throws AlreadyExistsException {
         try {
-            for (String group : groups) {
-                this.crowdClient.addUserToGroup(userName, group);
-            }
+            taskExecutor.forEach(groups, group ->
+                    execute(CrowdOperation.ADD_USER_TO_GROUP, () -> this.crowdClient.addUserToGroup(userName, group)));
         } catch (Exception e) {
             throw handleException(e);
+        } finally {
+            // Some of them may be applied even if failed
+            singleFlight.detach(userGroupsKey(userName));
+            groupGraphCache.invalidate();
         }
     }
 
     public void deleteUserFromGroup(String userName, List<String> groups) throws AlreadyExistsException {
         try {
-            for (String group : groups) {
-                this.crowdClient.removeUserFromGroup(userName, group);
-            }
+            taskExecutor.forEach(groups, group ->
+                    execute(CrowdOperation.REMOVE_USER_FROM_GROUP, () -> this.crowdClient.removeUserFromGroup(userName, group)));
         } catch (Exception e) {
             throw handleException(e);
+        } finally {
+            singleFlight.detach(userGroupsKey(userName));
+            groupGraphCache.invalidate();
         }
     }
 
     public Stream<String> getGroupsForUser(String userName, int pageSize) {
-        // Crowd starts from 0
-        int start = 0;
-        List<String> results = new ArrayList<>();
         try {
-            while (true) {
-                List<String> groups = this.crowdClient.getNamesOfGroupsForUser(userName, start, pageSize);
+            List<String> results = singleFlight.execute(userGroupsKey(userName), () -> {
+                // Crowd starts from 0
+                int start = 0;
+                List<String> all = new ArrayList<>();
+                while (true) {
+                    int offset = start;
+                    List<String> groups = execute(CrowdOperation.GET_GROUPS_FOR_USER, () -> jsonClient != null ?
+                            jsonClient.getNamesOfGroupsForUser(userName, offset, pageSize) :
+                            this.crowdClient.getNamesOfGroupsForUser(userName, offset, pageSize));
+
+                    if (groups.isEmpty()) {
+                        // End of the page
+                        return Collections.unmodifiableList(all);
+                    }
 
-                if (groups.isEmpty()) {
-                    // End of the page
-                    return results.stream();
-                }
+                    all.addAll(groups);
 
-                results.addAll(groups);
+                    // search next page
+                    start += pageSize;
+                }
+            });
+            return results.stream();
 
-                // search next page
-                start += pageSize;
-            }
         } catch (Exception e) {
             throw handleException(e);
         }
@@ -330,52 +1007,182 @@ public class CrowdRESTClient {
     // Group-Group
     public void addGroupToGroup(String groupName, List<String> groups) throws AlreadyExistsException {
         try {
-            for (String group : groups) {
-                this.crowdClient.addGroupToGroup(groupName, group);
-            }
+            taskExecutor.forEach(groups, group ->
+                    execute(CrowdOperation.ADD_GROUP_TO_GROUP, () -> this.crowdClient.addGroupToGroup(groupName, group)));
         } catch (Exception e) {
             throw handleException(e);
+        } finally {
+            singleFlight.detach(groupGroupsKey(groupName));
+            groupGraphCache.invalidate();
         }
     }
 
     public void deleteGroupFromGroup(String groupName, List<String> groups) throws AlreadyExistsException {
         try {
-            for (String group : groups) {
-                this.crowdClient.removeGroupFromGroup(groupName, group);
-            }
+            taskExecutor.forEach(groups, group ->
+                    execute(CrowdOperation.REMOVE_GROUP_FROM_GROUP, () -> this.crowdClient.removeGroupFromGroup(groupName, group)));
         } catch (Exception e) {
             throw handleException(e);
+        } finally {
+            singleFlight.detach(groupGroupsKey(groupName));
+            groupGraphCache.invalidate();
         }
     }
 
     public Stream<String> getGroupsForGroup(String groupName, int pageSize) {
-        // Crowd starts from 0
-        int start = 0;
-        List<String> results = new ArrayList<>();
         try {
-            while (true) {
-                List<String> groups = this.crowdClient.getNamesOfParentGroupsForGroup(groupName, start, pageSize);
+            List<String> results = singleFlight.execute(groupGroupsKey(groupName), () -> {
+                // Crowd starts from 0
+                int start = 0;
+                List<String> all = new ArrayList<>();
+                while (true) {
+                    int offset = start;
+                    List<String> groups = execute(CrowdOperation.GET_GROUPS_FOR_GROUP, () -> jsonClient != null ?
+                            jsonClient.getNamesOfParentGroupsForGroup(groupName, offset, pageSize) :
+                            this.crowdClient.getNamesOfParentGroupsForGroup(groupName, offset, pageSize));
+
+                    if (groups.isEmpty()) {
+                        // End of the page
+                        return Collections.unmodifiableList(all);
+                    }
 
-                if (groups.isEmpty()) {
-                    // End of the page
-                    return results.stream();
+                    all.addAll(groups);
+
+                    // search next page
+                    start += pageSize;
                 }
+            });
+            return results.stream();
 
-                results.addAll(groups);
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
 
-                // search next page
-                start += pageSize;
+    // Group-User
+    public void addUsersToGroup(String groupName, List<String> userNames) throws AlreadyExistsException {
+        try {
+            taskExecutor.forEach(userNames, user ->
+                    execute(CrowdOperation.ADD_USER_TO_GROUP, () -> this.crowdClient.addUserToGroup(user, groupName)));
+        } catch (Exception e) {
+            throw handleException(e);
+        } finally {
+            for (String user : userNames) {
+                singleFlight.detach(userGroupsKey(user));
             }
+            groupGraphCache.invalidate();
+        }
+    }
+
+    public void deleteUsersFromGroup(String groupName, List<String> userNames) throws AlreadyExistsException {
+        try {
+            taskExecutor.forEach(userNames, user ->
+                    execute(CrowdOperation.REMOVE_USER_FROM_GROUP, () -> this.crowdClient.removeUserFromGroup(user, groupName)));
         } catch (Exception e) {
             throw handleException(e);
+        } finally {
+            for (String user : userNames) {
+                singleFlight.detach(userGroupsKey(user));
+            }
+            groupGraphCache.invalidate();
         }
     }
 
+    /**
+     * Return the direct user members of the group.
+     * The pages are requested lazily while the stream is consumed, so the large group isn't held in memory
+     * and the caller can stop reading it without fetching the rest.
+     *
+     * @param groupName
+     * @param pageSize
+     * @return
+     */
+    public Stream<String> getUsersOfGroup(String groupName, int pageSize) {
+        Iterator<String> users = new Iterator<String>() {
+            private Iterator<String> page = Collections.emptyIterator();
+            // Crowd starts from 0
+            private int start = 0;
+            private boolean end = false;
+
+            @Override
+            public boolean hasNext() {
+                while (!page.hasNext() && !end) {
+                    List<String> next = getUsersOfGroup(groupName, start, pageSize);
+                    // End of the page
+                    end = next.isEmpty();
+                    start += pageSize;
+                    page = next.iterator();
+                }
+                return page.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.next();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(users, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    protected List<String> getUsersOfGroup(String groupName, int start, int pageSize) {
+        try {
+            return execute(CrowdOperation.GET_USERS_OF_GROUP, () -> jsonClient != null ?
+                    jsonClient.getNamesOfUsersOfGroup(groupName, start, pageSize) :
+                    this.crowdClient.getNamesOfUsersOfGroup(groupName, start, pageSize));
+
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Load all direct memberships (users and child groups of each group) in Crowd by one request.
+     *
+     * @return
+     */
+    public List<Membership> getMemberships() {
+        try {
+            return execute(CrowdOperation.GET_MEMBERSHIPS, () -> {
+                // The result is streamed while iterating, so read it all in the call
+                List<Membership> memberships = new ArrayList<>();
+                for (Membership membership : this.crowdClient.getMemberships()) {
+                    memberships.add(membership);
+                }
+                return memberships;
+            });
+
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Return the group hierarchy for resolving the nested memberships.
+     *
+     * @return
+     */
+    public CrowdGroupGraph getGroupGraph() {
+        return groupGraphCache.get(this::getMemberships);
+    }
+
+    /**
+     * Discard the cached group hierarchy. It's called when the memberships were changed outside of this connector.
+     */
+    public void invalidateGroupGraph() {
+        groupGraphCache.invalidate();
+    }
+
     // Group
 
     public Uid createGroup(GroupWithAttributes group) throws AlreadyExistsException {
         try {
-            this.crowdClient.addGroup(group);
+            execute(CrowdOperation.CREATE_GROUP, () -> this.crowdClient.addGroup(group));
+            countCache.invalidate();
+            negativeCache.remove(groupNameKey(group.getName()));
+            detachGroup(group.getName());
 
             return new Uid(group.getName(), new Name(group.getName()));
 
@@ -386,7 +1193,8 @@ public class CrowdRESTClient {
 
     public void updateGroup(Group update) {
         try {
-            this.crowdClient.updateGroup(update);
+            execute(CrowdOperation.UPDATE_GROUP, () -> this.crowdClient.updateGroup(update));
+            detachGroup(update.getName());
 
         } catch (Exception e) {
             throw handleException(e);
@@ -395,7 +1203,16 @@ public class CrowdRESTClient {
 
     public GroupEntity getGroup(Uid uid, OperationOptions options, Set<String> fetchFieldsSet) {
         try {
-            GroupEntity group = (GroupEntity) this.crowdClient.getGroupWithAttributes(uid.getUidValue());
+            // The uid of the group is the name
+            GroupEntity group = read(groupNameKey(uid.getUidValue()), () -> execute(CrowdOperation.GET_GROUP, () -> {
+                if (jsonClient != null) {
+                    return jsonClient.getGroupWithAttributes(uid.getUidValue());
+                }
+                return (GroupEntity) this.crowdClient.getGroupWithAttributes(uid.getUidValue());
+            }));
+            if (group == null) {
+                throw new GroupNotFoundException(uid.getUidValue());
+            }
             return group;
 
         } catch (Exception e) {
@@ -405,7 +1222,11 @@ public class CrowdRESTClient {
 
     public GroupEntity getGroup(Name name, OperationOptions options, Set<String> fetchFieldsSet) {
         try {
-            GroupEntity group = (GroupEntity) this.crowdClient.getGroupWithAttributes(name.getNameValue());
+            GroupEntity group = read(groupNameKey(name.getNameValue()),
+                    () -> groupLookupBatcher.get(name.getNameValue(), this::getGroupsByNames));
+            if (group == null) {
+                throw new GroupNotFoundException(name.getNameValue());
+            }
             return group;
 
         } catch (Exception e) {
@@ -413,13 +1234,76 @@ public class CrowdRESTClient {
         }
     }
 
+    protected Map<String, GroupEntity> getGroupsByNames(List<String> names) throws Exception {
+        Map<String, GroupEntity> found = new HashMap<>();
+
+        if (names.size() == 1) {
+            String name = names.get(0);
+            try {
+                GroupEntity group = execute(CrowdOperation.GET_GROUP, () -> {
+                    if (jsonClient != null) {
+                        return jsonClient.getGroupWithAttributes(name);
+                    }
+                    return (GroupEntity) this.crowdClient.getGroupWithAttributes(name);
+                });
+                found.put(CrowdLookupBatcher.key(name), group);
+            } catch (GroupNotFoundException ignore) {
+            }
+            return found;
+        }
+
+        for (GroupWithAttributes group : searchGroups(namesRestriction(GroupTermKeys.NAME, names), 0, names.size())) {
+            found.put(CrowdLookupBatcher.key(group.getName()), (GroupEntity) group);
+        }
+        return found;
+    }
+
+    /**
+     * Fetch the groups by the uids or names with the parallel point lookups.
+     * The not found groups are skipped, and the duplicates are removed.
+     *
+     * @param identifiers
+     * @param options
+     * @param fetchFieldsSet
+     * @return
+     */
+    public List<GroupEntity> getGroupsByIdentifiers(List<Attribute> identifiers, OperationOptions options, Set<String> fetchFieldsSet) {
+        try {
+            List<GroupEntity> found = taskExecutor.invokeAll(identifiers, id -> getOrNull(() -> id instanceof Uid ?
+                    getGroup((Uid) id, options, fetchFieldsSet) :
+                    getGroup((Name) id, options, fetchFieldsSet)));
+
+            Map<String, GroupEntity> unique = new LinkedHashMap<>();
+            for (GroupEntity u : found) {
+                if (u != null) {
+                    unique.putIfAbsent(CrowdLookupBatcher.key(u.getName()), u);
+                }
+            }
+            return new ArrayList<>(unique.values());
+
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
     public int getGroups(CrowdQueryHandler<GroupWithAttributes> handler, OperationOptions options, Set<String> fetchFieldsSet, int pageSize, int pageOffset) {
+        return getGroups(NullRestriction.INSTANCE, handler, options, fetchFieldsSet, pageSize, pageOffset);
+    }
+
+    public int getGroups(SearchRestriction restriction, CrowdQueryHandler<GroupWithAttributes> handler, OperationOptions options, Set<String> fetchFieldsSet, int pageSize, int pageOffset) {
         // ConnId starts from 1, 0 means no offset (requested all data)
         if (pageOffset < 1) {
+            if (configuration != null && configuration.isGroupTwoPhaseSearch()) {
+                return getAllByTwoPhase(handler, restriction, GroupTermKeys.NAME, this::searchGroupNames,
+                        name -> getOrNull(() -> getGroup(new Name(name), options, fetchFieldsSet)));
+            }
+            if (isKeysetPagingEnabled()) {
+                return getAllByKeyset(handler, pageSize, restriction, GroupTermKeys.NAME, GroupWithAttributes::getName,
+                        this::searchGroups);
+            }
             return getAll(handler, pageSize, (start, size) -> {
                 try {
-                    List<GroupWithAttributes> groups = this.crowdClient.searchGroupsWithAttributes(NullRestriction.INSTANCE, start, size);
-                    return groups;
+                    return searchGroups(restriction, start, size);
                 } catch (Exception e) {
                     throw handleException(e);
                 }
@@ -432,7 +1316,7 @@ public class CrowdRESTClient {
         int count = 0;
 
         try {
-            List<GroupWithAttributes> groups = this.crowdClient.searchGroupsWithAttributes(NullRestriction.INSTANCE, start, pageSize);
+            List<GroupWithAttributes> groups = searchGroups(restriction, start, pageSize);
 
             for (GroupWithAttributes group : groups) {
                 count++;
@@ -447,12 +1331,161 @@ public class CrowdRESTClient {
         return count;
     }
 
+    /**
+     * Fetch one page of the groups after the last name for the paged results cookie.
+     *
+     * @param restriction
+     * @param lastName    the last name of the previous page, or null for the first page
+     * @param handler
+     * @param options
+     * @param fetchFieldsSet
+     * @param pageSize
+     * @return the last name of this page, or null if there are no more pages
+     */
+    public String getGroupsPage(SearchRestriction restriction, String lastName, CrowdQueryHandler<GroupWithAttributes> handler,
+                                OperationOptions options, Set<String> fetchFieldsSet, int pageSize) {
+        return getPageByKeyset(handler, pageSize, restriction, GroupTermKeys.NAME, lastName, GroupWithAttributes::getName,
+                this::searchGroups);
+    }
+
+    /**
+     * Count the groups matched with the restriction by the names-only search. The count is cached for a short time.
+     *
+     * @param restriction
+     * @return
+     */
+    public int countGroups(SearchRestriction restriction) {
+        return countCache.get("group|" + CrowdJsonClient.toJson(restriction),
+                () -> countNames(restriction, GroupTermKeys.NAME, this::searchGroupNames));
+    }
+
+    /**
+     * Count the groups matched with the restriction up to the limit by one names search,
+     * instead of counting all of them page by page.
+     *
+     * @param restriction
+     * @param limit
+     * @return
+     */
+    public int countGroupsUpTo(SearchRestriction restriction, int limit) {
+        try {
+            return searchGroupNames(restriction, 0, limit).size();
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    protected List<String> searchGroupNames(SearchRestriction restriction, int start, int size) throws Exception {
+        return execute(CrowdOperation.SEARCH_GROUP_NAMES, () -> {
+            if (jsonClient != null) {
+                return jsonClient.searchGroupNames(restriction, start, size);
+            }
+            return this.crowdClient.searchGroupNames(restriction, start, size);
+        });
+    }
+
+    protected List<GroupWithAttributes> searchGroups(SearchRestriction restriction, int start, int size) throws Exception {
+        return execute(CrowdOperation.SEARCH_GROUPS, () -> {
+            if (jsonClient != null) {
+                return jsonClient.searchGroupsWithAttributes(restriction, start, size);
+            }
+            return this.crowdClient.searchGroupsWithAttributes(restriction, start, size);
+        });
+    }
+
     public void deleteGroup(Uid uid) {
         try {
-            this.crowdClient.removeGroup(uid.getUidValue());
+            execute(CrowdOperation.DELETE_GROUP, () -> this.crowdClient.removeGroup(uid.getUidValue()));
+            countCache.invalidate();
+            negativeCache.put(groupNameKey(uid.getUidValue()));
+            detachGroup(uid.getUidValue());
+            groupGraphCache.invalidate();
 
         } catch (Exception e) {
             throw handleException(e);
         }
     }
+
+    // Async
+
+    /**
+     * Run the blocking call asynchronously on the executor of this connector instance, so the independent calls
+     * can be composed without the ad hoc thread pools. The failure is mapped by handleException like the blocking API,
+     * and the future completes exceptionally with the ConnectorException.
+     * The calls are limited by the concurrency of this connector (HTTP Max Connections per Poolable Connector).
+     * Note that they run synchronously in the caller thread and the returned future is already completed
+     * when the concurrency is 1, which is the default, or when it's called from the task of this connector.
+     *
+     * @param call
+     * @param <T>
+     * @return
+     */
+    protected <T> CompletableFuture<T> async(CrowdCall<T> call) {
+        return taskExecutor.supplyAsync(() -> {
+            try {
+                return call.call();
+            } catch (ConnectorException e) {
+                throw e;
+            } catch (Exception e) {
+                throw handleException(e);
+            }
+        });
+    }
+
+    public CompletableFuture<UserEntity> getUserAsync(Uid uid, OperationOptions options, Set<String> fetchFieldsSet) {
+        return async(() -> getUser(uid, options, fetchFieldsSet));
+    }
+
+    public CompletableFuture<UserEntity> getUserAsync(Name name, OperationOptions options, Set<String> fetchFieldsSet) {
+        return async(() -> getUser(name, options, fetchFieldsSet));
+    }
+
+    public CompletableFuture<GroupEntity> getGroupAsync(Uid uid, OperationOptions options, Set<String> fetchFieldsSet) {
+        return async(() -> getGroup(uid, options, fetchFieldsSet));
+    }
+
+    public CompletableFuture<GroupEntity> getGroupAsync(Name name, OperationOptions options, Set<String> fetchFieldsSet) {
+        return async(() -> getGroup(name, options, fetchFieldsSet));
+    }
+
+    public CompletableFuture<Void> addUserToGroupAsync(String userName, List<String> groups) {
+        return async(() -> {
+            addUserToGroup(userName, groups);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> deleteUserFromGroupAsync(String userName, List<String> groups) {
+        return async(() -> {
+            deleteUserFromGroup(userName, groups);
+            return null;
+        });
+    }
+
+    /**
+     * Return all direct groups of the user. All pages are fetched in the call.
+     *
+     * @param userName
+     * @param pageSize
+     * @return
+     */
+    public CompletableFuture<List<String>> getGroupsForUserAsync(String userName, int pageSize) {
+        return async(() -> getGroupsForUser(userName, pageSize).collect(Collectors.toList()));
+    }
+
+    public CompletableFuture<List<UserWithAttributes>> searchUsersPageAsync(SearchRestriction restriction, int start, int size) {
+        return async(() -> searchUsers(restriction, start, size));
+    }
+
+    public CompletableFuture<List<GroupWithAttributes>> searchGroupsPageAsync(SearchRestriction restriction, int start, int size) {
+        return async(() -> searchGroups(restriction, start, size));
+    }
+
+    public CompletableFuture<Integer> countUsersAsync(SearchRestriction restriction) {
+        return async(() -> countUsers(restriction));
+    }
+
+    public CompletableFuture<Integer> countGroupsAsync(SearchRestriction restriction) {
+        return async(() -> countGroups(restriction));
+    }
 }
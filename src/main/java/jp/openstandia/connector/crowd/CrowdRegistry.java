@@ -0,0 +1,70 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Registry of the state shared by the pooled connector instances which connect to the same Crowd application.
+ * The state is created again when the settings it was created with are changed, otherwise the connector instances
+ * created after the configuration change keep using the old settings until the JVM is restarted.
+ * The replaced state is released when the connector instances still using it are disposed.
+ *
+ * @param <T>
+ */
+class CrowdRegistry<T> {
+
+    private static final Log LOG = Log.getLog(CrowdRegistry.class);
+
+    private final Map<String, Entry<T>> entries = new ConcurrentHashMap<>();
+
+    private static class Entry<T> {
+        final List<?> settings;
+        final T value;
+
+        Entry(List<?> settings, T value) {
+            this.settings = settings;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Return the shared state, or create it if it doesn't exist yet or the settings are changed.
+     *
+     * @param key      the key of the Crowd application, see {@link CrowdConfiguration#getConnectionKey()}
+     * @param settings the configuration values the state is created with
+     * @param factory
+     * @return
+     */
+    T get(String key, List<?> settings, Supplier<T> factory) {
+        return entries.compute(key, (k, current) -> {
+            if (current != null && current.settings.equals(settings)) {
+                return current;
+            }
+            T value = factory.get();
+            if (current != null) {
+                LOG.info("Recreated the shared {0} with the changed configuration: {1} -> {2}",
+                        value.getClass().getSimpleName(), current.settings, settings);
+            }
+            return new Entry<>(settings, value);
+        }).value;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry policy for the transient failures of the idempotent Crowd calls.
+ * The delay is exponential backoff with full jitter, and Retry-After from Crowd is honored as the lower bound.
+ * To avoid retry storms against an overloaded Crowd, the retries are limited by a budget
+ * which is shared by the connector instances connecting to the same Crowd application.
+ * Every call deposits a fraction of a token and every retry withdraws one token.
+ */
+public class CrowdRetryPolicy {
+
+    private static final CrowdRegistry<CrowdRetryPolicy> REGISTRY = new CrowdRegistry<>();
+
+    static final CrowdRetryPolicy NONE = new CrowdRetryPolicy(0, 0, null);
+
+    static final long MAX_DELAY_MILLIS = 30000;
+
+    // 1 retry per 5 calls on average
+    private static final double DEPOSIT_PER_CALL = 0.2;
+    private static final double INITIAL_TOKENS = 10;
+    private static final double MAX_TOKENS = 100;
+
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final CrowdMetrics metrics;
+
+    // Guarded by this
+    private double tokens = INITIAL_TOKENS;
+
+    CrowdRetryPolicy(int maxRetries, long baseDelayMillis, CrowdMetrics metrics) {
+        this.maxRetries = maxRetries;
+        this.baseDelayMillis = baseDelayMillis;
+        this.metrics = metrics;
+
+        if (metrics != null) {
+            metrics.gauge("retry.budget", () -> (long) getTokens());
+        }
+    }
+
+    public static CrowdRetryPolicy of(CrowdConfiguration configuration) {
+        if (configuration == null || configuration.getMaxRetries() <= 0) {
+            return NONE;
+        }
+        return REGISTRY.get(configuration.getConnectionKey(),
+                Arrays.asList(configuration.getMaxRetries(), configuration.getRetryBaseDelayInMilliseconds()),
+                () -> new CrowdRetryPolicy(configuration.getMaxRetries(), configuration.getRetryBaseDelayInMilliseconds(),
+                        CrowdMetrics.of(configuration)));
+    }
+
+    public boolean isEnabled() {
+        return maxRetries > 0;
+    }
+
+    /**
+     * Record a new call (not a retry). It refills the retry budget.
+     */
+    public void onCall() {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (this) {
+            tokens = Math.min(MAX_TOKENS, tokens + DEPOSIT_PER_CALL);
+        }
+    }
+
+    /**
+     * Return the delay before the next retry, or -1 if it shouldn't be retried.
+     *
+     * @param retries          the number of the retries already done for the call
+     * @param retryAfterMillis the delay requested by Crowd with Retry-After, or -1
+     * @return
+     */
+    public long nextDelay(int retries, long retryAfterMillis) {
+        if (!isEnabled()) {
+            return -1;
+        }
+        if (retries >= maxRetries) {
+            metrics.increment("retry.exhausted");
+            return -1;
+        }
+        if (retryAfterMillis > MAX_DELAY_MILLIS) {
+            // Crowd asked to wait too long, fail fast instead of holding the task
+            metrics.increment("retry.tooLong");
+            return -1;
+        }
+        synchronized (this) {
+            if (tokens < 1) {
+                metrics.increment("retry.budgetExhausted");
+                return -1;
+            }
+            tokens -= 1;
+        }
+
+        long cap = Math.min(MAX_DELAY_MILLIS, baseDelayMillis << Math.min(retries, 20));
+        long delay = ThreadLocalRandom.current().nextLong(cap + 1);
+
+        return Math.max(delay, retryAfterMillis);
+    }
+
+    public synchronized double getTokens() {
+        return tokens;
+    }
+}
@@ -25,7 +25,7 @@ import org.identityconnectors.framework.spi.operations.SearchOp;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Schema for Crowd objects.
@@ -34,6 +34,10 @@ import java.util.function.Function;
  */
 public class CrowdSchema {
 
+    // Key: fingerprint of the schema-relevant configuration
+    // The schema definitions are immutable, so they are shared by all connector instances in the JVM.
+    private static final Map<String, Definitions> CACHE = new ConcurrentHashMap<>();
+
     private final CrowdConfiguration configuration;
     private final CrowdRESTClient client;
 
@@ -46,30 +50,51 @@ public class CrowdSchema {
         this.client = client;
         this.schemaHandlerMap = new HashMap<>();
 
-        SchemaBuilder schemaBuilder = new SchemaBuilder(CrowdConnector.class);
-
-        buildSchema(schemaBuilder, CrowdUserHandler.createSchema(configuration, client).build(),
-                (schema) -> new CrowdUserHandler(configuration, client, schema));
-        buildSchema(schemaBuilder, CrowdGroupHandler.createSchema(configuration, client).build(),
-                (schema) -> new CrowdGroupHandler(configuration, client, schema));
-
-        // Define operation options
-        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildAttributesToGet(), SearchOp.class);
-        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildReturnDefaultAttributes(), SearchOp.class);
-        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPageSize(), SearchOp.class);
-        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsOffset(), SearchOp.class);
-
-        this.schema = schemaBuilder.build();
+        Definitions definitions = CACHE.computeIfAbsent(fingerprint(configuration), k -> new Definitions(configuration));
 
+        this.schema = definitions.schema;
+        this.schemaHandlerMap.put(definitions.user.getType(), new CrowdUserHandler(configuration, client, definitions.user));
+        this.schemaHandlerMap.put(definitions.group.getType(), new CrowdGroupHandler(configuration, client, definitions.group));
     }
 
-    private void buildSchema(SchemaBuilder builder, SchemaDefinition schemaDefinition, Function<SchemaDefinition, ObjectHandler> callback) {
-        builder.defineObjectClass(schemaDefinition.getObjectClassInfo());
-        ObjectHandler handler = callback.apply(schemaDefinition);
-        this.schemaHandlerMap.put(schemaDefinition.getType(), handler);
+    /**
+     * Return the fingerprint of the configuration which affects the schema.
+     * Only the configuration used in createSchema must be included.
+     *
+     * @param configuration
+     * @return
+     */
+    static String fingerprint(CrowdConfiguration configuration) {
+        return String.join("\n", configuration.getUserAttributesSchema()) + "\u0000" +
+                String.join("\n", configuration.getGroupAttributesSchema());
     }
 
     public ObjectHandler getSchemaHandler(ObjectClass objectClass) {
         return schemaHandlerMap.get(objectClass.getObjectClassValue());
     }
-}
\ No newline at end of file
+
+    private static class Definitions {
+        final Schema schema;
+        final SchemaDefinition user;
+        final SchemaDefinition group;
+
+        Definitions(CrowdConfiguration configuration) {
+            SchemaBuilder schemaBuilder = new SchemaBuilder(CrowdConnector.class);
+
+            this.user = CrowdUserHandler.createSchema(configuration).build();
+            this.group = CrowdGroupHandler.createSchema(configuration).build();
+
+            schemaBuilder.defineObjectClass(user.getObjectClassInfo());
+            schemaBuilder.defineObjectClass(group.getObjectClassInfo());
+
+            // Define operation options
+            schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildAttributesToGet(), SearchOp.class);
+            schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildReturnDefaultAttributes(), SearchOp.class);
+            schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPageSize(), SearchOp.class);
+            schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsOffset(), SearchOp.class);
+            schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsCookie(), SearchOp.class);
+
+            this.schema = schemaBuilder.build();
+        }
+    }
+}
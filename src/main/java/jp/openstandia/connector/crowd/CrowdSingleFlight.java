@@ -0,0 +1,108 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Coalescing of the identical in-flight reads.
+ * While a read is in flight, the same reads by the other threads wait for it and share its result
+ * instead of sending their own requests. The result is forgotten as soon as the read completes, so it's not a cache.
+ * The shared result must not be modified by the callers.
+ * The writes detach the reads in flight for the written objects, so the reads issued after the write
+ * don't join the read started before it and get the object before the write.
+ * It's shared by all connector instances which point to the same Crowd application.
+ */
+public class CrowdSingleFlight {
+
+    private static final CrowdRegistry<CrowdSingleFlight> REGISTRY = new CrowdRegistry<>();
+
+    private final CrowdMetrics metrics;
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    CrowdSingleFlight(CrowdMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public static CrowdSingleFlight of(CrowdConfiguration configuration) {
+        if (configuration == null) {
+            return new CrowdSingleFlight(CrowdMetrics.of(null));
+        }
+        return REGISTRY.get(configuration.getConnectionKey(), Collections.emptyList(),
+                () -> new CrowdSingleFlight(CrowdMetrics.of(configuration)));
+    }
+
+    /**
+     * Execute the read, or wait for the identical read in flight and return its result.
+     *
+     * @param key  identifies the identical reads
+     * @param call
+     * @return
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Callable<T> call) throws Exception {
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> leader = inFlight.putIfAbsent(key, mine);
+        if (leader != null) {
+            metrics.increment("singleflight.shared");
+            try {
+                return (T) leader.get();
+            } catch (ExecutionException e) {
+                throw CrowdExecutor.unwrap(e);
+            }
+        }
+
+        try {
+            T result = call.call();
+            inFlight.remove(key, mine);
+            mine.complete(result);
+            return result;
+
+        } catch (Exception | Error e) {
+            inFlight.remove(key, mine);
+            mine.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Detach the reads in flight for the keys, so the next reads start fresh.
+     * The detached reads still complete for the callers already waiting for them.
+     *
+     * @param keys
+     */
+    public void detach(String... keys) {
+        for (String key : keys) {
+            inFlight.remove(key);
+        }
+    }
+
+    /**
+     * Detach the reads in flight for the keys starting with the prefix.
+     * It's for the writes which don't know all keys of the written object.
+     *
+     * @param prefix
+     */
+    public void detachAll(String prefix) {
+        inFlight.keySet().removeIf(k -> k.startsWith(prefix));
+    }
+}
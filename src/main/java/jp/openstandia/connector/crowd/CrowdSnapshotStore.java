@@ -0,0 +1,328 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import com.atlassian.crowd.embedded.api.Attributes;
+import com.atlassian.crowd.integration.rest.entity.GroupEntity;
+import com.atlassian.crowd.integration.rest.entity.UserEntity;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncToken;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Local snapshot of the Crowd objects for the diff-based sync.
+ * It keeps the uid, name and 64-bit content hash of each object, and persists them to a memory-mapped file.
+ * A full scan compares the content hash with the snapshot, so only the changed objects need to be converted
+ * and the deleted objects are detected by the difference of the uid sets.
+ * <p>
+ * File format: magic(int), version(int), generation(long), count(int), then the records of
+ * hash(long), uid length(short), uid(UTF-8), name length(short), name(UTF-8).
+ */
+public class CrowdSnapshotStore {
+
+    private static final Log LOG = Log.getLog(CrowdSnapshotStore.class);
+
+    private static final int MAGIC = 0x43534e50; // "CSNP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Path file;
+
+    public CrowdSnapshotStore(Path file) {
+        this.file = file;
+    }
+
+    public static CrowdSnapshotStore of(CrowdConfiguration configuration, ObjectClass objectClass) {
+        // Separate the files per Crowd application and object class
+        String fileName = String.format("crowd-%016x-%s.snapshot",
+                hash(FNV_OFFSET_BASIS, configuration.getConnectionKey()),
+                objectClass.getObjectClassValue().replaceAll("[^A-Za-z0-9]", ""));
+        return new CrowdSnapshotStore(Paths.get(configuration.getSnapshotDirectory()).resolve(fileName));
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Start the diff session against the stored snapshot.
+     * If the token doesn't match the stored generation (e.g. the first sync or the token was reset),
+     * all scanned objects are treated as changed.
+     *
+     * @param token
+     * @return
+     */
+    public Session begin(SyncToken token) {
+        Snapshot previous = load();
+
+        Long requested = toGeneration(token);
+        boolean full = requested == null || requested != previous.generation;
+        if (full) {
+            LOG.info("Start full sync by snapshot. file: {0}, token: {1}, stored generation: {2}",
+                    file, requested, previous.generation);
+        }
+
+        return new Session(previous, full);
+    }
+
+    Snapshot load() {
+        if (!Files.exists(file)) {
+            return new Snapshot(0, new HashMap<>());
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                LOG.warn("Ignored the unknown snapshot file: {0}", file);
+                return new Snapshot(0, new HashMap<>());
+            }
+
+            long generation = buf.getLong();
+            int count = buf.getInt();
+
+            Map<String, Entry> entries = new HashMap<>(Math.max(16, (int) (count / 0.75f) + 1));
+            for (int i = 0; i < count; i++) {
+                long hash = buf.getLong();
+                String uid = readString(buf);
+                String name = readString(buf);
+                entries.put(uid, new Entry(name, hash));
+            }
+            return new Snapshot(generation, entries);
+
+        } catch (BufferUnderflowException e) {
+            LOG.warn("Ignored the broken snapshot file: {0}", file);
+            return new Snapshot(0, new HashMap<>());
+
+        } catch (IOException e) {
+            throw new ConnectorIOException("Failed to read the snapshot file: " + file, e);
+        }
+    }
+
+    void save(Snapshot snapshot) {
+        List<byte[]> encoded = new ArrayList<>(snapshot.entries.size() * 2);
+        long size = HEADER_SIZE;
+        for (Map.Entry<String, Entry> e : snapshot.entries.entrySet()) {
+            byte[] uid = e.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] name = e.getValue().name.getBytes(StandardCharsets.UTF_8);
+            encoded.add(uid);
+            encoded.add(name);
+            size += 8 + 2 + uid.length + 2 + name.length;
+        }
+
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buf.putInt(MAGIC);
+                buf.putInt(VERSION);
+                buf.putLong(snapshot.generation);
+                buf.putInt(snapshot.entries.size());
+
+                int i = 0;
+                for (Entry entry : snapshot.entries.values()) {
+                    buf.putLong(entry.hash);
+                    writeString(buf, encoded.get(i++));
+                    writeString(buf, encoded.get(i++));
+                }
+                buf.force();
+            }
+
+            // Replace atomically not to leave the broken snapshot
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (IOException e) {
+            throw new ConnectorIOException("Failed to write the snapshot file: " + file, e);
+        }
+    }
+
+    private static String readString(MappedByteBuffer buf) {
+        int len = Short.toUnsignedInt(buf.getShort());
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(MappedByteBuffer buf, byte[] bytes) {
+        buf.putShort((short) bytes.length);
+        buf.put(bytes);
+    }
+
+    private static Long toGeneration(SyncToken token) {
+        if (token == null || token.getValue() == null) {
+            return null;
+        }
+        Object value = token.getValue();
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Content hash
+
+    public static long hash(UserEntity user) {
+        long h = FNV_OFFSET_BASIS;
+        h = hash(h, user.getName());
+        h = hash(h, user.getExternalId());
+        h = hash(h, user.getFirstName());
+        h = hash(h, user.getLastName());
+        h = hash(h, user.getDisplayName());
+        h = hash(h, user.getEmailAddress());
+        h = hash(h, Boolean.toString(user.isActive()));
+        h = hash(h, user.getCreatedDate() != null ? Long.toString(user.getCreatedDate().getTime()) : null);
+        h = hash(h, user.getUpdatedDate() != null ? Long.toString(user.getUpdatedDate().getTime()) : null);
+        return hash(h, user.getAttributes());
+    }
+
+    public static long hash(GroupEntity group) {
+        long h = FNV_OFFSET_BASIS;
+        h = hash(h, group.getName());
+        h = hash(h, group.getDescription());
+        h = hash(h, Boolean.toString(group.isActive()));
+        return hash(h, group.getAttributes());
+    }
+
+    private static long hash(long h, Attributes attributes) {
+        if (attributes == null) {
+            return h;
+        }
+        // Sort to make the hash independent of the order returned by Crowd
+        for (String key : new TreeSet<>(attributes.getKeys())) {
+            h = hash(h, key);
+            Set<String> values = attributes.getValues(key);
+            if (values != null) {
+                for (String value : new TreeSet<>(values)) {
+                    h = hash(h, value);
+                }
+            }
+        }
+        return h;
+    }
+
+    private static long hash(long h, String value) {
+        if (value != null) {
+            for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+                h ^= (b & 0xff);
+                h *= FNV_PRIME;
+            }
+        }
+        // Separator to distinguish ("ab", "c") and ("a", "bc"), and also null
+        h ^= value != null ? 0xff : 0xfe;
+        h *= FNV_PRIME;
+        return h;
+    }
+
+    static class Snapshot {
+        final long generation;
+        final Map<String, Entry> entries;
+
+        Snapshot(long generation, Map<String, Entry> entries) {
+            this.generation = generation;
+            this.entries = entries;
+        }
+    }
+
+    static class Entry {
+        final String name;
+        final long hash;
+
+        Entry(String name, long hash) {
+            this.name = name;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Diff session for one full scan. It's not thread-safe.
+     */
+    public class Session {
+        private final Snapshot previous;
+        private final boolean full;
+        private final Map<String, Entry> next;
+        private final SyncToken token;
+
+        Session(Snapshot previous, boolean full) {
+            this.previous = previous;
+            this.full = full;
+            this.next = new HashMap<>(Math.max(16, previous.entries.size()));
+            this.token = new SyncToken(previous.generation + 1);
+        }
+
+        /**
+         * Record the scanned object and return true if it's changed since the last snapshot.
+         *
+         * @param uid
+         * @param name
+         * @param hash
+         * @return
+         */
+        public boolean changed(String uid, String name, long hash) {
+            next.put(uid, new Entry(name, hash));
+            if (full) {
+                return true;
+            }
+            Entry prev = previous.entries.get(uid);
+            return prev == null || prev.hash != hash || !prev.name.equals(name);
+        }
+
+        /**
+         * Return the objects in the last snapshot which weren't scanned in this session.
+         * It must be called after the full scan.
+         *
+         * @return uid to name map
+         */
+        public Map<String, String> deleted() {
+            Map<String, String> deleted = new LinkedHashMap<>();
+            for (Map.Entry<String, Entry> e : previous.entries.entrySet()) {
+                if (!next.containsKey(e.getKey())) {
+                    deleted.put(e.getKey(), e.getValue().name);
+                }
+            }
+            return deleted;
+        }
+
+        public SyncToken getToken() {
+            return token;
+        }
+
+        /**
+         * Persist the scanned objects as the new snapshot. Call it only when the full scan completed.
+         */
+        public void commit() {
+            save(new Snapshot((Long) token.getValue(), next));
+        }
+    }
+}
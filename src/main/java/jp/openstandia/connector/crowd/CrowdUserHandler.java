@@ -15,15 +15,26 @@
  */
 package jp.openstandia.connector.crowd;
 
+import com.atlassian.crowd.embedded.api.SearchRestriction;
 import com.atlassian.crowd.integration.rest.entity.UserEntity;
+import com.atlassian.crowd.search.query.entity.restriction.MatchMode;
+import com.atlassian.crowd.search.query.entity.restriction.NullRestriction;
+import com.atlassian.crowd.search.query.entity.restriction.TermRestriction;
+import com.atlassian.crowd.search.query.entity.restriction.constants.UserTermKeys;
 import jp.openstandia.connector.util.ObjectHandler;
 import jp.openstandia.connector.util.SchemaDefinition;
 import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
 import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.*;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.IntSupplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -40,15 +51,49 @@ public class CrowdUserHandler implements ObjectHandler {
     private final CrowdConfiguration configuration;
     private final CrowdRESTClient client;
     private final SchemaDefinition schema;
+    // Resolves the groups attribute during the query
+    private CrowdMembershipResolver membershipResolver;
 
     public CrowdUserHandler(CrowdConfiguration configuration, CrowdRESTClient client,
                             SchemaDefinition schema) {
         this.configuration = configuration;
         this.client = client;
-        this.schema = schema;
+        // The schema definition is shared by the instances, bind this instance's client for reading the association
+        this.schema = schema.bind("groups", (UserEntity source) ->
+                filterGroups(configuration, getGroupsForUser(source.getName())))
+                .bind("nestedGroups", (UserEntity source) ->
+                        filterGroups(configuration, getGroupGraph().getNestedGroupsForUser(source.getName())));
     }
 
-    public static SchemaDefinition.Builder createSchema(CrowdConfiguration configuration, CrowdRESTClient client) {
+    private Stream<String> getGroupsForUser(String name) {
+        CrowdMembershipResolver resolver = membershipResolver;
+        if (resolver != null) {
+            return resolver.getGroupsForUser(name);
+        }
+        return client.getGroupsForUser(name, configuration.getDefaultQueryPageSize());
+    }
+
+    private CrowdGroupGraph getGroupGraph() {
+        CrowdMembershipResolver resolver = membershipResolver;
+        if (resolver != null) {
+            return resolver.getGroupGraph();
+        }
+        return client.getGroupGraph();
+    }
+
+    @Override
+    public void beginQuery(Set<String> returnAttributesSet, IntSupplier estimatedSize) {
+        if (returnAttributesSet.contains("groups") || returnAttributesSet.contains("nestedGroups")) {
+            membershipResolver = CrowdMembershipResolver.create(configuration, client, estimatedSize.getAsInt());
+        }
+    }
+
+    @Override
+    public void endQuery() {
+        membershipResolver = null;
+    }
+
+    public static SchemaDefinition.Builder createSchema(CrowdConfiguration configuration) {
         SchemaDefinition.Builder<CrowdUserModel, CrowdUserModel, UserEntity> sb
                 = SchemaDefinition.newBuilder(USER_OBJECT_CLASS, CrowdUserModel.class, UserEntity.class);
 
@@ -161,10 +206,21 @@ public class CrowdUserHandler implements ObjectHandler {
                 (source, dest) -> dest.setGroups(source),
                 (add, dest) -> dest.addGroups(add),
                 (remove, dest) -> dest.removeGroups(remove),
-                (source) -> filterGroups(configuration, client.getGroupsForUser(source.getName(), configuration.getDefaultQueryPageSize())),
+                // Bound per instance in the constructor
+                null,
                 null,
                 NOT_RETURNED_BY_DEFAULT
         );
+        sb.addAsMultiple("nestedGroups",
+                SchemaDefinition.Types.STRING,
+                null,
+                null,
+                null,
+                // Bound per instance in the constructor
+                null,
+                null,
+                NOT_CREATABLE, NOT_UPDATEABLE, NOT_RETURNED_BY_DEFAULT
+        );
 
         // Metadata (readonly)
         sb.add("created-date",
@@ -278,6 +334,22 @@ public class CrowdUserHandler implements ObjectHandler {
         return 0;
     }
 
+    @Override
+    public int getByIdentifiers(List<Attribute> identifiers, ResultsHandler resultsHandler, OperationOptions options,
+                                Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
+                                boolean allowPartialAttributeValues) {
+        List<UserEntity> users = client.getUsersByIdentifiers(identifiers, options, fetchFieldsSet);
+
+        int count = 0;
+        for (UserEntity user : users) {
+            count++;
+            if (!resultsHandler.handle(toConnectorObject(schema, user, returnAttributesSet, allowPartialAttributeValues))) {
+                break;
+            }
+        }
+        return count;
+    }
+
     @Override
     public int getAll(ResultsHandler resultsHandler, OperationOptions options,
                       Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
@@ -285,4 +357,201 @@ public class CrowdUserHandler implements ObjectHandler {
         return client.getUsers((u) -> resultsHandler.handle(toConnectorObject(schema, u, returnAttributesSet, allowPartialAttributeValues)),
                 options, fetchFieldsSet, pageSize, pageOffset);
     }
+
+    @Override
+    public void sync(SyncToken token, SyncResultsHandler resultsHandler, OperationOptions options,
+                     Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
+                     boolean allowPartialAttributeValues, int pageSize) {
+        if (configuration.isSnapshotSync()) {
+            syncBySnapshot(token, resultsHandler, options, returnAttributesSet, fetchFieldsSet,
+                    allowPartialAttributeValues, pageSize);
+        } else {
+            syncByUpdatedDate(token, resultsHandler, options, returnAttributesSet, fetchFieldsSet,
+                    allowPartialAttributeValues, pageSize);
+        }
+    }
+
+    /**
+     * Fetch the users updated after the token, and notify them as CREATE_OR_UPDATE.
+     * The token is the max updated-date (epoch millis) of the fetched users.
+     * Since the results are sorted by name, each delta has the previous token to restart from there safely.
+     * The token is advanced only when the scan completed, otherwise the users not notified yet are lost.
+     * It can't detect the deleted users.
+     *
+     * @param token
+     * @param resultsHandler
+     * @param options
+     * @param returnAttributesSet
+     * @param fetchFieldsSet
+     * @param allowPartialAttributeValues
+     * @param pageSize
+     */
+    protected void syncByUpdatedDate(SyncToken token, SyncResultsHandler resultsHandler, OperationOptions options,
+                                     Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
+                                     boolean allowPartialAttributeValues, int pageSize) {
+        long since = toWatermark(token);
+
+        SearchRestriction restriction = NullRestriction.INSTANCE;
+        if (since > 0) {
+            // Fetch with overlap for the clock skew and the updates committed during the previous sync
+            Date from = new Date(Math.max(0, since - configuration.getSyncOverlapInMilliseconds()));
+            restriction = new TermRestriction<>(UserTermKeys.UPDATED_DATE, MatchMode.GREATER_THAN, from);
+        }
+
+        SyncToken deltaToken = new SyncToken(Math.max(since, 0));
+        long[] watermark = new long[]{Math.max(since, 0)};
+        boolean[] completed = new boolean[]{true};
+
+        client.getUsers(restriction, (u) -> {
+            // The search results are UserEntity which has the timestamps
+            Date updatedDate = ((UserEntity) u).getUpdatedDate();
+            if (updatedDate != null) {
+                watermark[0] = Math.max(watermark[0], updatedDate.getTime());
+            }
+
+            ConnectorObject object = toConnectorObject(schema, u, returnAttributesSet, allowPartialAttributeValues);
+            SyncDelta delta = new SyncDeltaBuilder()
+                    .setDeltaType(SyncDeltaType.CREATE_OR_UPDATE)
+                    .setToken(deltaToken)
+                    .setUid(object.getUid())
+                    .setObject(object)
+                    .build();
+
+            completed[0] = resultsHandler.handle(delta);
+            return completed[0];
+        }, options, fetchFieldsSet, pageSize, 0);
+
+        if (resultsHandler instanceof SyncTokenResultsHandler) {
+            ((SyncTokenResultsHandler) resultsHandler).handleResult(completed[0] ? new SyncToken(watermark[0]) : deltaToken);
+        }
+    }
+
+    /**
+     * Scan all users, and notify only the changed users as CREATE_OR_UPDATE and the disappeared users as DELETE
+     * by comparing the content hash with the local snapshot. The token is the generation of the snapshot.
+     * The snapshot is updated only when the scan completed.
+     *
+     * @param token
+     * @param resultsHandler
+     * @param options
+     * @param returnAttributesSet
+     * @param fetchFieldsSet
+     * @param allowPartialAttributeValues
+     * @param pageSize
+     */
+    protected void syncBySnapshot(SyncToken token, SyncResultsHandler resultsHandler, OperationOptions options,
+                                  Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
+                                  boolean allowPartialAttributeValues, int pageSize) {
+        CrowdSnapshotStore.Session session = CrowdSnapshotStore.of(configuration, USER_OBJECT_CLASS).begin(token);
+        boolean[] completed = new boolean[]{true};
+
+        client.getUsers((u) -> {
+            UserEntity user = (UserEntity) u;
+            if (!session.changed(user.getExternalId(), user.getName(), CrowdSnapshotStore.hash(user))) {
+                return true;
+            }
+
+            ConnectorObject object = toConnectorObject(schema, u, returnAttributesSet, allowPartialAttributeValues);
+            SyncDelta delta = new SyncDeltaBuilder()
+                    .setDeltaType(SyncDeltaType.CREATE_OR_UPDATE)
+                    .setToken(session.getToken())
+                    .setUid(object.getUid())
+                    .setObject(object)
+                    .build();
+
+            completed[0] = resultsHandler.handle(delta);
+            return completed[0];
+        }, options, fetchFieldsSet, pageSize, 0);
+
+        if (!completed[0]) {
+            return;
+        }
+
+        for (Map.Entry<String, String> deleted : session.deleted().entrySet()) {
+            SyncDelta delta = new SyncDeltaBuilder()
+                    .setDeltaType(SyncDeltaType.DELETE)
+                    .setToken(session.getToken())
+                    .setObjectClass(USER_OBJECT_CLASS)
+                    .setUid(new Uid(deleted.getKey(), new Name(deleted.getValue())))
+                    .build();
+
+            if (!resultsHandler.handle(delta)) {
+                return;
+            }
+        }
+
+        session.commit();
+
+        if (resultsHandler instanceof SyncTokenResultsHandler) {
+            ((SyncTokenResultsHandler) resultsHandler).handleResult(session.getToken());
+        }
+    }
+
+    @Override
+    public SyncToken getLatestSyncToken() {
+        if (configuration.isSnapshotSync()) {
+            // Take the baseline snapshot without notifying
+            CrowdSnapshotStore.Session session = CrowdSnapshotStore.of(configuration, USER_OBJECT_CLASS).begin(null);
+            client.getUsers((u) -> {
+                UserEntity user = (UserEntity) u;
+                session.changed(user.getExternalId(), user.getName(), CrowdSnapshotStore.hash(user));
+                return true;
+            }, null, Collections.emptySet(), configuration.getDefaultQueryPageSize(), 0);
+            session.commit();
+
+            return session.getToken();
+        }
+        return new SyncToken(System.currentTimeMillis());
+    }
+
+    private static long toWatermark(SyncToken token) {
+        if (token == null || token.getValue() == null) {
+            return -1;
+        }
+        Object value = token.getValue();
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException e) {
+            throw new InvalidAttributeValueException("Invalid sync token: " + value);
+        }
+    }
+
+    @Override
+    public String getPage(SearchRestriction restriction, String pagedResultsCookie, ResultsHandler resultsHandler, OperationOptions options,
+                          Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
+                          boolean allowPartialAttributeValues, int pageSize) {
+        CrowdPagedResultsCookie current = CrowdPagedResultsCookie.decode(pagedResultsCookie, restriction);
+        int[] count = new int[]{current != null ? current.position : 0};
+
+        String nextName = client.getUsersPage(restriction, current != null ? current.lastName : null, (u) -> {
+            count[0]++;
+            return resultsHandler.handle(toConnectorObject(schema, u, returnAttributesSet, allowPartialAttributeValues));
+        }, options, fetchFieldsSet, pageSize);
+
+        if (nextName == null) {
+            return null;
+        }
+        return new CrowdPagedResultsCookie(nextName, count[0]).encode(restriction);
+    }
+
+    @Override
+    public int count(SearchRestriction restriction) {
+        return client.countUsers(restriction);
+    }
+
+    @Override
+    public int countUpTo(SearchRestriction restriction, int limit) {
+        return client.countUsersUpTo(restriction, limit);
+    }
+
+    @Override
+    public int getByRestriction(SearchRestriction restriction, ResultsHandler resultsHandler, OperationOptions options,
+                                Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
+                                boolean allowPartialAttributeValues, int pageSize, int pageOffset) {
+        return client.getUsers(restriction, (u) -> resultsHandler.handle(toConnectorObject(schema, u, returnAttributesSet, allowPartialAttributeValues)),
+                options, fetchFieldsSet, pageSize, pageOffset);
+    }
 }
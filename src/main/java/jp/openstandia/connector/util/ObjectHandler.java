@@ -15,9 +15,12 @@
  */
 package jp.openstandia.connector.util;
 
+import com.atlassian.crowd.embedded.api.SearchRestriction;
 import org.identityconnectors.framework.common.objects.*;
 
+import java.util.List;
 import java.util.Set;
+import java.util.function.IntSupplier;
 
 /**
  * Define handler methods for connector operations.
@@ -40,10 +43,61 @@ public interface ObjectHandler {
                   Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
                   boolean allowPartialAttributeValues, int pageSize, int pageOffset);
 
+    /**
+     * Fetch the objects by the uids or names with the point lookups.
+     */
+    int getByIdentifiers(List<Attribute> identifiers, ResultsHandler resultsHandler, OperationOptions options,
+                         Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
+                         boolean allowPartialAttributeValues);
+
     int getAll(ResultsHandler resultsHandler, OperationOptions options,
                Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
                boolean allowPartialAttributeValues, int pageSize, int pageOffset);
 
+    int getByRestriction(SearchRestriction restriction, ResultsHandler resultsHandler, OperationOptions options,
+                         Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
+                         boolean allowPartialAttributeValues, int pageSize, int pageOffset);
+
+    /**
+     * Fetch one page for the paged results cookie.
+     *
+     * @return the cookie for the next page, or null if there are no more pages
+     */
+    String getPage(SearchRestriction restriction, String pagedResultsCookie, ResultsHandler resultsHandler, OperationOptions options,
+                   Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
+                   boolean allowPartialAttributeValues, int pageSize);
+
+    /**
+     * Count the objects matched with the restriction.
+     */
+    int count(SearchRestriction restriction);
+
+    /**
+     * Count the objects matched with the restriction up to the limit. It's cheaper than count for the large results.
+     */
+    int countUpTo(SearchRestriction restriction, int limit);
+
+    void sync(SyncToken token, SyncResultsHandler resultsHandler, OperationOptions options,
+              Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
+              boolean allowPartialAttributeValues, int pageSize);
+
+    SyncToken getLatestSyncToken();
+
+    /**
+     * Called before the query. The handler can prepare the resources shared during the query.
+     *
+     * @param returnAttributesSet
+     * @param estimatedSize       estimate the number of the objects returned by the query
+     */
+    default void beginQuery(Set<String> returnAttributesSet, IntSupplier estimatedSize) {
+    }
+
+    /**
+     * Called after the query.
+     */
+    default void endQuery() {
+    }
+
     default <T> ConnectorObject toConnectorObject(SchemaDefinition schema, T user,
                                                   Set<String> returnAttributesSet, boolean allowPartialAttributeValues) {
         ConnectorObjectBuilder builder = schema.toConnectorObjectBuilder(user, returnAttributesSet, allowPartialAttributeValues);
@@ -259,6 +259,35 @@ public class SchemaDefinition {
                 .collect(Collectors.toMap(n -> n, n -> attributeMap.get(n).fetchField));
     }
 
+    private SchemaDefinition(SchemaDefinition base, Map<String, AttributeMapper> attributeMap) {
+        this.objectClass = base.objectClass;
+        this.objectClassInfo = base.objectClassInfo;
+        this.attributeMap = attributeMap;
+        this.returnedByDefaultAttributesSet = base.returnedByDefaultAttributesSet;
+        this.notReadableAttributesSet = base.notReadableAttributesSet;
+    }
+
+    /**
+     * Return a copy of this schema definition with the read function of the attribute replaced.
+     * The schema definition is immutable and can be shared, so use this to bind the per-instance resources
+     * (e.g. REST client) for reading the attribute.
+     *
+     * @param attrName attribute name for connector (e.g. groups)
+     * @param read
+     * @return
+     */
+    public <R> SchemaDefinition bind(String attrName, Function<R, ?> read) {
+        AttributeMapper attributeMapper = attributeMap.get(attrName);
+        if (attributeMapper == null) {
+            throw new IllegalArgumentException("Invalid attribute: " + attrName);
+        }
+
+        Map<String, AttributeMapper> bound = new HashMap<>(attributeMap);
+        bound.put(attrName, attributeMapper.withRead(read));
+
+        return new SchemaDefinition(this, bound);
+    }
+
     public ObjectClassInfo getObjectClassInfo() {
         return objectClassInfo;
     }
@@ -453,6 +482,16 @@ public class SchemaDefinition {
             this.isMultiple = isMultiple;
         }
 
+        // Safe because the read function only produces the values, it never consumes them
+        @SuppressWarnings("unchecked")
+        AttributeMapper<T, C, U, R> withRead(Function<R, ?> read) {
+            AttributeMapper<T, C, U, R> copy = new AttributeMapper<>(connectorName, name, type, create, replace, add, remove,
+                    (Function<R, Object>) read, fetchField, isMultiple, options);
+            copy.dateFormat = dateFormat;
+            copy.dateTimeFormat = dateTimeFormat;
+            return copy;
+        }
+
         public boolean isStringType() {
             return type == Types.STRING || type == Types.STRING_URI || type == Types.STRING_LDAP_DN ||
                     type == Types.STRING_LDAP_DN || type == Types.STRING_CASE_IGNORE || type == Types.XML ||
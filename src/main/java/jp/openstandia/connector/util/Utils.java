@@ -22,6 +22,10 @@ import org.identityconnectors.framework.common.objects.AttributeBuilder;
 import org.identityconnectors.framework.common.objects.AttributeValueCompleteness;
 import org.identityconnectors.framework.common.objects.OperationOptions;
 
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.net.http.HttpTimeoutException;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
@@ -168,4 +172,30 @@ public class Utils {
         Set<String> ignoreGroup = configuration.getIgnoreGroupSet();
         return groups.filter(g -> !ignoreGroup.contains(g.toLowerCase()));
     }
+
+    /**
+     * Return true if the failure is in the transport to Crowd: the connection is refused, reset or timed out,
+     * or the host is unknown. The errors of reading the response, e.g. malformed JSON or unsupported encoding,
+     * are not included because Crowd responded and the same request fails again.
+     *
+     * @param e
+     * @return
+     */
+    public static boolean isTransportFailure(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            // SocketException includes ConnectException, NoRouteToHostException and the connection reset.
+            // HttpTimeoutException includes HttpConnectTimeoutException.
+            if (t instanceof SocketException || t instanceof SocketTimeoutException
+                    || t instanceof HttpTimeoutException || t instanceof UnknownHostException) {
+                return true;
+            }
+            // Apache HttpClient used by the XML transport, which is not a direct dependency
+            String name = t.getClass().getName();
+            if (name.equals("org.apache.http.NoHttpResponseException")
+                    || name.equals("org.apache.http.conn.ConnectTimeoutException")) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,95 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import com.atlassian.crowd.exception.OperationFailedException;
+import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrowdCircuitBreakerTest {
+
+    @Test
+    void openAfterConsecutiveFailures() {
+        CrowdMetrics metrics = new CrowdMetrics("test");
+        CrowdCircuitBreaker breaker = new CrowdCircuitBreaker(3, TimeUnit.MINUTES.toNanos(1), metrics);
+
+        breaker.onFailure(new RuntimeException(new ConnectException("Connection refused")));
+        breaker.onFailure(new RuntimeException(new ConnectException("Connection refused")));
+        // Reset by the success
+        breaker.onSuccess();
+        breaker.onFailure(new RuntimeException(new ConnectException("Connection refused")));
+        breaker.onFailure(new RuntimeException(new ConnectException("Connection refused")));
+        assertEquals(CrowdCircuitBreaker.State.CLOSED, breaker.getState());
+
+        // The errors of the request mean Crowd is responding
+        breaker.onFailure(new IllegalArgumentException());
+        assertEquals(CrowdCircuitBreaker.State.CLOSED, breaker.getState());
+
+        // So does the malformed response
+        breaker.onFailure(new OperationFailedException("Failed to read the user response from Crowd",
+                new IOException("Malformed JSON")));
+        assertEquals(CrowdCircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.onFailure(new RuntimeException(new ConnectException("Connection refused")));
+        assertEquals(CrowdCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, metrics.get("breaker.open"));
+
+        // Fail fast without probing
+        AtomicInteger probes = new AtomicInteger();
+        assertThrows(ConnectionFailedException.class, () -> breaker.check(probes::incrementAndGet));
+        assertEquals(0, probes.get());
+        assertEquals(1, metrics.get("breaker.rejected"));
+    }
+
+    @Test
+    void halfOpenProbe() {
+        CrowdMetrics metrics = new CrowdMetrics("test");
+        CrowdCircuitBreaker breaker = new CrowdCircuitBreaker(1, 0, metrics);
+
+        breaker.onFailure(new SocketTimeoutException("Read timed out"));
+        assertEquals(CrowdCircuitBreaker.State.OPEN, breaker.getState());
+
+        // The failed probe opens it again
+        assertThrows(ConnectionFailedException.class, () -> breaker.check(() -> {
+            throw new ConnectException("Connection refused");
+        }));
+        assertEquals(CrowdCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, metrics.get("breaker.open"));
+
+        breaker.check(() -> "ok");
+        assertEquals(CrowdCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void disabled() {
+        CrowdCircuitBreaker breaker = CrowdCircuitBreaker.of(null);
+        for (int i = 0; i < 10; i++) {
+            breaker.onFailure(new ConnectException("Connection refused"));
+        }
+        breaker.check(() -> {
+            throw new ConnectException("Connection refused");
+        });
+        assertEquals(CrowdCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
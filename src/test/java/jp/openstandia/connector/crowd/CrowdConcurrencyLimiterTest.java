@@ -0,0 +1,179 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrowdConcurrencyLimiterTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(5000);
+
+    @Test
+    void increaseWhileHealthy() throws InterruptedException {
+        CrowdConcurrencyLimiter limiter = new CrowdConcurrencyLimiter(8, 1000, new CrowdMetrics("test"));
+        assertEquals(4, (int) limiter.getLimit());
+
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 4; j++) {
+                limiter.acquire();
+            }
+            for (int j = 0; j < 4; j++) {
+                limiter.release(FAST, false);
+            }
+        }
+
+        assertEquals(8, (int) limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void decreaseOnLatencyAndOverload() throws InterruptedException {
+        CrowdMetrics metrics = new CrowdMetrics("test");
+        CrowdConcurrencyLimiter limiter = new CrowdConcurrencyLimiter(32, 1000, metrics);
+        assertEquals(16, (int) limiter.getLimit());
+
+        limiter.acquire();
+        limiter.release(SLOW, false);
+        assertEquals(11, (int) limiter.getLimit());
+
+        // Back off once per the threshold period
+        limiter.acquire();
+        limiter.release(FAST, true);
+        assertEquals(11, (int) limiter.getLimit());
+        assertEquals(1, metrics.get("limiter.decrease"));
+    }
+
+    @Test
+    void waitForPermit() throws Exception {
+        CrowdMetrics metrics = new CrowdMetrics("test");
+        CrowdConcurrencyLimiter limiter = new CrowdConcurrencyLimiter(2, 1000, metrics);
+        assertEquals(1, (int) limiter.getLimit());
+
+        limiter.acquire();
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                limiter.acquire();
+                acquired.countDown();
+                limiter.release(FAST, false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        t.start();
+
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, limiter.getWaiting());
+
+        limiter.release(FAST, false);
+
+        assertTrue(acquired.await(1, TimeUnit.SECONDS));
+        t.join();
+        assertEquals(1, metrics.get("limiter.queued"));
+    }
+
+    @Test
+    void interactiveNotQueuedBehindBulk() throws Exception {
+        CrowdMetrics metrics = new CrowdMetrics("test");
+        CrowdConcurrencyLimiter limiter = new CrowdConcurrencyLimiter(8, 1000, 1, 3, metrics);
+        assertEquals(4, (int) limiter.getLimit());
+
+        // The bulk reads can't take the interactive reserve
+        for (int i = 0; i < 3; i++) {
+            limiter.acquire(CrowdPriority.BULK);
+        }
+        CountDownLatch bulk = acquireLater(limiter, CrowdPriority.BULK);
+        assertFalse(bulk.await(100, TimeUnit.MILLISECONDS));
+
+        limiter.acquire(CrowdPriority.INTERACTIVE);
+        assertEquals(0, metrics.get("limiter.interactive.queued"));
+
+        // The waiting interactive request goes first by the weight
+        CountDownLatch interactive = acquireLater(limiter, CrowdPriority.INTERACTIVE);
+        assertFalse(interactive.await(100, TimeUnit.MILLISECONDS));
+
+        limiter.release(CrowdPriority.BULK, FAST, false);
+        assertTrue(interactive.await(1, TimeUnit.SECONDS));
+        assertFalse(bulk.await(100, TimeUnit.MILLISECONDS));
+
+        limiter.release(CrowdPriority.BULK, FAST, false);
+        assertTrue(bulk.await(1, TimeUnit.SECONDS));
+        assertEquals(1, metrics.get("limiter.bulk.queued"));
+    }
+
+    @Test
+    void bulkReserve() throws Exception {
+        CrowdConcurrencyLimiter limiter = new CrowdConcurrencyLimiter(8, 1000, 1, 3, new CrowdMetrics("test"));
+
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire(CrowdPriority.INTERACTIVE);
+        }
+        CountDownLatch bulk = acquireLater(limiter, CrowdPriority.BULK);
+        CountDownLatch interactive = acquireLater(limiter, CrowdPriority.INTERACTIVE);
+        assertFalse(bulk.await(100, TimeUnit.MILLISECONDS));
+
+        // The bulk reads aren't starved
+        limiter.release(CrowdPriority.INTERACTIVE, FAST, false);
+        assertTrue(bulk.await(1, TimeUnit.SECONDS));
+        assertFalse(interactive.await(100, TimeUnit.MILLISECONDS));
+
+        limiter.release(CrowdPriority.INTERACTIVE, FAST, false);
+        assertTrue(interactive.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void reconfigured() {
+        CrowdConfiguration configuration = new CrowdConfiguration();
+        configuration.setBaseURL("http://localhost/limiter-reconfigured");
+        configuration.setApplicationName("test");
+        configuration.setMaxConcurrentRequests(10);
+        CrowdConcurrencyLimiter limiter = CrowdConcurrencyLimiter.of(configuration);
+        assertEquals(5, (int) limiter.getLimit());
+        assertSame(limiter, CrowdConcurrencyLimiter.of(configuration));
+
+        // The connector instances created after the configuration change use the new limit
+        CrowdConfiguration changed = new CrowdConfiguration();
+        changed.setBaseURL("http://localhost/limiter-reconfigured");
+        changed.setApplicationName("test");
+        changed.setMaxConcurrentRequests(40);
+        CrowdConcurrencyLimiter reconfigured = CrowdConcurrencyLimiter.of(changed);
+        assertNotSame(limiter, reconfigured);
+        assertEquals(20, (int) reconfigured.getLimit());
+        assertSame(reconfigured, CrowdConcurrencyLimiter.of(changed));
+    }
+
+    private static CountDownLatch acquireLater(CrowdConcurrencyLimiter limiter, CrowdPriority priority) {
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                limiter.acquire(priority);
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return acquired;
+    }
+}
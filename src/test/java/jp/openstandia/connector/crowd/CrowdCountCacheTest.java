@@ -0,0 +1,65 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CrowdCountCacheTest {
+
+    @Test
+    void cacheWithinTtl() {
+        CrowdMetrics metrics = new CrowdMetrics("test");
+        CrowdCountCache cache = new CrowdCountCache(TimeUnit.MINUTES.toNanos(1), metrics);
+        AtomicInteger loaded = new AtomicInteger();
+
+        assertEquals(10, cache.get("user|a", () -> loaded.incrementAndGet() * 10));
+        assertEquals(10, cache.get("user|a", () -> loaded.incrementAndGet() * 10));
+        assertEquals(1, loaded.get());
+
+        // Different restriction
+        assertEquals(20, cache.get("user|b", () -> loaded.incrementAndGet() * 10));
+
+        assertEquals(1, metrics.get("count.cache.hit"));
+        assertEquals(2, metrics.get("count.cache.miss"));
+    }
+
+    @Test
+    void invalidate() {
+        CrowdCountCache cache = new CrowdCountCache(TimeUnit.MINUTES.toNanos(1), new CrowdMetrics("test"));
+        AtomicInteger loaded = new AtomicInteger();
+
+        cache.get("user|a", loaded::incrementAndGet);
+        cache.invalidate();
+
+        assertEquals(2, cache.get("user|a", loaded::incrementAndGet));
+    }
+
+    @Test
+    void disabled() {
+        CrowdCountCache cache = new CrowdCountCache(0, new CrowdMetrics("test"));
+        AtomicInteger loaded = new AtomicInteger();
+
+        cache.get("user|a", loaded::incrementAndGet);
+        cache.get("user|a", loaded::incrementAndGet);
+
+        assertEquals(2, loaded.get());
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrowdExecutorTest {
+
+    @Test
+    void sequential() throws Exception {
+        CrowdExecutor executor = new CrowdExecutor(1);
+        Thread caller = Thread.currentThread();
+
+        List<String> results = executor.invokeAll(Arrays.asList("a", "b", "c"), item -> {
+            assertSame(caller, Thread.currentThread());
+            return item.toUpperCase();
+        });
+
+        assertEquals(Arrays.asList("A", "B", "C"), results);
+    }
+
+    @Test
+    void nestedTasksRunInTaskThread() throws Exception {
+        CrowdExecutor executor = new CrowdExecutor(2);
+
+        // All permits are held by the outer tasks, so the nested tasks can't wait for another one
+        List<List<String>> results = executor.invokeAll(Arrays.asList("a", "b"), item -> {
+            Thread outer = Thread.currentThread();
+            assertFalse(executor.isConcurrent());
+            return executor.invokeAll(Arrays.asList(item + "1", item + "2"), nested -> {
+                assertSame(outer, Thread.currentThread());
+                return nested;
+            });
+        });
+
+        assertEquals(Arrays.asList(Arrays.asList("a1", "a2"), Arrays.asList("b1", "b2")), results);
+        assertTrue(executor.isConcurrent());
+    }
+
+    @Test
+    void concurrentKeepsOrderAndLimit() throws Exception {
+        CrowdExecutor executor = new CrowdExecutor(4);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+
+        List<Integer> items = IntStream.range(0, 50).boxed().collect(Collectors.toList());
+        List<Integer> results = executor.invokeAll(items, item -> {
+            int current = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(current, Math::max);
+            Thread.sleep(5);
+            inFlight.decrementAndGet();
+            return item * 2;
+        });
+
+        assertEquals(items.stream().map(i -> i * 2).collect(Collectors.toList()), results);
+        assertTrue(maxInFlight.get() <= 4, "max in-flight: " + maxInFlight.get());
+    }
+
+    @Test
+    void failure() {
+        CrowdExecutor executor = new CrowdExecutor(4);
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> {
+            executor.forEach(Arrays.asList("ok", "ng", "ok"), item -> {
+                if (item.equals("ng")) {
+                    throw new IllegalStateException(item);
+                }
+            });
+        });
+        assertEquals("ng", e.getMessage());
+    }
+}
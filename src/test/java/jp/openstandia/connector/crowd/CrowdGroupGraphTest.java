@@ -0,0 +1,136 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import com.atlassian.crowd.model.group.Membership;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrowdGroupGraphTest {
+
+    @Test
+    void nestedGroups() {
+        // group3 -> group2 -> group1, group4 -> group1
+        CrowdGroupGraph graph = CrowdGroupGraph.build(Arrays.asList(
+                membership("group1", set(), set("group2", "group4")),
+                membership("group2", set("user1"), set("group3")),
+                membership("group3", set("user2"), set()),
+                membership("group4", set("user2"), set())
+        ));
+
+        assertEquals(4, graph.size());
+        assertFalse(graph.hasCycle());
+        assertEquals(set(), toSet(graph.getNestedGroupsForGroup("group1")));
+        assertEquals(set("group1"), toSet(graph.getNestedGroupsForGroup("group2")));
+        assertEquals(set("group1", "group2"), toSet(graph.getNestedGroupsForGroup("Group3")));
+        assertEquals(set("group1", "group2"), toSet(graph.getNestedGroupsForUser("user1")));
+        assertEquals(set("group1", "group2", "group3", "group4"), toSet(graph.getNestedGroupsForUser("USER2")));
+        assertEquals(set(), toSet(graph.getNestedGroupsForUser("unknown")));
+        assertEquals(set(), toSet(graph.getNestedGroupsForGroup("unknown")));
+    }
+
+    @Test
+    void cycle() {
+        // group1 -> group2 -> group3 -> group1, group4 -> group3
+        CrowdGroupGraph graph = CrowdGroupGraph.build(Arrays.asList(
+                membership("group1", set(), set("group3")),
+                membership("group2", set(), set("group1")),
+                membership("group3", set(), set("group2", "group4")),
+                membership("group4", set("user1"), set())
+        ));
+
+        assertTrue(graph.hasCycle());
+        assertEquals(set("group1", "group2", "group3"), new HashSet<>(graph.getCyclicGroups()));
+        assertEquals(set("group2", "group3"), toSet(graph.getNestedGroupsForGroup("group1")));
+        assertEquals(set("group1", "group2", "group3"), toSet(graph.getNestedGroupsForGroup("group4")));
+        assertEquals(set("group1", "group2", "group3", "group4"), toSet(graph.getNestedGroupsForUser("user1")));
+    }
+
+    @Test
+    void deepHierarchy() {
+        // Walked without the recursion
+        List<Membership> memberships = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            memberships.add(membership("group" + i, set(), set("group" + (i + 1))));
+        }
+
+        CrowdGroupGraph graph = CrowdGroupGraph.build(memberships);
+
+        assertEquals(5001, graph.size());
+        assertEquals(3, graph.getNestedGroupsForGroup("group3").count());
+    }
+
+    @Test
+    void cache() {
+        CrowdGroupGraphCache cache = new CrowdGroupGraphCache(Long.MAX_VALUE, new CrowdMetrics("test"));
+        AtomicInteger loaded = new AtomicInteger();
+
+        CrowdGroupGraph graph1 = cache.get(() -> {
+            loaded.incrementAndGet();
+            return Collections.emptyList();
+        });
+        CrowdGroupGraph graph2 = cache.get(() -> {
+            loaded.incrementAndGet();
+            return Collections.emptyList();
+        });
+
+        assertSame(graph1, graph2);
+        assertEquals(1, loaded.get());
+
+        cache.invalidate();
+        CrowdGroupGraph graph3 = cache.get(() -> {
+            loaded.incrementAndGet();
+            return Collections.emptyList();
+        });
+
+        assertNotSame(graph1, graph3);
+        assertEquals(2, loaded.get());
+    }
+
+    private static Set<String> toSet(Stream<String> stream) {
+        return stream.collect(Collectors.toSet());
+    }
+
+    @SafeVarargs
+    private static <T> Set<T> set(T... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+
+    static Membership membership(String groupName, Set<String> userNames, Set<String> childGroupNames) {
+        return new Membership() {
+            @Override
+            public String getGroupName() {
+                return groupName;
+            }
+
+            @Override
+            public Set<String> getUserNames() {
+                return userNames;
+            }
+
+            @Override
+            public Set<String> getChildGroupNames() {
+                return childGroupNames;
+            }
+        };
+    }
+}
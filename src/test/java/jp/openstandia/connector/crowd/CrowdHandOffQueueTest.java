@@ -0,0 +1,105 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrowdHandOffQueueTest {
+
+    @Test
+    void handOffInOrder() throws Exception {
+        CrowdMetrics metrics = new CrowdMetrics("test");
+        List<Integer> results = new ArrayList<>();
+
+        try (CrowdHandOffQueue<Integer> queue = new CrowdHandOffQueue<>(10, metrics)) {
+            queue.start(new CrowdExecutor(2), sink -> {
+                for (int i = 0; i < 100; i++) {
+                    if (!sink.handle(i)) {
+                        return;
+                    }
+                }
+            });
+            Integer result;
+            while ((result = queue.take()) != null) {
+                results.add(result);
+            }
+            // The end is kept
+            assertNull(queue.take());
+        }
+
+        assertEquals(100, results.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, results.get(i));
+        }
+        assertEquals(0, metrics.get("handoff.depth"));
+    }
+
+    @Test
+    void producerBlocksOnFullQueue() throws Exception {
+        CrowdMetrics metrics = new CrowdMetrics("test");
+        AtomicInteger produced = new AtomicInteger();
+        CountDownLatch stalled = new CountDownLatch(1);
+
+        try (CrowdHandOffQueue<Integer> queue = new CrowdHandOffQueue<>(5, metrics)) {
+            queue.start(new CrowdExecutor(2), sink -> {
+                for (int i = 0; i < 100; i++) {
+                    if (produced.get() == 5) {
+                        stalled.countDown();
+                    }
+                    if (!sink.handle(i)) {
+                        return;
+                    }
+                    produced.incrementAndGet();
+                }
+            });
+
+            assertTrue(stalled.await(5, TimeUnit.SECONDS));
+            Thread.sleep(50);
+            // Not fetched over the budget until the handler takes them
+            assertEquals(5, produced.get());
+            assertEquals(5, metrics.get("handoff.depth"));
+            assertEquals(1, metrics.get("handoff.stall"));
+
+            assertEquals(0, queue.take());
+        }
+
+        // Discarded by closing
+        assertEquals(0, metrics.get("handoff.depth"));
+        assertTrue(produced.get() < 100);
+    }
+
+    @Test
+    void failure() throws Exception {
+        try (CrowdHandOffQueue<Integer> queue = new CrowdHandOffQueue<>(10, new CrowdMetrics("test"))) {
+            queue.start(new CrowdExecutor(2), sink -> {
+                sink.handle(1);
+                throw new IllegalStateException("failed");
+            });
+
+            assertEquals(1, queue.take());
+            IllegalStateException e = assertThrows(IllegalStateException.class, queue::take);
+            assertEquals("failed", e.getMessage());
+        }
+    }
+}
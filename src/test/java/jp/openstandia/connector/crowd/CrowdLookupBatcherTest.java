@@ -0,0 +1,138 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrowdLookupBatcherTest {
+
+    @Test
+    void batchConcurrentLookups() throws Exception {
+        CrowdMetrics metrics = new CrowdMetrics("test");
+        CrowdLookupBatcher<String> batcher = new CrowdLookupBatcher<>(200, metrics);
+        List<List<String>> loaded = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CrowdLookupBatcher.BatchLoader<String> loader = names -> {
+            loaded.add(names);
+            if (names.contains("first")) {
+                started.countDown();
+                release.await();
+            }
+            return names.stream()
+                    .filter(n -> !n.startsWith("unknown"))
+                    .collect(Collectors.toMap(CrowdLookupBatcher::key, n -> "found:" + CrowdLookupBatcher.key(n)));
+        };
+
+        ExecutorService es = Executors.newFixedThreadPool(5);
+        try {
+            // Sent immediately without the window
+            Future<String> first = es.submit(() -> batcher.get("first", loader));
+            started.await();
+
+            // Batched while the first lookup is in flight
+            CountDownLatch ready = new CountDownLatch(1);
+            List<Future<String>> results = new ArrayList<>();
+            for (String name : Arrays.asList("user1", "user2", "unknown", "User1")) {
+                results.add(es.submit(() -> {
+                    ready.await();
+                    return batcher.get(name, loader);
+                }));
+            }
+            ready.countDown();
+
+            assertEquals("found:user1", results.get(0).get(5, TimeUnit.SECONDS));
+            release.countDown();
+            assertEquals("found:first", first.get(5, TimeUnit.SECONDS));
+            assertEquals("found:user2", results.get(1).get(5, TimeUnit.SECONDS));
+            assertNull(results.get(2).get(5, TimeUnit.SECONDS));
+            // Same name in the different case shares the lookup
+            assertEquals("found:user1", results.get(3).get(5, TimeUnit.SECONDS));
+        } finally {
+            es.shutdownNow();
+        }
+
+        assertEquals(2, loaded.size(), "Not batched: " + loaded);
+        assertEquals(Collections.singletonList("first"), loaded.get(0));
+        assertEquals(3, loaded.get(1).size());
+        assertEquals(1, metrics.get("lookup.batch"));
+        assertEquals(3, metrics.get("lookup.batch.names"));
+    }
+
+    @Test
+    void uncontendedLookupDoesNotWait() throws Exception {
+        CrowdLookupBatcher<String> batcher = new CrowdLookupBatcher<>(TimeUnit.MINUTES.toMillis(1), new CrowdMetrics("test"));
+        List<List<String>> loaded = new ArrayList<>();
+        CrowdLookupBatcher.BatchLoader<String> loader = names -> {
+            loaded.add(names);
+            return Collections.singletonMap(CrowdLookupBatcher.key(names.get(0)), "found:" + names.get(0));
+        };
+
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        try {
+            // Fails by the timeout if it waits for the window
+            assertEquals("found:user1", es.submit(() -> batcher.get("user1", loader)).get(5, TimeUnit.SECONDS));
+            assertEquals("found:user2", es.submit(() -> batcher.get("user2", loader)).get(5, TimeUnit.SECONDS));
+        } finally {
+            es.shutdownNow();
+        }
+
+        assertEquals(Arrays.asList(Collections.singletonList("user1"), Collections.singletonList("user2")), loaded);
+    }
+
+    @Test
+    void failureIsPassedToAllCallers() throws Exception {
+        CrowdLookupBatcher<String> batcher = new CrowdLookupBatcher<>(200, new CrowdMetrics("test"));
+        CrowdLookupBatcher.BatchLoader<String> loader = names -> {
+            throw new IllegalStateException("error");
+        };
+
+        ExecutorService es = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (String name : Arrays.asList("user1", "user2")) {
+                results.add(es.submit(() -> batcher.get(name, loader)));
+            }
+
+            for (Future<String> result : results) {
+                ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    @Test
+    void disabled() throws Exception {
+        CrowdLookupBatcher<String> batcher = new CrowdLookupBatcher<>(0, null);
+        List<List<String>> loaded = new ArrayList<>();
+
+        String result = batcher.get("user1", names -> {
+            loaded.add(names);
+            return Collections.singletonMap("user1", "found");
+        });
+
+        assertEquals("found", result);
+        assertEquals(Collections.singletonList(Collections.singletonList("user1")), loaded);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static jp.openstandia.connector.crowd.CrowdGroupGraphTest.membership;
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrowdMembershipStoreTest {
+
+    @Test
+    void memberships() {
+        CrowdMembershipStore store = CrowdMembershipStore.build(Arrays.asList(
+                membership("group1", set("user1", "user2"), set("group2")),
+                membership("group2", set("User1"), set()),
+                membership("group3", set("user3"), set("group2"))
+        ));
+
+        assertEquals(3, store.getGroupCount());
+        // The same user in the different case
+        assertEquals(3, store.getUserCount());
+
+        assertEquals(Arrays.asList("group1", "group2"), store.getGroupsForUser("USER1").collect(Collectors.toList()));
+        assertEquals(Arrays.asList("group1", "group3"), store.getGroupsForGroup("group2").collect(Collectors.toList()));
+        assertEquals(set("user1", "user2"), store.getMembersOfGroup("group1").collect(Collectors.toSet()));
+        assertEquals(0, store.getMembersOfGroup("unknown").count());
+        assertEquals(0, store.getGroupsForUser("unknown").count());
+
+        assertEquals(Collections.singletonList("user1"),
+                store.getMembersOfAllGroups(Arrays.asList("group1", "group2")).collect(Collectors.toList()));
+        assertEquals(0, store.getMembersOfAllGroups(Arrays.asList("group1", "unknown")).count());
+        assertEquals(Collections.singletonList("group1"),
+                store.getCommonGroups("user1", "user2").collect(Collectors.toList()));
+    }
+
+    @Test
+    void sparseAndDenseGroups() {
+        // "all" and "even" are dense enough for the bitmaps, "few" is kept as the array
+        List<String> all = IntStream.range(0, 1000).mapToObj(i -> "user" + i).collect(Collectors.toList());
+        List<String> few = IntStream.range(0, 1000).filter(i -> i % 100 == 0).mapToObj(i -> "user" + i).collect(Collectors.toList());
+        List<String> even = IntStream.range(0, 1000).filter(i -> i % 2 == 0).mapToObj(i -> "user" + i).collect(Collectors.toList());
+
+        CrowdMembershipStore store = new CrowdMembershipStore.Builder()
+                .add("all", all, Collections.emptyList())
+                .add("few", few, Collections.emptyList())
+                .add("even", even, Collections.emptyList())
+                .build();
+
+        assertEquals(1000, store.getMembersOfGroup("all").count());
+        assertEquals(new HashSet<>(few), store.getMembersOfAllGroups(Arrays.asList("all", "even", "few")).collect(Collectors.toSet()));
+        assertEquals(new HashSet<>(even), store.getMembersOfAllGroups(Arrays.asList("even", "all")).collect(Collectors.toSet()));
+    }
+
+    @Test
+    void dictionary() {
+        CrowdMembershipStore.Dictionary dictionary = new CrowdMembershipStore.Dictionary();
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, dictionary.add("Name" + i));
+        }
+
+        assertEquals(10000, dictionary.size());
+        assertEquals(123, dictionary.add("NAME123"));
+        assertEquals(123, dictionary.get("name123"));
+        assertEquals("Name123", dictionary.name(123));
+        assertEquals(-1, dictionary.get("unknown"));
+    }
+
+    @SafeVarargs
+    private static <T> Set<T> set(T... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CrowdNegativeCacheTest {
+
+    @Test
+    void cacheWithinTtl() {
+        CrowdMetrics metrics = new CrowdMetrics("test");
+        CrowdNegativeCache cache = new CrowdNegativeCache(TimeUnit.MINUTES.toNanos(1), metrics);
+
+        assertFalse(cache.isNotFound("user.name|a"));
+        cache.put("user.name|a");
+
+        assertTrue(cache.isNotFound("user.name|a"));
+        assertFalse(cache.isNotFound("user.name|b"));
+
+        assertEquals(1, metrics.get("negative.cache.hit"));
+        assertEquals(2, metrics.get("negative.cache.miss"));
+    }
+
+    @Test
+    void expired() throws Exception {
+        CrowdNegativeCache cache = new CrowdNegativeCache(TimeUnit.MILLISECONDS.toNanos(10), new CrowdMetrics("test"));
+
+        cache.put("user.name|a");
+        Thread.sleep(50);
+
+        assertFalse(cache.isNotFound("user.name|a"));
+    }
+
+    @Test
+    void remove() {
+        CrowdNegativeCache cache = new CrowdNegativeCache(TimeUnit.MINUTES.toNanos(1), new CrowdMetrics("test"));
+
+        cache.put("user.name|a");
+        cache.remove("user.name|a");
+
+        assertFalse(cache.isNotFound("user.name|a"));
+    }
+
+    @Test
+    void lookupStartedBeforeCreation() {
+        CrowdNegativeCache cache = new CrowdNegativeCache(TimeUnit.MINUTES.toNanos(1), new CrowdMetrics("test"));
+
+        // The lookup started, then the object was created before it completed with not found
+        long generation = cache.generation();
+        cache.remove("user.name|a");
+        cache.put("user.name|a", generation);
+
+        assertFalse(cache.isNotFound("user.name|a"));
+
+        // The lookup started after the creation is cached
+        cache.put("user.name|b", cache.generation());
+
+        assertTrue(cache.isNotFound("user.name|b"));
+    }
+
+    @Test
+    void disabled() {
+        CrowdNegativeCache cache = new CrowdNegativeCache(0, new CrowdMetrics("test"));
+
+        cache.put("user.name|a");
+
+        assertFalse(cache.isNotFound("user.name|a"));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import com.atlassian.crowd.exception.OperationFailedException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrowdNodeRouterTest {
+
+    private static final List<String> URLS = Arrays.asList("http://node1", "http://node2");
+
+    @Test
+    void preferLowerLatency() {
+        CrowdNodeRouter router = new CrowdNodeRouter(URLS, 3, TimeUnit.MINUTES.toNanos(1), false, new CrowdMetrics("test"));
+        router.onSuccess(router.getNodes().get(0), TimeUnit.MILLISECONDS.toNanos(100));
+        router.onSuccess(router.getNodes().get(1), TimeUnit.MILLISECONDS.toNanos(10));
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("http://node2", router.select(false).getURL());
+        }
+    }
+
+    @Test
+    void ejectAndRecover() {
+        CrowdNodeRouter router = new CrowdNodeRouter(URLS, 2, TimeUnit.MINUTES.toNanos(1), false, new CrowdMetrics("test"));
+        CrowdNodeRouter.Node node1 = router.getNodes().get(0);
+
+        // The errors of the request, e.g. not found, are the proper responses of the node
+        for (int i = 0; i < 5; i++) {
+            assertThrows(IllegalArgumentException.class, () -> router.call(false, node -> {
+                throw new IllegalArgumentException();
+            }));
+        }
+        assertTrue(node1.isAvailable(System.nanoTime()));
+
+        router.onFailure(node1);
+        assertTrue(node1.isAvailable(System.nanoTime()));
+        router.onFailure(node1);
+        assertFalse(node1.isAvailable(System.nanoTime()));
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("http://node2", router.select(false).getURL());
+        }
+
+        router.onSuccess(node1, TimeUnit.MILLISECONDS.toNanos(10));
+        assertTrue(node1.isAvailable(System.nanoTime()));
+    }
+
+    @Test
+    void allEjected() {
+        CrowdNodeRouter router = new CrowdNodeRouter(URLS, 1, TimeUnit.MINUTES.toNanos(1), false, new CrowdMetrics("test"));
+        // The second call goes to the other node
+        for (int i = 0; i < 2; i++) {
+            assertThrows(ConnectException.class, () -> router.call(false, node -> {
+                throw new ConnectException("Connection refused");
+            }));
+        }
+        for (CrowdNodeRouter.Node node : router.getNodes()) {
+            assertFalse(node.isAvailable(System.nanoTime()));
+        }
+
+        // Still routed to the one back the earliest
+        assertNotNull(router.select(false));
+    }
+
+    @Test
+    void pinWrites() {
+        CrowdNodeRouter router = new CrowdNodeRouter(URLS, 3, TimeUnit.MINUTES.toNanos(1), true, new CrowdMetrics("test"));
+        router.onSuccess(router.getNodes().get(0), TimeUnit.MILLISECONDS.toNanos(100));
+        router.onSuccess(router.getNodes().get(1), TimeUnit.MILLISECONDS.toNanos(10));
+
+        CrowdNodeRouter.Session writer = new CrowdNodeRouter.Session();
+        CrowdNodeRouter.Session other = new CrowdNodeRouter.Session();
+
+        assertEquals("http://node1", router.select(writer, true).getURL());
+        // Read your writes
+        assertEquals("http://node1", router.select(writer, false).getURL());
+        // The reads of the other connector instances are still balanced
+        for (int i = 0; i < 10; i++) {
+            assertEquals("http://node2", router.select(other, false).getURL());
+        }
+
+        // Moved to the other node if it's ejected
+        for (int i = 0; i < 3; i++) {
+            router.onFailure(router.getNodes().get(0));
+        }
+        assertEquals("http://node2", router.select(writer, true).getURL());
+    }
+
+    @Test
+    void nodeFailure() {
+        assertTrue(CrowdNodeRouter.isNodeFailure(new RuntimeException(new ConnectException("Connection refused"))));
+        assertTrue(CrowdNodeRouter.isNodeFailure(new SocketTimeoutException("Read timed out")));
+        assertTrue(CrowdNodeRouter.isNodeFailure(new CrowdJsonClient.CrowdHttpException("error", 503)));
+        assertFalse(CrowdNodeRouter.isNodeFailure(new CrowdJsonClient.CrowdHttpException("error", 400)));
+        assertFalse(CrowdNodeRouter.isNodeFailure(new IllegalArgumentException()));
+        // The other nodes return the same malformed response
+        assertFalse(CrowdNodeRouter.isNodeFailure(new OperationFailedException("Failed to read the user response from Crowd",
+                new IOException("Malformed JSON"))));
+    }
+}
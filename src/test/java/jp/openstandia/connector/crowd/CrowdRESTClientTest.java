@@ -1,9 +1,31 @@
 package jp.openstandia.connector.crowd;
 
+import com.atlassian.crowd.embedded.api.SearchRestriction;
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.integration.rest.entity.GroupEntity;
+import com.atlassian.crowd.integration.rest.entity.UserEntity;
+import com.atlassian.crowd.search.query.entity.restriction.*;
+import com.atlassian.crowd.search.query.entity.restriction.constants.UserTermKeys;
 import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.junit.jupiter.api.Test;
 
-import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 class CrowdRESTClientTest {
 
@@ -18,4 +40,243 @@ class CrowdRESTClientTest {
             client.test();
         });
     }
-}
\ No newline at end of file
+
+    @Test
+    void getAllByKeyset() {
+        // Given
+        CrowdRESTClient client = new CrowdRESTClient("test", null, null);
+        List<String> names = Arrays.asList("a", "b", "c", "d", "e");
+        List<SearchRestriction> requested = new ArrayList<>();
+
+        // When
+        List<String> results = new ArrayList<>();
+        int count = client.getAllByKeyset(results::add, 2, NullRestriction.INSTANCE, UserTermKeys.USERNAME,
+                (String s) -> s, (restriction, start, size) -> {
+                    requested.add(restriction);
+                    assertEquals(0, start, "Keyset paging must not use the offset");
+
+                    String after = restriction instanceof TermRestriction ?
+                            (String) ((TermRestriction<?>) restriction).getValue() : "";
+                    return names.stream().filter(n -> n.compareTo(after) > 0).limit(size).collect(Collectors.toList());
+                });
+
+        // Then
+        assertEquals(5, count);
+        assertEquals(names, results);
+        assertEquals(4, requested.size());
+        assertSame(NullRestriction.INSTANCE, requested.get(0));
+        assertEquals("b", ((TermRestriction<?>) requested.get(1)).getValue());
+        assertEquals(MatchMode.GREATER_THAN, ((TermRestriction<?>) requested.get(1)).getMatchMode());
+        assertEquals("d", ((TermRestriction<?>) requested.get(2)).getValue());
+    }
+
+    @Test
+    void getAllByTwoPhase() {
+        // Given
+        CrowdConfiguration configuration = new CrowdConfiguration();
+        configuration.setBaseURL("http://localhost/two-phase");
+        configuration.setApplicationName("test");
+        configuration.setHttpMaxConnectionsPerPoolableConnector(4);
+        CrowdRESTClient client = new CrowdRESTClient("test", configuration, null);
+        List<String> names = Arrays.asList("a", "b", "c", "d", "e", "f", "g");
+
+        // When
+        List<String> results = new ArrayList<>();
+        int count = client.getAllByTwoPhase(results::add, NullRestriction.INSTANCE, UserTermKeys.USERNAME,
+                (restriction, start, size) -> names.stream().skip(start).limit(size).collect(Collectors.toList()),
+                name -> {
+                    if (name.equals("c")) {
+                        // Deleted after listing the names
+                        return null;
+                    }
+                    // The earlier names complete later
+                    Thread.sleep((names.size() - names.indexOf(name)) * 10L);
+                    return name.toUpperCase();
+                });
+
+        // Then
+        assertEquals(6, count);
+        assertEquals(Arrays.asList("A", "B", "D", "E", "F", "G"), results);
+    }
+
+    @Test
+    void getAllByTwoPhaseStoppedByHandler() {
+        // Given
+        CrowdRESTClient client = new CrowdRESTClient("test", null, null);
+        List<String> names = Arrays.asList("a", "b", "c", "d", "e");
+        List<String> hydrated = new ArrayList<>();
+
+        // When
+        List<String> results = new ArrayList<>();
+        int count = client.getAllByTwoPhase(r -> {
+                    results.add(r);
+                    return results.size() < 2;
+                }, NullRestriction.INSTANCE, UserTermKeys.USERNAME,
+                (restriction, start, size) -> names.stream().skip(start).limit(size).collect(Collectors.toList()),
+                name -> {
+                    hydrated.add(name);
+                    return name;
+                });
+
+        // Then
+        assertEquals(2, count);
+        assertEquals(Arrays.asList("a", "b"), results);
+        assertTrue(hydrated.size() < names.size(), "Fetched all objects after the handler stopped");
+    }
+
+    @Test
+    void getUsersOfGroupLazily() {
+        // Given
+        List<String> members = Arrays.asList("a", "b", "c", "d", "e");
+        List<Integer> requested = new ArrayList<>();
+        CrowdRESTClient client = new CrowdRESTClient("test", null, null) {
+            @Override
+            protected List<String> getUsersOfGroup(String groupName, int start, int pageSize) {
+                requested.add(start);
+                return members.stream().skip(start).limit(pageSize).collect(Collectors.toList());
+            }
+        };
+
+        // When
+        List<String> firstThree = client.getUsersOfGroup("group1", 2).limit(3).collect(Collectors.toList());
+
+        // Then
+        assertEquals(Arrays.asList("a", "b", "c"), firstThree);
+        assertEquals(Arrays.asList(0, 2), requested, "Fetched the pages which are not consumed");
+
+        // When
+        requested.clear();
+        List<String> all = client.getUsersOfGroup("group1", 2).collect(Collectors.toList());
+
+        // Then
+        assertEquals(members, all);
+        assertEquals(Arrays.asList(0, 2, 4, 6), requested);
+    }
+
+    @Test
+    void keysetRestrictionWithCondition() {
+        // Given
+        SearchRestriction active = new TermRestriction<>(UserTermKeys.ACTIVE, true);
+
+        // When
+        SearchRestriction restriction = CrowdRESTClient.keysetRestriction(active, UserTermKeys.USERNAME, "foo");
+
+        // Then
+        assertTrue(restriction instanceof BooleanRestriction);
+        BooleanRestriction bool = (BooleanRestriction) restriction;
+        assertEquals(BooleanRestriction.BooleanLogic.AND, bool.getBooleanLogic());
+        assertEquals(2, bool.getRestrictions().size());
+        assertSame(active, CrowdRESTClient.keysetRestriction(active, UserTermKeys.USERNAME, null));
+    }
+
+    @Test
+    void addUserToGroupAsyncConcurrently() throws Exception {
+        // Given
+        int concurrency = 2;
+        CrowdConfiguration configuration = new CrowdConfiguration();
+        configuration.setBaseURL("http://localhost/async-nested");
+        configuration.setApplicationName("test");
+        configuration.setHttpMaxConnectionsPerPoolableConnector(concurrency);
+        AtomicInteger added = new AtomicInteger();
+        CrowdRESTClient client = new CrowdRESTClient("test", configuration, null) {
+            @Override
+            protected <T> T execute(CrowdOperation operation, CrowdCall<T> call) throws Exception {
+                assertEquals(CrowdOperation.ADD_USER_TO_GROUP, operation);
+                Thread.sleep(20);
+                added.incrementAndGet();
+                return null;
+            }
+        };
+
+        // When
+        // Each async call holds a permit and adds the groups in parallel inside it
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            List<CompletableFuture<Void>> futures = IntStream.range(0, concurrency)
+                    .mapToObj(i -> client.addUserToGroupAsync("user" + i, Arrays.asList("group1", "group2", "group3")))
+                    .collect(Collectors.toList());
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+        }, "Deadlocked by the nested tasks");
+
+        // Then
+        assertEquals(concurrency * 3, added.get());
+    }
+
+    @Test
+    void asyncCallsOverlap() throws Exception {
+        // Given
+        CrowdConfiguration configuration = new CrowdConfiguration();
+        configuration.setBaseURL("http://localhost/async-overlap");
+        configuration.setApplicationName("test");
+        configuration.setHttpMaxConnectionsPerPoolableConnector(2);
+        Thread caller = Thread.currentThread();
+        // Both calls must be in flight at the same time to pass the latch
+        CountDownLatch inFlight = new CountDownLatch(2);
+        CrowdRESTClient client = new CrowdRESTClient("test", configuration, null) {
+            @Override
+            public UserEntity getUser(Name name, OperationOptions options, Set<String> fetchFieldsSet) {
+                return overlap();
+            }
+
+            @Override
+            public GroupEntity getGroup(Name name, OperationOptions options, Set<String> fetchFieldsSet) {
+                return overlap();
+            }
+
+            private <T> T overlap() {
+                assertNotSame(caller, Thread.currentThread());
+                inFlight.countDown();
+                try {
+                    assertTrue(inFlight.await(5, TimeUnit.SECONDS), "The async calls didn't overlap");
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                return null;
+            }
+        };
+
+        // When
+        CompletableFuture<UserEntity> user = client.getUserAsync(new Name("foo"), null, null);
+        CompletableFuture<GroupEntity> group = client.getGroupAsync(new Name("bar"), null, null);
+
+        // Then
+        assertNull(user.get(10, TimeUnit.SECONDS));
+        assertNull(group.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void malformedResponseIsNotRetried() {
+        // Given
+        CrowdConfiguration configuration = new CrowdConfiguration();
+        configuration.setBaseURL("http://localhost/malformed");
+        configuration.setApplicationName("test");
+        configuration.setMaxRetries(3);
+        configuration.setRetryBaseDelayInMilliseconds(1);
+        CrowdRESTClient client = new CrowdRESTClient("test", configuration, null);
+        AtomicInteger attempts = new AtomicInteger();
+
+        // When
+        assertThrows(OperationFailedException.class, () -> client.execute(CrowdOperation.GET_USER, () -> {
+            if (attempts.incrementAndGet() > 0) {
+                throw new OperationFailedException("Failed to read the user response from Crowd",
+                        new IOException("Malformed JSON"));
+            }
+            return null;
+        }));
+
+        // Then
+        assertEquals(1, attempts.get());
+
+        // When
+        attempts.set(0);
+        assertThrows(OperationFailedException.class, () -> client.execute(CrowdOperation.GET_USER, () -> {
+            if (attempts.incrementAndGet() > 0) {
+                throw new OperationFailedException("Failed to connect to Crowd",
+                        new ConnectException("Connection refused"));
+            }
+            return null;
+        }));
+
+        // Then
+        assertEquals(4, attempts.get(), "The connection failure must be retried");
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrowdRetryPolicyTest {
+
+    @Test
+    void exponentialBackoff() {
+        for (int i = 0; i < 100; i++) {
+            CrowdRetryPolicy policy = new CrowdRetryPolicy(3, 100, new CrowdMetrics("test"));
+
+            long delay = policy.nextDelay(0, -1);
+            assertTrue(delay >= 0 && delay <= 100, "delay: " + delay);
+
+            delay = policy.nextDelay(2, -1);
+            assertTrue(delay >= 0 && delay <= 400, "delay: " + delay);
+        }
+    }
+
+    @Test
+    void maxRetries() {
+        CrowdMetrics metrics = new CrowdMetrics("test");
+        CrowdRetryPolicy policy = new CrowdRetryPolicy(3, 100, metrics);
+
+        assertTrue(policy.nextDelay(2, -1) >= 0);
+        assertEquals(-1, policy.nextDelay(3, -1));
+        assertEquals(1, metrics.get("retry.exhausted"));
+    }
+
+    @Test
+    void retryAfter() {
+        CrowdRetryPolicy policy = new CrowdRetryPolicy(3, 100, new CrowdMetrics("test"));
+
+        assertTrue(policy.nextDelay(0, 5000) >= 5000);
+        assertEquals(-1, policy.nextDelay(0, CrowdRetryPolicy.MAX_DELAY_MILLIS + 1));
+    }
+
+    @Test
+    void budget() {
+        CrowdMetrics metrics = new CrowdMetrics("test");
+        CrowdRetryPolicy policy = new CrowdRetryPolicy(3, 1, metrics);
+
+        // Initial budget
+        for (int i = 0; i < 10; i++) {
+            assertTrue(policy.nextDelay(0, -1) >= 0);
+        }
+        assertEquals(-1, policy.nextDelay(0, -1));
+        assertEquals(1, metrics.get("retry.budgetExhausted"));
+
+        // 5 calls refill 1 retry
+        for (int i = 0; i < 5; i++) {
+            policy.onCall();
+        }
+        assertTrue(policy.nextDelay(0, -1) >= 0);
+        assertEquals(-1, policy.nextDelay(0, -1));
+    }
+
+    @Test
+    void disabled() {
+        assertEquals(-1, CrowdRetryPolicy.NONE.nextDelay(0, -1));
+        assertSame(CrowdRetryPolicy.NONE, CrowdRetryPolicy.of(null));
+    }
+
+    @Test
+    void reconfigured() {
+        CrowdConfiguration configuration = new CrowdConfiguration();
+        configuration.setBaseURL("http://localhost/retry-reconfigured");
+        configuration.setApplicationName("test");
+        configuration.setMaxRetries(3);
+        CrowdRetryPolicy policy = CrowdRetryPolicy.of(configuration);
+        assertTrue(policy.nextDelay(1, -1) >= 0);
+
+        // The new max retries takes effect without restarting the JVM
+        configuration.setMaxRetries(1);
+        CrowdRetryPolicy reconfigured = CrowdRetryPolicy.of(configuration);
+        assertNotSame(policy, reconfigured);
+        assertEquals(-1, reconfigured.nextDelay(1, -1));
+    }
+}
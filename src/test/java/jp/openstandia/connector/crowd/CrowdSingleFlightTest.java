@@ -0,0 +1,167 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrowdSingleFlightTest {
+
+    @Test
+    void shareInFlightRead() throws Exception {
+        CrowdMetrics metrics = new CrowdMetrics("test");
+        CrowdSingleFlight singleFlight = new CrowdSingleFlight(metrics);
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService es = Executors.newFixedThreadPool(3);
+        try {
+            Future<String> leader = es.submit(() -> singleFlight.execute("user|a", () -> {
+                calls.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "a" + calls.get();
+            }));
+            started.await();
+
+            List<Future<String>> followers = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                followers.add(es.submit(() -> singleFlight.execute("user|a", () -> "a" + calls.incrementAndGet())));
+            }
+            // Wait for the followers to join the in-flight read
+            while (metrics.get("singleflight.shared") < 2) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+
+            assertEquals("a1", leader.get(5, TimeUnit.SECONDS));
+            for (Future<String> follower : followers) {
+                assertEquals("a1", follower.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            es.shutdownNow();
+        }
+
+        assertEquals(1, calls.get());
+
+        // Not cached after the completion
+        assertEquals("a2", singleFlight.execute("user|a", () -> "a" + calls.incrementAndGet()));
+    }
+
+    @Test
+    void shareFailure() throws Exception {
+        CrowdMetrics metrics = new CrowdMetrics("test");
+        CrowdSingleFlight singleFlight = new CrowdSingleFlight(metrics);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService es = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> leader = es.submit(() -> singleFlight.<String>execute("user|a", () -> {
+                started.countDown();
+                release.await();
+                throw new UnknownUidException("a");
+            }));
+            started.await();
+
+            Future<String> follower = es.submit(() -> singleFlight.execute("user|a", () -> "a"));
+            while (metrics.get("singleflight.shared") < 1) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> leader.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof UnknownUidException);
+            e = assertThrows(ExecutionException.class, () -> follower.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof UnknownUidException);
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    @Test
+    void detachByWrite() throws Exception {
+        CrowdMetrics metrics = new CrowdMetrics("test");
+        CrowdSingleFlight singleFlight = new CrowdSingleFlight(metrics);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService es = Executors.newFixedThreadPool(1);
+        try {
+            // Started before the write
+            Future<String> before = es.submit(() -> singleFlight.execute("user.name|a", () -> {
+                started.countDown();
+                release.await();
+                return "before";
+            }));
+            started.await();
+
+            singleFlight.detach("user.name|a");
+
+            // Issued after the write, so it doesn't join the read before the write
+            assertEquals("after", singleFlight.execute("user.name|a", () -> "after"));
+            assertEquals(0, metrics.get("singleflight.shared"));
+
+            release.countDown();
+            assertEquals("before", before.get(5, TimeUnit.SECONDS));
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    @Test
+    void detachAllByPrefix() throws Exception {
+        CrowdMetrics metrics = new CrowdMetrics("test");
+        CrowdSingleFlight singleFlight = new CrowdSingleFlight(metrics);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService es = Executors.newFixedThreadPool(3);
+        try {
+            for (String key : new String[]{"user.uid|1", "group.name|a"}) {
+                es.submit(() -> singleFlight.execute(key, () -> {
+                    started.countDown();
+                    release.await();
+                    return "before";
+                }));
+            }
+            started.await();
+
+            singleFlight.detachAll("user.uid|");
+
+            assertEquals("after", singleFlight.execute("user.uid|1", () -> "after"));
+            assertEquals(0, metrics.get("singleflight.shared"));
+
+            // The other reads are still shared
+            Future<String> follower = es.submit(() -> singleFlight.execute("group.name|a", () -> "after"));
+            while (metrics.get("singleflight.shared") < 1) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            assertEquals("before", follower.get(5, TimeUnit.SECONDS));
+        } finally {
+            es.shutdownNow();
+        }
+    }
+}
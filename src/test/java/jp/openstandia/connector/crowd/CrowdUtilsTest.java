@@ -15,6 +15,7 @@
  */
 package jp.openstandia.connector.crowd;
 
+import com.atlassian.crowd.exception.OperationFailedException;
 import com.atlassian.crowd.integration.rest.entity.UserEntity;
 import jp.openstandia.connector.crowd.testutil.MockClient;
 import jp.openstandia.connector.util.SchemaDefinition;
@@ -25,6 +26,12 @@ import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
 import org.identityconnectors.framework.common.objects.Uid;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
 import java.util.Map;
 
 import static org.identityconnectors.framework.common.objects.AttributeInfo.Flags.*;
@@ -103,4 +110,20 @@ class CrowdUtilsTest {
         assertEquals(1, fullAttributesToGet.size());
         assertTrue(fullAttributesToGet.containsKey("groups"));
     }
-}
\ No newline at end of file
+
+    @Test
+    void isTransportFailure() {
+        assertTrue(Utils.isTransportFailure(new OperationFailedException("Failed to connect to Crowd",
+                new ConnectException("Connection refused"))));
+        assertTrue(Utils.isTransportFailure(new SocketTimeoutException("Read timed out")));
+        assertTrue(Utils.isTransportFailure(new HttpConnectTimeoutException("HTTP connect timed out")));
+        assertTrue(Utils.isTransportFailure(new UnknownHostException("crowd.example.com")));
+        assertTrue(Utils.isTransportFailure(new RuntimeException(new SocketException("Connection reset"))));
+
+        // Crowd responded, but the body can't be read
+        assertFalse(Utils.isTransportFailure(new OperationFailedException("Failed to read the user response from Crowd",
+                new IOException("Malformed JSON"))));
+        assertFalse(Utils.isTransportFailure(new IOException("Unsupported Content-Encoding: br")));
+        assertFalse(Utils.isTransportFailure(new IllegalArgumentException()));
+    }
+}
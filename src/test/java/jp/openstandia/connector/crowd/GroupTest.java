@@ -465,6 +465,44 @@ class GroupTest extends AbstractTest {
         assertEquals(delGroups, targetDelGroups.get());
     }
 
+    @Test
+    void updateGroupMembers() {
+        // Given
+        String key = "foo";
+        String currentName = "foo";
+        List<String> addMembers = list("user1", "user2");
+        List<String> delMembers = list("user3");
+
+        Set<AttributeDelta> modifications = new HashSet<>();
+        modifications.add(AttributeDeltaBuilder.build("members", addMembers, delMembers));
+
+        mockClient.getGroupByUid = ((u) -> GroupEntity.newMinimalInstance(currentName));
+        AtomicReference<String> targetName1 = new AtomicReference<>();
+        AtomicReference<List<String>> targetAddMembers = new AtomicReference<>();
+        mockClient.addUsersToGroup = ((g, u) -> {
+            targetName1.set(g);
+            targetAddMembers.set(u);
+        });
+        AtomicReference<String> targetName2 = new AtomicReference<>();
+        AtomicReference<List<String>> targetDelMembers = new AtomicReference<>();
+        mockClient.deleteUsersFromGroup = ((g, u) -> {
+            targetName2.set(g);
+            targetDelMembers.set(u);
+        });
+
+        // When
+        Set<AttributeDelta> affected = connector.updateDelta(GROUP_OBJECT_CLASS, new Uid(key, new Name(currentName)), modifications, new OperationOptionsBuilder().build());
+
+        // Then
+        assertNull(affected);
+
+        assertEquals(currentName, targetName1.get());
+        assertEquals(addMembers, targetAddMembers.get());
+
+        assertEquals(currentName, targetName2.get());
+        assertEquals(delMembers, targetDelMembers.get());
+    }
+
     @Test
     void updateGroupButNotFound() {
         // Given
@@ -677,6 +715,34 @@ class GroupTest extends AbstractTest {
         assertEquals(50, targetPageSize.get(), "Not default page size in the configuration");
     }
 
+    @Test
+    void getGroupByUidWithMembers() {
+        // Given
+        String key = "foo";
+        String currentName = "foo";
+        List<String> members = list("user1", "user2");
+
+        mockClient.getGroupByUid = ((u) -> new GroupEntity(currentName, null, GroupType.GROUP, true));
+        AtomicReference<String> targetName = new AtomicReference<>();
+        AtomicReference<Integer> targetPageSize = new AtomicReference<>();
+        mockClient.getUsersOfGroup = ((n, size) -> {
+            targetName.set(n);
+            targetPageSize.set(size);
+
+            return members.stream();
+        });
+
+        // When
+        // Request "members"
+        ConnectorObject result = connector.getObject(GROUP_OBJECT_CLASS, new Uid(key, new Name(currentName)), defaultGetOperation("members"));
+
+        // Then
+        assertEquals(members, multiAttr(result, "members"));
+        assertNull(result.getAttributeByName("groups"));
+        assertEquals(currentName, targetName.get());
+        assertEquals(50, targetPageSize.get(), "Not default page size in the configuration");
+    }
+
     @Test
     void getGroupByUidWithGroupsWithIgnoreGroup() {
         // Apply custom configuration for this test
@@ -0,0 +1,115 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import com.atlassian.crowd.search.query.entity.restriction.NullRestriction;
+import jp.openstandia.connector.util.JsonReader;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonTransportTest {
+
+    @Test
+    void readNestedDocument() throws IOException {
+        String json = "{\"expand\":\"user\",\"users\":[" +
+                "{\"name\":\"foo\",\"active\":true,\"created-date\":1700000000000,\"link\":{\"href\":\"x\",\"rel\":[1,2]}}," +
+                "{\"name\":\"b\\\"a\\u0072\",\"active\":false,\"email\":null}" +
+                "]}";
+
+        List<String> names = new ArrayList<>();
+        List<Boolean> active = new ArrayList<>();
+        long created = 0;
+
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("users")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "name":
+                            names.add(reader.nextString());
+                            break;
+                        case "active":
+                            active.add(reader.nextBoolean());
+                            break;
+                        case "created-date":
+                            created = reader.nextLong();
+                            break;
+                        case "email":
+                            assertNull(reader.nextString());
+                            break;
+                        default:
+                            reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+
+        assertEquals(JsonReader.Token.END_DOCUMENT, reader.peek());
+        assertEquals(2, names.size());
+        assertEquals("foo", names.get(0));
+        assertEquals("b\"ar", names.get(1));
+        assertEquals(true, active.get(0));
+        assertEquals(false, active.get(1));
+        assertEquals(1700000000000L, created);
+    }
+
+    @Test
+    void readEmptyContainers() throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(" { \"users\" : [ ] , \"attributes\" : { } } "));
+        reader.beginObject();
+        assertEquals("users", reader.nextName());
+        reader.beginArray();
+        assertFalse(reader.hasNext());
+        reader.endArray();
+        assertEquals("attributes", reader.nextName());
+        reader.beginObject();
+        assertFalse(reader.hasNext());
+        reader.endObject();
+        reader.endObject();
+        assertEquals(JsonReader.Token.END_DOCUMENT, reader.peek());
+    }
+
+    @Test
+    void malformed() {
+        assertThrows(IOException.class, () -> {
+            JsonReader reader = new JsonReader(new StringReader("{\"name\" \"foo\"}"));
+            reader.beginObject();
+            reader.nextName();
+            reader.nextString();
+        });
+    }
+
+    @Test
+    void nullRestriction() {
+        assertEquals("{\"restriction-type\":\"null-search-restriction\"}", CrowdJsonClient.toJson(NullRestriction.INSTANCE));
+    }
+}
@@ -46,7 +46,7 @@ class SchemaTest extends AbstractTest {
         ObjectClassInfo userSchema = user.get();
         Set<AttributeInfo> attributeInfo = userSchema.getAttributeInfo();
 
-        assertEquals(11, attributeInfo.size());
+        assertEquals(12, attributeInfo.size());
         assertAttributeInfo(attributeInfo, Uid.NAME);
         assertAttributeInfo(attributeInfo, Name.NAME);
         assertAttributeInfo(attributeInfo, OperationalAttributes.PASSWORD_NAME);
@@ -58,6 +58,7 @@ class SchemaTest extends AbstractTest {
         assertAttributeInfo(attributeInfo, "created-date");
         assertAttributeInfo(attributeInfo, "updated-date");
         assertAttributeInfo(attributeInfo, "groups", true);
+        assertAttributeInfo(attributeInfo, "nestedGroups", true);
     }
 
     @Test
@@ -75,7 +76,7 @@ class SchemaTest extends AbstractTest {
         ObjectClassInfo userSchema = user.get();
         Set<AttributeInfo> attributeInfo = userSchema.getAttributeInfo();
 
-        assertEquals(13, attributeInfo.size());
+        assertEquals(14, attributeInfo.size());
         assertAttributeInfo(attributeInfo, "attributes.custom1");
         assertAttributeInfo(attributeInfo, "attributes.custom2", true);
     }
@@ -91,12 +92,32 @@ class SchemaTest extends AbstractTest {
         ObjectClassInfo groupSchema = group.get();
         Set<AttributeInfo> attributeInfo = groupSchema.getAttributeInfo();
 
-        assertEquals(5, attributeInfo.size());
+        assertEquals(7, attributeInfo.size());
         assertAttributeInfo(attributeInfo, Uid.NAME);
         assertAttributeInfo(attributeInfo, Name.NAME);
         assertAttributeInfo(attributeInfo, OperationalAttributes.ENABLE_NAME);
         assertAttributeInfo(attributeInfo, "description");
         assertAttributeInfo(attributeInfo, "groups", true);
+        assertAttributeInfo(attributeInfo, "members", true);
+        assertAttributeInfo(attributeInfo, "nestedGroups", true);
+    }
+
+    @Test
+    void sharedByConfiguration() {
+        CrowdConfiguration conf1 = newConfiguration();
+        CrowdConfiguration conf2 = newConfiguration();
+
+        CrowdSchema schema1 = new CrowdSchema(conf1, null);
+        CrowdSchema schema2 = new CrowdSchema(conf2, null);
+
+        assertSame(schema1.schema, schema2.schema);
+        assertNotSame(schema1.getSchemaHandler(CrowdUserHandler.USER_OBJECT_CLASS),
+                schema2.getSchemaHandler(CrowdUserHandler.USER_OBJECT_CLASS));
+
+        conf2.setUserAttributesSchema(new String[]{"custom1$string"});
+        CrowdSchema schema3 = new CrowdSchema(conf2, null);
+
+        assertNotSame(schema1.schema, schema3.schema);
     }
 
     protected void assertAttributeInfo(Set<AttributeInfo> info, String attrName) {
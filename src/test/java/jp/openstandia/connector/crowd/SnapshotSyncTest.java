@@ -0,0 +1,118 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd;
+
+import com.atlassian.crowd.integration.rest.entity.GroupEntity;
+import com.atlassian.crowd.model.group.GroupType;
+import jp.openstandia.connector.crowd.testutil.AbstractTest;
+import org.identityconnectors.framework.api.ConnectorFacade;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static jp.openstandia.connector.crowd.CrowdGroupHandler.GROUP_OBJECT_CLASS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SnapshotSyncTest extends AbstractTest {
+
+    @TempDir
+    Path snapshotDir;
+
+    @Test
+    void syncGroupsBySnapshot() {
+        // Given
+        configuration.setSyncStrategy(CrowdConfiguration.SYNC_STRATEGY_SNAPSHOT);
+        configuration.setSnapshotDirectory(snapshotDir.toString());
+        ConnectorFacade connector = newFacade(configuration);
+
+        List<GroupEntity> groups = new ArrayList<>();
+        groups.add(new GroupEntity("group1", "desc1", GroupType.GROUP, true));
+        groups.add(new GroupEntity("group2", "desc2", GroupType.GROUP, true));
+        groups.add(new GroupEntity("group3", "desc3", GroupType.GROUP, true));
+        mockClient.getGroups = ((h, size, offset) -> {
+            groups.forEach(h::handle);
+            return groups.size();
+        });
+
+        // When
+        SyncToken baseline = connector.getLatestSyncToken(GROUP_OBJECT_CLASS);
+        List<SyncDelta> results = sync(connector, baseline);
+
+        // Then
+        assertEquals(0, results.size(), "Unexpected deltas for the unchanged groups");
+
+        // Given
+        groups.set(1, new GroupEntity("group2", "changed", GroupType.GROUP, true));
+        groups.remove(2);
+        groups.add(new GroupEntity("group4", "desc4", GroupType.GROUP, true));
+
+        // When
+        results = sync(connector, baseline);
+
+        // Then
+        assertEquals(3, results.size());
+        assertEquals(SyncDeltaType.CREATE_OR_UPDATE, results.get(0).getDeltaType());
+        assertEquals("group2", results.get(0).getUid().getUidValue());
+        assertEquals(SyncDeltaType.CREATE_OR_UPDATE, results.get(1).getDeltaType());
+        assertEquals("group4", results.get(1).getUid().getUidValue());
+        assertEquals(SyncDeltaType.DELETE, results.get(2).getDeltaType());
+        assertEquals("group3", results.get(2).getUid().getUidValue());
+
+        // When
+        SyncToken latest = results.get(0).getToken();
+        results = sync(connector, latest);
+
+        // Then
+        assertEquals(0, results.size(), "Unexpected deltas after the snapshot was updated");
+    }
+
+    @Test
+    void syncGroupsBySnapshotWithUnknownToken() {
+        // Given
+        configuration.setSyncStrategy(CrowdConfiguration.SYNC_STRATEGY_SNAPSHOT);
+        configuration.setSnapshotDirectory(snapshotDir.toString());
+        ConnectorFacade connector = newFacade(configuration);
+
+        mockClient.getGroups = ((h, size, offset) -> {
+            h.handle(new GroupEntity("group1", "desc1", GroupType.GROUP, true));
+            return 1;
+        });
+        connector.getLatestSyncToken(GROUP_OBJECT_CLASS);
+
+        // When
+        List<SyncDelta> results = sync(connector, null);
+
+        // Then
+        assertEquals(1, results.size(), "Not full sync when the token is unknown");
+        assertEquals("group1", results.get(0).getUid().getUidValue());
+    }
+
+    private List<SyncDelta> sync(ConnectorFacade connector, SyncToken token) {
+        List<SyncDelta> results = new ArrayList<>();
+        connector.sync(GROUP_OBJECT_CLASS, token, delta -> {
+            results.add(delta);
+            return true;
+        }, new OperationOptionsBuilder().build());
+        return results;
+    }
+}
@@ -15,15 +15,23 @@
  */
 package jp.openstandia.connector.crowd;
 
+import com.atlassian.crowd.embedded.api.SearchRestriction;
 import com.atlassian.crowd.integration.rest.entity.MultiValuedAttributeEntity;
 import com.atlassian.crowd.integration.rest.entity.MultiValuedAttributeEntityList;
 import com.atlassian.crowd.integration.rest.entity.UserEntity;
+import com.atlassian.crowd.model.group.Membership;
 import com.atlassian.crowd.model.user.User;
 import com.atlassian.crowd.model.user.UserWithAttributes;
+import com.atlassian.crowd.search.query.entity.restriction.BooleanRestriction;
+import com.atlassian.crowd.search.query.entity.restriction.MatchMode;
+import com.atlassian.crowd.search.query.entity.restriction.NullRestriction;
+import com.atlassian.crowd.search.query.entity.restriction.TermRestriction;
+import com.atlassian.crowd.search.query.entity.restriction.constants.UserTermKeys;
 import jp.openstandia.connector.crowd.testutil.AbstractTest;
 import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.api.ConnectorFacade;
 import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
 import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.*;
 import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
@@ -31,7 +39,12 @@ import org.junit.jupiter.api.Test;
 
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static jp.openstandia.connector.crowd.CrowdUserHandler.USER_OBJECT_CLASS;
 import static jp.openstandia.connector.util.Utils.toZoneDateTime;
@@ -1036,6 +1049,416 @@ class UserTest extends AbstractTest {
         assertEquals(1, targetOffset.get());
     }
 
+    @Test
+    void getUsersByUpdatedDate() {
+        // Given
+        Date since = Date.from(Instant.now().minusSeconds(60));
+        Date updatedDate = Date.from(Instant.now());
+
+        AtomicReference<SearchRestriction> targetRestriction = new AtomicReference<>();
+        mockClient.getUsersByRestriction = ((r, h, size) -> {
+            targetRestriction.set(r);
+
+            UserEntity result = new UserEntity("user1", null, null, null, null, null, true, "12345:abc", updatedDate, updatedDate, false);
+            h.handle(result);
+
+            return 1;
+        });
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        ResultsHandler handler = connectorObject -> {
+            results.add(connectorObject);
+            return true;
+        };
+        connector.search(USER_OBJECT_CLASS, FilterBuilder.greaterThan(AttributeBuilder.build("updated-date", toZoneDateTime(since))),
+                handler, defaultSearchOperation());
+
+        // Then
+        assertEquals(1, results.size());
+        assertEquals("user1", results.get(0).getName().getNameValue());
+
+        assertTrue(targetRestriction.get() instanceof TermRestriction);
+        TermRestriction<?> restriction = (TermRestriction<?>) targetRestriction.get();
+        assertEquals(UserTermKeys.UPDATED_DATE, restriction.getProperty());
+        assertEquals(MatchMode.GREATER_THAN, restriction.getMatchMode());
+        assertEquals(since, restriction.getValue());
+    }
+
+    @Test
+    void getUsersByOrOfNames() {
+        // Given
+        AtomicReference<SearchRestriction> targetRestriction = new AtomicReference<>();
+        mockClient.getUsersByRestriction = ((r, h, size) -> {
+            targetRestriction.set(r);
+
+            h.handle(new UserEntity("user1", null, null, null, null, null, true, "12345:abc", null, null, false));
+            h.handle(new UserEntity("user2", null, null, null, null, null, true, "12345:efg", null, null, false));
+
+            return 2;
+        });
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        ResultsHandler handler = connectorObject -> {
+            results.add(connectorObject);
+            return true;
+        };
+        connector.search(USER_OBJECT_CLASS, FilterBuilder.or(
+                        FilterBuilder.equalTo(new Name("user1")),
+                        FilterBuilder.or(FilterBuilder.equalTo(new Name("user2")), FilterBuilder.equalTo(new Name("user3")))),
+                handler, defaultSearchOperation());
+
+        // Then
+        assertEquals(2, results.size());
+
+        assertTrue(targetRestriction.get() instanceof BooleanRestriction);
+        BooleanRestriction restriction = (BooleanRestriction) targetRestriction.get();
+        assertEquals(BooleanRestriction.BooleanLogic.OR, restriction.getBooleanLogic());
+        List<Object> names = restriction.getRestrictions().stream()
+                .map(r -> ((TermRestriction<?>) r).getValue())
+                .collect(Collectors.toList());
+        assertEquals(Arrays.asList("user1", "user2", "user3"), names);
+    }
+
+    @Test
+    void getUsersByOrOfUids() {
+        // Given
+        List<Uid> targetUids = Collections.synchronizedList(new ArrayList<>());
+        mockClient.getUserByUid = ((u) -> {
+            targetUids.add(u);
+            if (u.getUidValue().equals("12345:unknown")) {
+                throw new UnknownUidException();
+            }
+            return new UserEntity("user-" + u.getUidValue(), null, null, null, null, null, true, u.getUidValue(), null, null, false);
+        });
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        ResultsHandler handler = connectorObject -> {
+            results.add(connectorObject);
+            return true;
+        };
+        connector.search(USER_OBJECT_CLASS, FilterBuilder.or(
+                        FilterBuilder.equalTo(new Uid("12345:abc")),
+                        FilterBuilder.equalTo(new Uid("12345:unknown"))),
+                handler, defaultSearchOperation());
+
+        // Then
+        assertEquals(2, targetUids.size());
+        assertEquals(1, results.size());
+        assertEquals("12345:abc", results.get(0).getUid().getUidValue());
+    }
+
+    @Test
+    void syncUsers() {
+        // Given
+        long since = Instant.now().minusSeconds(60).toEpochMilli();
+        Date updatedDate1 = Date.from(Instant.now().minusSeconds(30));
+        Date updatedDate2 = Date.from(Instant.now().minusSeconds(10));
+
+        AtomicReference<SearchRestriction> targetRestriction = new AtomicReference<>();
+        mockClient.getUsersByRestriction = ((r, h, size) -> {
+            targetRestriction.set(r);
+
+            h.handle(new UserEntity("user1", null, null, null, null, null, true, "12345:abc", updatedDate1, updatedDate2, false));
+            h.handle(new UserEntity("user2", null, null, null, null, null, true, "12345:efg", updatedDate1, updatedDate1, false));
+
+            return 2;
+        });
+
+        // When
+        List<SyncDelta> results = new ArrayList<>();
+        SyncToken latest = connector.sync(USER_OBJECT_CLASS, new SyncToken(since), delta -> {
+            results.add(delta);
+            return true;
+        }, new OperationOptionsBuilder().build());
+
+        // Then
+        assertEquals(2, results.size());
+        assertEquals(SyncDeltaType.CREATE_OR_UPDATE, results.get(0).getDeltaType());
+        assertEquals("12345:abc", results.get(0).getUid().getUidValue());
+        assertEquals("user1", results.get(0).getObject().getName().getNameValue());
+        assertEquals(since, results.get(0).getToken().getValue());
+        assertEquals("12345:efg", results.get(1).getUid().getUidValue());
+
+        TermRestriction<?> restriction = (TermRestriction<?>) targetRestriction.get();
+        assertEquals(UserTermKeys.UPDATED_DATE, restriction.getProperty());
+        assertEquals(new Date(since - configuration.getSyncOverlapInMilliseconds()), restriction.getValue());
+
+        assertEquals(updatedDate2.getTime(), latest.getValue());
+    }
+
+    @Test
+    void syncUsersStoppedByHandler() {
+        // Given
+        long since = Instant.now().minusSeconds(60).toEpochMilli();
+        Date updatedDate1 = Date.from(Instant.now().minusSeconds(30));
+        Date updatedDate2 = Date.from(Instant.now().minusSeconds(10));
+
+        mockClient.getUsersByRestriction = ((r, h, size) -> {
+            // Sorted by name, not by the updated-date
+            if (!h.handle(new UserEntity("user1", null, null, null, null, null, true, "12345:abc", updatedDate1, updatedDate2, false))) {
+                return 1;
+            }
+            h.handle(new UserEntity("user2", null, null, null, null, null, true, "12345:efg", updatedDate1, updatedDate1, false));
+
+            return 2;
+        });
+
+        // When
+        List<SyncDelta> results = new ArrayList<>();
+        SyncToken latest = connector.sync(USER_OBJECT_CLASS, new SyncToken(since), delta -> {
+            results.add(delta);
+            return false;
+        }, new OperationOptionsBuilder().build());
+
+        // Then
+        assertEquals(1, results.size());
+        assertEquals("12345:abc", results.get(0).getUid().getUidValue());
+
+        // Restart from the previous token not to lose user2
+        assertEquals(since, latest.getValue());
+    }
+
+    @Test
+    void getUsersByCookie() {
+        // Given
+        List<UserWithAttributes> users = new ArrayList<>();
+        for (String name : list("user1", "user2", "user3")) {
+            users.add(new UserEntity(name, null, null, null, null, null, true, "key-" + name, Date.from(Instant.now()), Date.from(Instant.now()), false));
+        }
+        List<SearchRestriction> requested = new ArrayList<>();
+        mockClient.searchUsers = ((r, start, size) -> {
+            requested.add(r);
+            String after = r instanceof TermRestriction ? (String) ((TermRestriction<?>) r).getValue() : "";
+            return users.stream().filter(u -> u.getName().compareTo(after) > 0).limit(size).collect(Collectors.toList());
+        });
+
+        OperationOptions firstPage = new OperationOptionsBuilder().setPageSize(2).build();
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        SearchResult searchResult = connector.search(USER_OBJECT_CLASS, null, results::add, firstPage);
+
+        // Then
+        assertEquals(2, results.size());
+        assertEquals("user2", results.get(1).getName().getNameValue());
+        assertNotNull(searchResult.getPagedResultsCookie());
+
+        // When
+        OperationOptions nextPage = new OperationOptionsBuilder().setPageSize(2)
+                .setPagedResultsCookie(searchResult.getPagedResultsCookie()).build();
+        results.clear();
+        searchResult = connector.search(USER_OBJECT_CLASS, null, results::add, nextPage);
+
+        // Then
+        assertEquals(1, results.size());
+        assertEquals("user3", results.get(0).getName().getNameValue());
+        assertNull(searchResult.getPagedResultsCookie(), "Unexpected cookie for the last page");
+        assertEquals("user2", ((TermRestriction<?>) requested.get(1)).getValue());
+    }
+
+    @Test
+    void getUsersByCookieForDifferentSearch() {
+        // Given
+        String cookie = new CrowdPagedResultsCookie("user2", 2).encode(NullRestriction.INSTANCE);
+        OperationOptions options = new OperationOptionsBuilder().setPageSize(2).setPagedResultsCookie(cookie).build();
+
+        // Then
+        assertThrows(InvalidAttributeValueException.class, () -> {
+            // When
+            connector.search(USER_OBJECT_CLASS, FilterBuilder.greaterThan(AttributeBuilder.build("updated-date", toZoneDateTime(new Date()))),
+                    connectorObject -> true, options);
+        });
+    }
+
+    @Test
+    void getUsersWithCount() {
+        // Given
+        mockClient.getUsers = ((h, size, offset) -> {
+            h.handle(new UserEntity("user3", null, null, null, null, null, true, "12345:abc", Date.from(Instant.now()), Date.from(Instant.now()), false));
+            h.handle(new UserEntity("user4", null, null, null, null, null, true, "12345:efg", Date.from(Instant.now()), Date.from(Instant.now()), false));
+            return 2;
+        });
+        AtomicReference<SearchRestriction> targetRestriction = new AtomicReference<>();
+        mockClient.countUsers = (r -> {
+            targetRestriction.set(r);
+            return 5;
+        });
+
+        OperationOptions options = new OperationOptionsBuilder()
+                .setPagedResultsOffset(3)
+                .setPageSize(2)
+                .build();
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        SearchResult searchResult = connector.search(USER_OBJECT_CLASS, null, results::add, options);
+
+        // Then
+        assertEquals(2, results.size());
+        assertEquals(5, searchResult.getTotalPagedResults());
+        assertEquals(1, searchResult.getRemainingPagedResults());
+        assertSame(NullRestriction.INSTANCE, targetRestriction.get());
+    }
+
+    @Test
+    void getUsersWithoutCount() {
+        // Given
+        mockClient.getUsers = ((h, size, offset) -> {
+            h.handle(new UserEntity("user3", null, null, null, null, null, true, "12345:abc", Date.from(Instant.now()), Date.from(Instant.now()), false));
+            h.handle(new UserEntity("user4", null, null, null, null, null, true, "12345:efg", Date.from(Instant.now()), Date.from(Instant.now()), false));
+            return 2;
+        });
+        mockClient.countUsers = (r -> {
+            fail("Unexpected count of the users");
+            return 0;
+        });
+
+        OperationOptions options = new OperationOptionsBuilder()
+                .setPagedResultsOffset(3)
+                .setPageSize(2)
+                .setTotalPagedResultsPolicy(SearchResult.CountPolicy.NONE)
+                .build();
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        SearchResult searchResult = connector.search(USER_OBJECT_CLASS, null, results::add, options);
+
+        // Then
+        assertEquals(2, results.size());
+        assertEquals(-1, searchResult.getTotalPagedResults());
+        assertEquals(-1, searchResult.getRemainingPagedResults());
+    }
+
+    @Test
+    void getUsersWithGroupsByBulkMemberships() {
+        // Given
+        // Apply custom configuration for this test
+        configuration.setMembershipBulkLoadThreshold(10);
+        // Not cached, so both the direct and nested groups need the memberships of the query
+        configuration.setNestedGroupsCacheTtlInSeconds(0);
+        ConnectorFacade connector = newFacade(configuration);
+
+        mockClient.getUsers = ((h, size, offset) -> {
+            h.handle(new UserEntity("user1", null, null, null, null, null, true, "12345:abc", Date.from(Instant.now()), Date.from(Instant.now()), false));
+            h.handle(new UserEntity("user2", null, null, null, null, null, true, "12345:efg", Date.from(Instant.now()), Date.from(Instant.now()), false));
+            return 2;
+        });
+        AtomicReference<Integer> loaded = new AtomicReference<>(0);
+        mockClient.getMemberships = (() -> {
+            loaded.set(loaded.get() + 1);
+            return list(membership("group1", set("user1", "user2"), set("group2")),
+                    membership("group2", set("user1"), set()));
+        });
+        mockClient.getGroupsForUser = ((u, size) -> {
+            fail("Unexpected lookup of the groups per user: " + u);
+            return null;
+        });
+        // The full scan is bulk loaded without counting all users before the scan
+        mockClient.countUsers = (r -> {
+            fail("Unexpected count of the users");
+            return 0;
+        });
+        mockClient.countUsersUpTo = ((r, limit) -> {
+            fail("Unexpected count of the users");
+            return 0;
+        });
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        connector.search(USER_OBJECT_CLASS, null, results::add, defaultSearchOperation("groups", "nestedGroups"));
+
+        // Then
+        assertEquals(2, results.size());
+        assertEquals(list("group1", "group2"), multiAttr(results.get(0), "groups"));
+        assertEquals(list("group1"), multiAttr(results.get(1), "groups"));
+        assertEquals(set("group1", "group2"), new HashSet<>(multiAttr(results.get(0), "nestedGroups")));
+        // Loaded once for both
+        assertEquals(1, loaded.get());
+    }
+
+    @Test
+    void getUsersByFilterWithGroupsByBulkMemberships() {
+        // Given
+        // Apply custom configuration for this test
+        configuration.setMembershipBulkLoadThreshold(10);
+        ConnectorFacade connector = newFacade(configuration);
+
+        mockClient.getUsersByRestriction = ((r, h, size) -> {
+            h.handle(new UserEntity("user1", null, null, null, null, null, true, "12345:abc", null, null, false));
+            return 1;
+        });
+        mockClient.getMemberships = (() -> list(membership("group1", set("user1"), set())));
+        mockClient.getGroupsForUser = ((u, size) -> {
+            fail("Unexpected lookup of the groups per user: " + u);
+            return null;
+        });
+        mockClient.countUsers = (r -> {
+            fail("Unexpected count of all matched users");
+            return 0;
+        });
+        AtomicReference<Integer> probed = new AtomicReference<>();
+        mockClient.countUsersUpTo = ((r, limit) -> {
+            probed.set(limit);
+            // Reached the threshold
+            return limit;
+        });
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        Date since = Date.from(Instant.now().minusSeconds(60));
+        connector.search(USER_OBJECT_CLASS, FilterBuilder.greaterThan(AttributeBuilder.build("updated-date", toZoneDateTime(since))),
+                results::add, defaultSearchOperation("groups"));
+
+        // Then
+        assertEquals(1, results.size());
+        assertEquals(list("group1"), multiAttr(results.get(0), "groups"));
+        assertEquals(10, probed.get());
+    }
+
+    @Test
+    void getUserByUidWithNestedGroups() {
+        // Given
+        String key = "12345:abc";
+        String userName = "foo";
+
+        mockClient.getUserByUid = ((u) -> {
+            return new UserEntity(userName, null, null, null, null, null, true, key, Date.from(Instant.now()), Date.from(Instant.now()), false);
+        });
+        mockClient.getMemberships = (() -> list(
+                membership("parent", set(), set("child")),
+                membership("child", set(userName), set())
+        ));
+
+        // When
+        ConnectorObject result = connector.getObject(USER_OBJECT_CLASS, new Uid(key, new Name(userName)), defaultGetOperation("nestedGroups"));
+
+        // Then
+        assertEquals(set("child", "parent"), new HashSet<>(multiAttr(result, "nestedGroups")));
+        assertNull(result.getAttributeByName("groups"));
+    }
+
+    private static Membership membership(String groupName, Set<String> userNames, Set<String> childGroupNames) {
+        return new Membership() {
+            @Override
+            public String getGroupName() {
+                return groupName;
+            }
+
+            @Override
+            public Set<String> getUserNames() {
+                return userNames;
+            }
+
+            @Override
+            public Set<String> getChildGroupNames() {
+                return childGroupNames;
+            }
+        };
+    }
+
     @Test
     void getUserByUidButNotFound() {
         // Given
@@ -1074,6 +1497,47 @@ class UserTest extends AbstractTest {
         assertEquals(0, results.size());
     }
 
+    @Test
+    void getUserAndGroupsAsync() {
+        // Given
+        String key = "12345:abc";
+        String userName = "foo";
+
+        mockClient.getUserByName = ((n) -> {
+            return new UserEntity(userName, null, null, null, null, null, true, key, Date.from(Instant.now()), Date.from(Instant.now()), false);
+        });
+        mockClient.getGroupsForUser = ((u, size) -> Stream.of("group1", "group2"));
+        mockClient.latencyMillis = 100;
+
+        // When
+        long start = System.nanoTime();
+        CompletableFuture<UserEntity> user = mockClient.getUserAsync(new Name(userName), null, null);
+        CompletableFuture<List<String>> groups = mockClient.getGroupsForUserAsync(userName, 50);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // Then
+        // The concurrency of the mock client is 1, so they are completed in the caller thread one by one
+        assertTrue(user.isDone());
+        assertTrue(groups.isDone());
+        assertTrue(elapsed >= 200, "Not completed in the caller thread: " + elapsed + "ms");
+        assertEquals("foo:[group1, group2]", user.thenCombine(groups, (u, g) -> u.getName() + ":" + g).join());
+    }
+
+    @Test
+    void getUserAsyncButNotFound() {
+        // Given
+        mockClient.getUserByName = ((u) -> {
+            throw new UnknownUidException();
+        });
+
+        // When
+        CompletableFuture<UserEntity> user = mockClient.getUserAsync(new Name("foo"), null, null);
+
+        // Then
+        CompletionException e = assertThrows(CompletionException.class, user::join);
+        assertTrue(e.getCause() instanceof UnknownUidException);
+    }
+
     @Test
     void deleteUser() {
         // Given
@@ -0,0 +1,121 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.crowd.integration;
+
+import jp.openstandia.connector.crowd.CrowdConfiguration;
+import jp.openstandia.connector.crowd.CrowdGroupHandler;
+import jp.openstandia.connector.crowd.CrowdMetrics;
+import jp.openstandia.connector.crowd.CrowdUserHandler;
+import org.identityconnectors.framework.common.objects.*;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonTransportIT extends AbstractIntegrationTest {
+
+    private static final ObjectClass USER_OBJECT_CLASS = CrowdUserHandler.USER_OBJECT_CLASS;
+    private static final ObjectClass GROUP_OBJECT_CLASS = CrowdGroupHandler.GROUP_OBJECT_CLASS;
+
+    @BeforeEach
+    void useJsonTransport() {
+        configuration.setTransportFormat(CrowdConfiguration.TRANSPORT_FORMAT_JSON);
+        configuration.setUserAttributesSchema(new String[]{"custom1$string", "custom2$stringArray"});
+        connector = newFacade(configuration);
+    }
+
+    @Test
+    void getAndSearchUser() {
+        Set<Attribute> groupAttrs = new HashSet<>();
+        groupAttrs.add(new Name("group1"));
+        groupAttrs.add(AttributeBuilder.build("description", "Group 1"));
+        connector.create(GROUP_OBJECT_CLASS, groupAttrs, new OperationOptionsBuilder().build());
+
+        Set<Attribute> attrs = new HashSet<>();
+        attrs.add(new Name("foo"));
+        attrs.add(AttributeBuilder.buildEnabled(true));
+        attrs.add(AttributeBuilder.build("email", "foo@example.com"));
+        attrs.add(AttributeBuilder.build("display-name", "Foo Bar"));
+        attrs.add(AttributeBuilder.build("attributes.custom1", "abc"));
+        attrs.add(AttributeBuilder.build("attributes.custom2", list("123", "456")));
+        attrs.add(AttributeBuilder.build("groups", list("group1")));
+        Uid uid = connector.create(USER_OBJECT_CLASS, attrs, new OperationOptionsBuilder().build());
+
+        // Get by key
+        ConnectorObject result = connector.getObject(USER_OBJECT_CLASS, uid, defaultGetOperation("groups"));
+        assertEquals("foo", result.getName().getNameValue());
+        assertEquals("foo@example.com", singleAttr(result, "email"));
+        assertEquals("Foo Bar", singleAttr(result, "display-name"));
+        assertEquals(true, singleAttr(result, OperationalAttributes.ENABLE_NAME));
+        assertEquals("abc", singleAttr(result, "attributes.custom1"));
+        assertEquals(list("123", "456"), multiAttr(result, "attributes.custom2"));
+        assertEquals(list("group1"), multiAttr(result, "groups"));
+
+        // Get by name
+        List<ConnectorObject> results = new ArrayList<>();
+        connector.search(USER_OBJECT_CLASS, FilterBuilder.equalTo(new Name("foo")), results::add, defaultSearchOperation());
+        assertEquals(1, results.size());
+        assertEquals(uid.getUidValue(), results.get(0).getUid().getUidValue());
+
+        // Search all
+        results.clear();
+        connector.search(USER_OBJECT_CLASS, null, results::add, defaultSearchOperation());
+        assertEquals(1, results.size());
+        assertEquals("abc", singleAttr(results.get(0), "attributes.custom1"));
+
+        // Not found
+        assertNull(connector.getObject(USER_OBJECT_CLASS, new Uid("unknown"), defaultGetOperation()));
+    }
+
+    @Test
+    void searchGroup() {
+        Set<Attribute> attrs = new HashSet<>();
+        attrs.add(new Name("group1"));
+        attrs.add(AttributeBuilder.build("description", "Group 1"));
+        connector.create(GROUP_OBJECT_CLASS, attrs, new OperationOptionsBuilder().build());
+
+        List<ConnectorObject> results = new ArrayList<>();
+        connector.search(GROUP_OBJECT_CLASS, null, results::add, defaultSearchOperation());
+
+        assertEquals(1, results.size());
+        assertEquals("group1", results.get(0).getName().getNameValue());
+        assertEquals("Group 1", singleAttr(results.get(0), "description"));
+    }
+
+    @Test
+    void compressedResponse() {
+        for (int i = 0; i < 20; i++) {
+            Set<Attribute> attrs = new HashSet<>();
+            attrs.add(new Name("user" + i));
+            attrs.add(AttributeBuilder.build("email", "user" + i + "@example.com"));
+            attrs.add(AttributeBuilder.build("display-name", "User " + i));
+            connector.create(USER_OBJECT_CLASS, attrs, new OperationOptionsBuilder().build());
+        }
+
+        CrowdMetrics metrics = CrowdMetrics.of(configuration);
+        long compressed = metrics.get("http.searchUsers.compressed");
+
+        List<ConnectorObject> results = new ArrayList<>();
+        connector.search(USER_OBJECT_CLASS, null, results::add, defaultSearchOperation());
+
+        assertEquals(20, results.size());
+        assertTrue(metrics.get("http.searchUsers.compressed") > compressed);
+        assertTrue(metrics.get("http.searchUsers.bytes.wire") < metrics.get("http.searchUsers.bytes.decoded"));
+    }
+}
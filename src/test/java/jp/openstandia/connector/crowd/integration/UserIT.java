@@ -467,6 +467,27 @@ class UserIT extends AbstractIntegrationTest {
         assertEquals(2, results.size());
     }
 
+    @Test
+    void getAllUsersByKeyset() {
+        configuration.setKeysetPagingEnabled(true);
+        configuration.setDefaultQueryPageSize(2);
+        connector = newFacade(configuration);
+
+        createTestUser("user3", "user3@example.com", "User 3", "User", "Three");
+        createTestUser("User1", "user1@example.com", "User 1", "User", "One");
+        createTestUser("user5", "user5@example.com", "User 5", "User", "Five");
+        createTestUser("user2", "user2@example.com", "User 2", "User", "Two");
+        createTestUser("user4", "user4@example.com", "User 4", "User", "Four");
+
+        List<String> names = new ArrayList<>();
+        connector.search(USER_OBJECT_CLASS, null, connectorObject -> {
+            names.add(connectorObject.getName().getNameValue());
+            return true;
+        }, new OperationOptionsBuilder().build());
+
+        assertEquals(list("User1", "user2", "user3", "user4", "user5"), names);
+    }
+
     // --- Delete ---
 
     @Test
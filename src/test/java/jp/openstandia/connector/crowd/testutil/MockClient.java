@@ -15,12 +15,15 @@
  */
 package jp.openstandia.connector.crowd.testutil;
 
+import com.atlassian.crowd.embedded.api.SearchRestriction;
 import com.atlassian.crowd.integration.rest.entity.GroupEntity;
 import com.atlassian.crowd.integration.rest.entity.UserEntity;
 import com.atlassian.crowd.model.group.Group;
 import com.atlassian.crowd.model.group.GroupWithAttributes;
+import com.atlassian.crowd.model.group.Membership;
 import com.atlassian.crowd.model.user.User;
 import com.atlassian.crowd.model.user.UserWithAttributes;
+import com.atlassian.crowd.search.query.entity.restriction.NullRestriction;
 import jp.openstandia.connector.crowd.CrowdQueryHandler;
 import jp.openstandia.connector.crowd.CrowdRESTClient;
 import org.identityconnectors.common.security.GuardedString;
@@ -49,6 +52,10 @@ public class MockClient extends CrowdRESTClient {
     public MockFunction<Uid, UserEntity> getUserByUid;
     public MockFunction<Name, UserEntity> getUserByName;
     public MockTripleFunction<CrowdQueryHandler<UserWithAttributes>, Integer, Integer, Integer> getUsers;
+    public MockTripleFunction<SearchRestriction, CrowdQueryHandler<UserWithAttributes>, Integer, Integer> getUsersByRestriction;
+    public MockTripleFunction<SearchRestriction, Integer, Integer, List<UserWithAttributes>> searchUsers;
+    public MockFunction<SearchRestriction, Integer> countUsers;
+    public MockBiFunction<SearchRestriction, Integer, Integer> countUsersUpTo;
     public MockBiFunction<String, Integer, Stream<String>> getGroupsForUser;
     public MockConsumer<Uid> deleteUser;
 
@@ -60,11 +67,23 @@ public class MockClient extends CrowdRESTClient {
     public MockFunction<Uid, GroupEntity> getGroupByUid;
     public MockFunction<Name, GroupEntity> getGroupByName;
     public MockTripleFunction<CrowdQueryHandler<GroupWithAttributes>, Integer, Integer, Integer> getGroups;
+    public MockTripleFunction<SearchRestriction, CrowdQueryHandler<GroupWithAttributes>, Integer, Integer> getGroupsByRestriction;
+    public MockTripleFunction<SearchRestriction, Integer, Integer, List<GroupWithAttributes>> searchGroups;
+    public MockFunction<SearchRestriction, Integer> countGroups;
+    public MockBiFunction<SearchRestriction, Integer, Integer> countGroupsUpTo;
     public MockBiFunction<String, Integer, Stream<String>> getGroupsForGroup;
+    public MockBiConsumer<String, List<String>> addUsersToGroup;
+    public MockBiConsumer<String, List<String>> deleteUsersFromGroup;
+    public MockBiFunction<String, Integer, Stream<String>> getUsersOfGroup;
     public MockConsumer<Uid> deleteGroup;
 
+    public MockSupplier<List<Membership>> getMemberships;
+
     public boolean closed = false;
 
+    // Latency of Crowd added to each call, it runs in the thread calling Crowd (e.g. the executor thread of async())
+    public long latencyMillis = 0;
+
     public void init() {
         INSTANCE = new MockClient();
     }
@@ -77,6 +96,17 @@ public class MockClient extends CrowdRESTClient {
         return INSTANCE;
     }
 
+    private void simulateLatency() {
+        if (latencyMillis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
     public void test() {
     }
@@ -90,61 +120,101 @@ public class MockClient extends CrowdRESTClient {
 
     @Override
     public Uid createUser(UserWithAttributes user, GuardedString password) throws AlreadyExistsException {
+        simulateLatency();
         return createUser.apply(user, password);
     }
 
     @Override
     public void updateUser(User update) {
+        simulateLatency();
         updateUser.accept(update);
     }
 
     @Override
     public void updateUserAttributes(String userName, Map<String, Set<String>> attributes) {
+        simulateLatency();
         updateUserAttributes.accept(userName, attributes);
     }
 
     @Override
     public void updatePassword(String userName, GuardedString password) {
+        simulateLatency();
         updatePassword.accept(userName, password);
     }
 
     @Override
     public void addUserToGroup(String userName, List<String> groups) throws AlreadyExistsException {
+        simulateLatency();
         addUserToGroup.accept(userName, groups);
     }
 
     @Override
     public void deleteUserFromGroup(String userName, List<String> groups) throws AlreadyExistsException {
+        simulateLatency();
         deleteUserFromGroup.accept(userName, groups);
     }
 
     @Override
     public void renameUser(String userName, String newUserName) {
+        simulateLatency();
         renameUser.accept(userName, newUserName);
     }
 
     @Override
     public UserEntity getUser(Uid uid, OperationOptions options, Set<String> fetchFieldsSet) throws UnknownUidException {
+        simulateLatency();
         return getUserByUid.apply(uid);
     }
 
     @Override
     public UserEntity getUser(Name name, OperationOptions options, Set<String> fetchFieldsSet) throws UnknownUidException {
+        simulateLatency();
         return getUserByName.apply(name);
     }
 
     @Override
     public int getUsers(CrowdQueryHandler<UserWithAttributes> handler, OperationOptions options, Set<String> fetchFieldsSet, int pageSize, int pageOffset) {
+        simulateLatency();
         return getUsers.apply(handler, pageSize, pageOffset);
     }
 
+    @Override
+    public int getUsers(SearchRestriction restriction, CrowdQueryHandler<UserWithAttributes> handler, OperationOptions options, Set<String> fetchFieldsSet, int pageSize, int pageOffset) {
+        simulateLatency();
+        if (restriction == NullRestriction.INSTANCE) {
+            return getUsers.apply(handler, pageSize, pageOffset);
+        }
+        return getUsersByRestriction.apply(restriction, handler, pageSize);
+    }
+
+    @Override
+    protected List<UserWithAttributes> searchUsers(SearchRestriction restriction, int start, int size) {
+        simulateLatency();
+        return searchUsers.apply(restriction, start, size);
+    }
+
+    @Override
+    public int countUsers(SearchRestriction restriction) {
+        simulateLatency();
+        // The paged search always counts, so return 0 if the test doesn't care
+        return countUsers != null ? countUsers.apply(restriction) : 0;
+    }
+
+    @Override
+    public int countUsersUpTo(SearchRestriction restriction, int limit) {
+        simulateLatency();
+        return countUsersUpTo != null ? countUsersUpTo.apply(restriction, limit) : 0;
+    }
+
     @Override
     public Stream<String> getGroupsForUser(String userName, int pageSize) {
+        simulateLatency();
         return getGroupsForUser.apply(userName, pageSize);
     }
 
     @Override
     public void deleteUser(Uid uid) {
+        simulateLatency();
         deleteUser.accept(uid);
     }
 
@@ -152,54 +222,123 @@ public class MockClient extends CrowdRESTClient {
 
     @Override
     public Uid createGroup(GroupWithAttributes group) throws AlreadyExistsException {
+        simulateLatency();
         return createGroup.apply(group);
     }
 
     @Override
     public void addGroupToGroup(String groupName, List<String> groups) throws AlreadyExistsException {
+        simulateLatency();
         addGroupToGroup.accept(groupName, groups);
     }
 
     @Override
     public void deleteGroupFromGroup(String groupName, List<String> groups) throws AlreadyExistsException {
+        simulateLatency();
         deleteGroupFromGroup.accept(groupName, groups);
     }
 
     @Override
     public void updateGroup(Group update) {
+        simulateLatency();
         updateGroup.accept(update);
     }
 
     @Override
     public void updateGroupAttributes(String groupName, Map<String, Set<String>> attributes) {
+        simulateLatency();
         updateGroupAttributes.accept(groupName, attributes);
     }
 
     @Override
     public GroupEntity getGroup(Uid uid, OperationOptions options, Set<String> fetchFieldsSet) {
+        simulateLatency();
         return getGroupByUid.apply(uid);
     }
 
     @Override
     public GroupEntity getGroup(Name name, OperationOptions options, Set<String> fetchFieldsSet) {
+        simulateLatency();
         return getGroupByName.apply(name);
     }
 
     @Override
     public int getGroups(CrowdQueryHandler<GroupWithAttributes> handler, OperationOptions options, Set<String> fetchFieldsSet, int pageSize, int pageOffset) {
+        simulateLatency();
         return getGroups.apply(handler, pageSize, pageOffset);
     }
 
+    @Override
+    public int getGroups(SearchRestriction restriction, CrowdQueryHandler<GroupWithAttributes> handler, OperationOptions options, Set<String> fetchFieldsSet, int pageSize, int pageOffset) {
+        simulateLatency();
+        if (restriction == NullRestriction.INSTANCE) {
+            return getGroups.apply(handler, pageSize, pageOffset);
+        }
+        return getGroupsByRestriction.apply(restriction, handler, pageSize);
+    }
+
+    @Override
+    protected List<GroupWithAttributes> searchGroups(SearchRestriction restriction, int start, int size) {
+        simulateLatency();
+        return searchGroups.apply(restriction, start, size);
+    }
+
+    @Override
+    public int countGroups(SearchRestriction restriction) {
+        simulateLatency();
+        // The paged search always counts, so return 0 if the test doesn't care
+        return countGroups != null ? countGroups.apply(restriction) : 0;
+    }
+
+    @Override
+    public int countGroupsUpTo(SearchRestriction restriction, int limit) {
+        simulateLatency();
+        return countGroupsUpTo != null ? countGroupsUpTo.apply(restriction, limit) : 0;
+    }
+
     @Override
     public Stream<String> getGroupsForGroup(String groupName, int pageSize) {
+        simulateLatency();
         return getGroupsForGroup.apply(groupName, pageSize);
     }
 
+    @Override
+    public void addUsersToGroup(String groupName, List<String> userNames) throws AlreadyExistsException {
+        simulateLatency();
+        addUsersToGroup.accept(groupName, userNames);
+    }
+
+    @Override
+    public void deleteUsersFromGroup(String groupName, List<String> userNames) throws AlreadyExistsException {
+        simulateLatency();
+        deleteUsersFromGroup.accept(groupName, userNames);
+    }
+
+    @Override
+    public Stream<String> getUsersOfGroup(String groupName, int pageSize) {
+        simulateLatency();
+        return getUsersOfGroup.apply(groupName, pageSize);
+    }
+
     @Override
     public void deleteGroup(Uid uid) {
+        simulateLatency();
         deleteGroup.accept(uid);
     }
 
+    // Membership
+
+    @Override
+    public List<Membership> getMemberships() {
+        simulateLatency();
+        return getMemberships.get();
+    }
+
+    @FunctionalInterface
+    public interface MockSupplier<R> {
+        R get();
+    }
+
     @FunctionalInterface
     public interface MockFunction<T, R> {
         R apply(T t);